@@ -0,0 +1,174 @@
+package org.ggp.base.apps.utilities;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+
+/**
+ * PropNetBenchmark measures how fast compiled propnets propagate, with their
+ * components numbered as they were built and after {@link CompiledPropNet#renumbered()}.
+ * It also measures the heap held by each game's propnet as a graph of
+ * components, and by its compiled form after {@link PropNet#freeze()}.
+ *
+ * Both propnets are given the same random assignments of their bases and
+ * inputs, and are fully propagated from them for a fixed time. The results
+ * of the two are checked against each other along the way.
+ *
+ * Usage: PropNetBenchmark [seconds per measurement] [.kif files...]
+ *
+ * With no files, every .kif file in games/games and games/test is used.
+ */
+public final class PropNetBenchmark
+{
+	private static final int NUM_ASSIGNMENTS = 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		long millis = (args.length > 0) ? (long) (Double.parseDouble(args[0]) * 1000) : 1000;
+		List<File> files = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) {
+			files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			addGames(new File("games/games"), files);
+			addGames(new File("games/test"), files);
+		}
+
+		System.out.println(String.format("%-32s %10s %10s %11s %14s %14s %8s", "game", "components", "graph KB", "compiled KB", "original/s", "renumbered/s", "speedup"));
+		for (File file : files) {
+			List<Gdl> description = Game.createEphemeralGame(Game.preprocessRulesheet(FileUtils.readFileAsString(file))).getRules();
+			CompiledPropNet original;
+			long freedBytes;
+			try {
+				PropNet propNet = OptimizingPropNetFactory.create(description);
+				new PropNetOptimizer().optimize(propNet);
+				long graphHeap = getUsedHeap();
+				original = propNet.freeze();
+				freedBytes = graphHeap - getUsedHeap();
+			} catch (Exception e) {
+				System.out.println(String.format("%-32s could not be built: %s", file.getName(), e));
+				continue;
+			}
+			// The renumbered copy is the same size as the original, and
+			// freezing freed the graph less the original's size.
+			long heapBefore = getUsedHeap();
+			CompiledPropNet renumbered = original.renumbered();
+			long compiledBytes = getUsedHeap() - heapBefore;
+			long graphBytes = freedBytes + compiledBytes;
+
+			Random random = new Random(42);
+			long[][] originalValues = new long[NUM_ASSIGNMENTS][];
+			long[][] renumberedValues = new long[NUM_ASSIGNMENTS][];
+			for (int i = 0; i < NUM_ASSIGNMENTS; i++) {
+				originalValues[i] = original.newValues();
+				renumberedValues[i] = renumbered.newValues();
+				assignRandomly(random, original, originalValues[i], renumbered, renumberedValues[i]);
+			}
+			checkSameResults(original, originalValues, renumbered, renumberedValues);
+
+			// Alternate between the two, so that neither gets all the warm-up.
+			measure(original, originalValues, millis);
+			measure(renumbered, renumberedValues, millis);
+			double originalRate = measure(original, originalValues, millis);
+			double renumberedRate = measure(renumbered, renumberedValues, millis);
+			System.out.println(String.format("%-32s %10d %10d %11d %14.0f %14.0f %7.2fx", file.getName().replace(".kif", ""),
+					original.getNumComponents(), graphBytes >> 10, compiledBytes >> 10, originalRate, renumberedRate, renumberedRate / originalRate));
+		}
+	}
+
+	/**
+	 * @return The bytes of heap in use, after collecting garbage until that
+	 * stops going down.
+	 */
+	private static long getUsedHeap() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+			Thread.sleep(10);
+			long now = runtime.totalMemory() - runtime.freeMemory();
+			if (now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	private static void addGames(File directory, List<File> files)
+	{
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				addGames(child, files);
+			} else if (child.getName().endsWith(".kif")) {
+				files.add(child);
+			}
+		}
+	}
+
+	/**
+	 * Sets the same random values on the bases and inputs of both propnets,
+	 * whose base indices and input propositions come in the same order.
+	 */
+	private static void assignRandomly(Random random, CompiledPropNet a, long[] aValues, CompiledPropNet b, long[] bValues)
+	{
+		for (int i = 0; i < a.getBasePropositions().length; i++) {
+			boolean value = random.nextBoolean();
+			CompiledPropNet.set(aValues, a.getBasePropositions()[i], value);
+			CompiledPropNet.set(bValues, b.getBasePropositions()[i], value);
+		}
+		for (int i = 0; i < a.getInputPropositions().length; i++) {
+			boolean value = random.nextInt(8) == 0;
+			CompiledPropNet.set(aValues, a.getInputPropositions()[i], value);
+			CompiledPropNet.set(bValues, b.getInputPropositions()[i], value);
+		}
+	}
+
+	private static void checkSameResults(CompiledPropNet a, long[][] aValues, CompiledPropNet b, long[][] bValues)
+	{
+		for (int i = 0; i < aValues.length; i++) {
+			a.propagate(aValues[i]);
+			b.propagate(bValues[i]);
+			for (int t = 0; t < a.getBaseTransitions().length; t++) {
+				if (CompiledPropNet.get(aValues[i], a.getBaseTransitions()[t]) != CompiledPropNet.get(bValues[i], b.getBaseTransitions()[t])) {
+					throw new IllegalStateException("The renumbered propnet computes a different next state.");
+				}
+			}
+			if (a.getTerminalProposition() != -1 && CompiledPropNet.get(aValues[i], a.getTerminalProposition()) != CompiledPropNet.get(bValues[i], b.getTerminalProposition())) {
+				throw new IllegalStateException("The renumbered propnet computes a different terminal value.");
+			}
+		}
+	}
+
+	/** @return Full propagations per second. */
+	private static double measure(CompiledPropNet net, long[][] values, long millis)
+	{
+		long start = System.nanoTime();
+		long deadline = start + millis * 1000000L;
+		long count = 0;
+		long now;
+		do {
+			for (int i = 0; i < 64; i++) {
+				net.propagate(values[(int) (count++ % values.length)]);
+			}
+			now = System.nanoTime();
+		} while (now < deadline);
+		return count * 1e9 / (now - start);
+	}
+}
@@ -1,11 +1,14 @@
 package org.ggp.base.player.gamer.statemachine.sample;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.cache.TranspositionTable;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
@@ -23,6 +26,21 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 {
 	//Milliseconds before timeout where we must bail
 		public final static int timeoutMargin = 50;
+	private static final int TABLE_ENTRIES = 1 << 20;
+	/** Entries nearer the root stand for larger searches, so get a greater depth */
+	private static final int MAX_PLY = 10000;
+
+	/**
+	 * The values of states searched to the end, kept for the whole match,
+	 * since they do not change from one move to the next.
+	 */
+	private TranspositionTable table;
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		table = new TranspositionTable(TABLE_ENTRIES, TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+	}
 
 	/**
 	 * This function is called at the start of each round
@@ -46,7 +64,9 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
 
 		// SampleLegalGamer is very simple : it picks the last legal move
+		table.newSearch();
 		Move selection = bestMove(getRole(), getCurrentState(), timeout);
+		GamerLogger.log("StateMachine", table.toString());
 
 		System.out.println("Best move was: " + selection.toString());
 		// We get the end time
@@ -80,7 +100,7 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 		for (int i = 0; i < legalMoves.size(); i++) {
 			Move move = legalMoves.get(i);
 			//System.out.println("ACTION:" + move.toString());
-			int result = minScore(role, move, state, 0, 100, timeout);
+			int result = minScore(role, move, state, 0, 100, 0, timeout);
 			if (result == 100) return move;
 			if (result > score) {
 				score = result;
@@ -93,7 +113,7 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 		return bestAction;
 	}
 
-	private int  minScore(Role role, Move move, MachineState state, int alpha, int beta, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
+	private int  minScore(Role role, Move move, MachineState state, int alpha, int beta, int ply, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 		//Role opponent = getStateMachine().getRoles().get(0) == getRole() ? getStateMachine().getRoles().get(1) : getStateMachine().getRoles().get(0);
 		//if (getStateMachine().isTerminal(state))  {
 		//	return getStateMachine().getGoal(state, role);
@@ -104,7 +124,7 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 		for (int i = 0; i < legalJointMoves.size(); i++) {
 			List<Move> currMoves = legalJointMoves.get(i);
 			MachineState nextState = getStateMachine().getNextState(state, currMoves);
-			int result = maxScore(role, nextState, alpha, beta, timeout);
+			int result = maxScore(role, nextState, alpha, beta, ply + 1, timeout);
 			//if (result < score) {
 			//	score = result;
 			//}
@@ -118,26 +138,70 @@ public final class AlphaBetaPlusPimp extends SampleGamer
 
 	}
 
-	private int  maxScore(Role role, MachineState state, int alpha, int beta, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
+	private int  maxScore(Role role, MachineState state, int alpha, int beta, int ply, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException{
 		if (getStateMachine().isTerminal(state))  {
 			return getStateMachine().getGoal(state, role);
 		}
+		long key = getStateMachine().getZobristHash(state);
+		int slot = table.probe(key);
+		int tableMove = -1;
+		if (slot != -1) {
+			int value = table.getValue(slot);
+			byte bound = table.getBound(slot);
+			if (bound == TranspositionTable.EXACT) return Math.max(alpha, Math.min(beta, value));
+			if (bound == TranspositionTable.LOWER_BOUND && value >= beta) return beta;
+			if (bound == TranspositionTable.UPPER_BOUND && value <= alpha) return alpha;
+			tableMove = table.getBestMove(slot);
+		}
 		List<Move> legalMoves = getStateMachine().getLegalMoves(state, role);
+		if (tableMove != -1) {
+			// Try the move that was best last time first, for earlier cutoffs.
+			legalMoves = new ArrayList<Move>(legalMoves);
+			Move first = getStateMachine().getMoveFromId(role, tableMove);
+			if (legalMoves.remove(first)) {
+				legalMoves.add(0, first);
+			}
+		}
+		int alphaOrig = alpha;
+		Move bestMove = null;
 		//int score = 0;
 		for (int i = 0; i < legalMoves.size(); i++) {
 			Move currMove = legalMoves.get(i);
 
-			int result = minScore(role, currMove, state, alpha, beta, timeout);
+			int result = minScore(role, currMove, state, alpha, beta, ply, timeout);
 			//if (result > score) {
 			//	score = result;
 			//}
+			if (result > alpha) {
+				bestMove = currMove;
+			}
 			alpha = Math.max(alpha,  result);
-			if (alpha >= beta) return beta;
+			if (alpha >= beta) {
+				storeResult(key, ply, beta, TranspositionTable.LOWER_BOUND, role, bestMove, timeout);
+				return beta;
+			}
 			if (timeout - System.currentTimeMillis() <= timeoutMargin){
 				break;
 			}
 		}
+		storeResult(key, ply, alpha, (alpha == alphaOrig) ? TranspositionTable.UPPER_BOUND : TranspositionTable.EXACT, role, bestMove, timeout);
 		return alpha;
 
 	}
+
+	/**
+	 * Stores the result of searching a state, unless time ran out, since
+	 * then part of the search may have been cut short.
+	 */
+	private void storeResult(long key, int ply, int value, byte bound, Role role, Move bestMove, long timeout) {
+		if (timeout - System.currentTimeMillis() <= timeoutMargin) {
+			return;
+		}
+		int slot = table.store(key, MAX_PLY - ply);
+		if (slot != -1) {
+			table.setValue(slot, value);
+			table.setBound(slot, bound);
+			table.setBestMove(slot, (bestMove == null) ? -1 : getStateMachine().getMoveId(role, bestMove));
+		}
+	}
 }
\ No newline at end of file
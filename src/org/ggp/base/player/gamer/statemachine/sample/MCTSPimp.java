@@ -6,8 +6,10 @@ import java.util.List;
 import java.util.Map;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.statemachine.DepthChargeResults;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.ParallelDepthCharger;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
@@ -37,6 +39,15 @@ public final class MCTSPimp extends SampleGamer
 	private static final int SHORT_TIMEOUT_MARGIN = 500;
 	private Map<MachineState, Integer> numVisits;
 	private Map<MachineState, Integer> totals;
+	/** Runs NUM_CHARGES depth charges on each processor at every expansion */
+	private ParallelDepthCharger charger;
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		charger = new ParallelDepthCharger(getStateMachine());
+	}
+
 	/**
 	 * Employs a simple sample "Monte Carlo" algorithm.
 	 */
@@ -56,7 +67,6 @@ public final class MCTSPimp extends SampleGamer
 	}
 
 
-	private int[] depth = new int[1];
 	private Move doTheMonteCarlo(Role role, MachineState currentState,
 			long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException {
 
@@ -80,14 +90,12 @@ public final class MCTSPimp extends SampleGamer
 			}
 			expand(selectedState, role, timeout);
 			//TODO: maybe do it more than once
-			int dcScore = 0;
-			for (int i=0; i< NUM_CHARGES; i++) {
-				dcScore += SM.getGoal(SM.performDepthCharge(selectedState, depth), role);
-			}
+			DepthChargeResults charges = charger.performDepthCharges(selectedState, NUM_CHARGES * charger.getNumThreads(), timeout - MC_TIMEOUT_MARGIN);
+			int dcScore = (int) charges.getGoalSum(SM.getRoleIndices().get(role));
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				break;
 			}
-			backpropagate(selectedState, dcScore, path, role, timeout);
+			backpropagate(selectedState, dcScore, charges.getNumCharges(), path, role, timeout);
 
 
 
@@ -121,12 +129,12 @@ public final class MCTSPimp extends SampleGamer
 
 
 
-	private void backpropagate(MachineState selectedState, int dcScore,
+	private void backpropagate(MachineState selectedState, int dcScore, int numCharges,
 			ArrayList<MachineState> path, Role role, long timeout) throws GoalDefinitionException {
 		StateMachine SM = getStateMachine();
 		for(int i=0; i< path.size(); i++) {
 			MachineState cur = path.get(i);
-			numVisits.put(cur, numVisits.get(cur) + NUM_CHARGES);
+			numVisits.put(cur, numVisits.get(cur) + numCharges);
 			totals.put(cur, totals.get(cur) +dcScore);
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				return ;
@@ -6,15 +6,24 @@ import java.util.List;
 import java.util.Map;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.propnet.factory.PropNetFactorizer;
+import org.ggp.base.util.statemachine.DepthChargeResults;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.ParallelDepthCharger;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.cache.TranspositionTable;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.propnet.PimpNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine;
 
 /**
  * SampleMonteCarloGamer is a simple state-machine-based Gamer. It will use a
@@ -37,20 +46,104 @@ public final class MCTSPropPimp extends SampleGamer
 	private static final int NUM_CHARGES =ALQUERQUE_NUM_CHARGES;
 	private static final int MC_TIMEOUT_MARGIN = 1500;
 	private static final int SHORT_TIMEOUT_MARGIN = 500;
-	private Map<MachineState, Integer> numVisits;
-	private Map<MachineState, Integer> totals;
+	/** The share of the heap the propnet may take up while it is built */
+	private static final double MAX_BUILD_HEAP_FRACTION = 0.8;
+	/** Rough size of a component, with its links, while the propnet is built */
+	private static final int ESTIMATED_COMPONENT_BYTES = 400;
+	private static final int TABLE_ENTRIES = 1 << 20;
+	/** Nodes nearer the root hold more visits, so get a greater depth */
+	private static final int MAX_PLY = 10000;
+	/**
+	 * The search tree: the visit count and total score of each node, keyed
+	 * by the Zobrist hash of its canonical state. A node that is not in the
+	 * table has not been expanded, or has made way for a nearer one.
+	 */
+	private TranspositionTable tree;
+	private int tableEntries = TABLE_ENTRIES;
+	private PropNetCache propNetCache = new PropNetCache();
+	private CompiledPropNetStateMachine propNetMachine;
+	private FailsafeStateMachine failsafeMachine;
+	/**
+	 * When the game splits into independent subgames with moves for us, a
+	 * machine for each of them, searched separately; otherwise empty.
+	 */
+	private List<StateMachine> factorMachines;
+	/** The machine backing the failsafe machine when the game was factored */
+	private StateMachine factoredMachine;
+	/** The machine being searched, and the value of the move it found */
+	private StateMachine SM;
+	private double bestUtility;
+	/**
+	 * A depth charger for each machine searched, running NUM_CHARGES depth
+	 * charges on each processor at every expansion, and the machine backing
+	 * the failsafe machine when they were made.
+	 */
+	private Map<StateMachine, ParallelDepthCharger> chargers = new HashMap<StateMachine, ParallelDepthCharger>();
+	private StateMachine chargedMachine;
 
 
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Sample gamers do no metagaming at the beginning of the match.
+		updateFactorMachines();
+	}
+
+	/**
+	 * Splits the game into subgames, if the failsafe machine has switched
+	 * machines since it was last done.
+	 */
+	private void updateFactorMachines()
+	{
+		if (factorMachines != null && failsafeMachine.getBackingMachine() == factoredMachine) {
+			return;
+		}
+		factorMachines = new ArrayList<StateMachine>();
+		factoredMachine = failsafeMachine.getBackingMachine();
+		if (factoredMachine instanceof ProverStateMachine) {
+			// The propnet isn't ready, so there is nothing to factor.
+			return;
+		}
+		int roleIndex = getStateMachine().getRoleIndices().get(getRole());
+		for (PropNetFactorizer.Factor factor : propNetMachine.getFactors()) {
+			if (!factor.getMoves(roleIndex).isEmpty()) {
+				factorMachines.add(new FactorStateMachine(getStateMachine(), factor));
+			}
+		}
+		if (factorMachines.size() < 2) {
+			factorMachines.clear();
+		}
+	}
+
+	/** Sets the number of nodes the search tree may hold. */
+	public void setTableEntries(int tableEntries)
+	{
+		this.tableEntries = tableEntries;
+	}
+
+	/** Sets the cache the propnet is loaded from and saved to. */
+	public void setPropNetCache(PropNetCache propNetCache)
+	{
+		this.propNetCache = propNetCache;
 	}
 
 	// prop net State Machine
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new PimpNetStateMachine());
+		propNetMachine = new CompiledPropNetStateMachine();
+		propNetMachine.setPropNetCache(propNetCache);
+		propNetMachine.setMaxComponents((int) Math.min(Integer.MAX_VALUE,
+				(long) (Runtime.getRuntime().maxMemory() * MAX_BUILD_HEAP_FRACTION) / ESTIMATED_COMPONENT_BYTES));
+		// Build the propnet in half of the start clock, and play with a
+		// prover until it is ready if it takes longer.
+		long buildTimeout = getMatch().getStartClock() * 1000L / 2;
+		CachedStateMachine cachedMachine = new CachedStateMachine(propNetMachine);
+		cachedMachine.setMergeSymmetricStates(true);
+		// Log how long the search spends in each operation, move by move.
+		StateMachine instrumentedMachine = new InstrumentedStateMachine(cachedMachine);
+		failsafeMachine = new FailsafeStateMachine(instrumentedMachine, buildTimeout, MAX_BUILD_HEAP_FRACTION);
+		// Only the goals of depth charges are used, so they can stop early.
+		failsafeMachine.setStopAtFixedOutcome(true);
+		return failsafeMachine;
 	}
 
 
@@ -64,7 +157,28 @@ public final class MCTSPropPimp extends SampleGamer
 		long start = System.currentTimeMillis();
 
 		List<Move> moves = theMachine.getLegalMoves(getCurrentState(), getRole());
-		Move selection = doTheMonteCarlo(getRole(), getCurrentState(), timeout);
+		// The propnet may have taken the prover's place since the last move.
+		updateFactorMachines();
+		Move selection;
+		if (factorMachines.isEmpty()) {
+			SM = theMachine;
+			selection = doTheMonteCarlo(getRole(), getCurrentState(), timeout);
+		} else {
+			// Give each subgame an equal share of the time, and play the
+			// best move found in any of them.
+			selection = null;
+			double selectionUtility = -1;
+			long available = timeout - MC_TIMEOUT_MARGIN - start;
+			for (int i = 0; i < factorMachines.size(); i++) {
+				SM = factorMachines.get(i);
+				long factorTimeout = start + available * (i + 1) / factorMachines.size() + MC_TIMEOUT_MARGIN;
+				Move factorMove = doTheMonteCarlo(getRole(), getCurrentState(), factorTimeout);
+				if (bestUtility > selectionUtility) {
+					selectionUtility = bestUtility;
+					selection = factorMove;
+				}
+			}
+		}
 
 		long stop = System.currentTimeMillis();
 
@@ -73,54 +187,73 @@ public final class MCTSPropPimp extends SampleGamer
 	}
 
 
-	private int[] depth = new int[1];
+	/**
+	 * Returns the depth charger for SM, making a new one if there is none
+	 * yet, or if the failsafe machine has switched machines since.
+	 */
+	private ParallelDepthCharger getCharger() {
+		if (failsafeMachine.getBackingMachine() != chargedMachine) {
+			chargers.clear();
+			chargedMachine = failsafeMachine.getBackingMachine();
+		}
+		ParallelDepthCharger charger = chargers.get(SM);
+		if (charger == null) {
+			charger = new ParallelDepthCharger(SM);
+			chargers.put(SM, charger);
+		}
+		return charger;
+	}
+
 	private Move doTheMonteCarlo(Role role, MachineState currentState,
 			long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException {
 
-		StateMachine SM = getStateMachine();
-		numVisits = new HashMap<MachineState, Integer>();
-		totals = new HashMap<MachineState, Integer>();
-		numVisits.put(currentState, 0);
-		totals.put(currentState, 0);
+		if (tree == null) {
+			tree = new TranspositionTable(tableEntries, TranspositionTable.ReplacementPolicy.DEPTH_PREFERRED);
+		}
+		tree.clear();
+		tree.store(key(currentState), MAX_PLY);
+		ParallelDepthCharger charger = getCharger();
+		int roleIndex = SM.getRoleIndices().get(role);
 
 		while(true) {
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				break;
 			}
-			ArrayList<MachineState> path = new ArrayList<MachineState>();//for backprop
+			ArrayList<Long> path = new ArrayList<Long>();//for backprop
 			MachineState selectedState = select(currentState, role, path, timeout);
 
 			if (SM.isTerminal(selectedState))  {
-				numVisits.put(selectedState, numVisits.get(selectedState) + 1);
-				totals.put(selectedState, totals.get(selectedState) +SM.getGoal(selectedState, role));
+				int slot = tree.probe(key(selectedState));
+				if (slot != -1) {
+					tree.setCount(slot, tree.getCount(slot) + 1);
+					tree.setValue(slot, tree.getValue(slot) + SM.getGoal(selectedState, role));
+				}
 				continue;
 			}
-			expand(selectedState, role, timeout);
+			expand(selectedState, role, path.size(), timeout);
 			//TODO: maybe do it more than once
-			int dcScore = 0;
-			for (int i=0; i< NUM_CHARGES; i++) {
-				dcScore += SM.getGoal(SM.performDepthCharge(selectedState, depth), role);
-			}
+			DepthChargeResults charges = charger.performDepthCharges(selectedState, NUM_CHARGES * charger.getNumThreads(), timeout - MC_TIMEOUT_MARGIN);
+			int dcScore = (int) charges.getGoalSum(roleIndex);
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				break;
 			}
-			backpropagate(selectedState, dcScore, path, role, timeout);
+			backpropagate(selectedState, dcScore, charges.getNumCharges(), path, role, timeout);
 
 
 
 		}
 		List<Move> legalMoves = SM.getLegalMoves(currentState, role);
-		double bestUtility = 0;
+		bestUtility = 0;
 		//TODO: check if nonempty
 		Move bestMove  = legalMoves.get(0);
 		for (int i=0; i < legalMoves.size(); i++) {
 			List<List<Move>> legalJointMoves = SM.getLegalJointMoves(currentState, role, legalMoves.get(i));
 			for(int j=0; j< legalJointMoves.size(); j++) {
-				MachineState child = SM.getNextState(currentState, legalJointMoves.get(j));
-				if (numVisits.get(child) == 0) {
+				int slot = tree.probe(key(SM.getNextState(currentState, legalJointMoves.get(j))));
+				if (slot == -1 || tree.getCount(slot) == 0) {
 					continue;
 				}
-				double childUtility = totals.get(child)/(double)numVisits.get(child);
+				double childUtility = tree.getValue(slot)/(double)tree.getCount(slot);
 				if(childUtility > bestUtility) {
 					bestUtility = childUtility;
 					bestMove = legalMoves.get(i);
@@ -138,13 +271,15 @@ public final class MCTSPropPimp extends SampleGamer
 
 
 
-	private void backpropagate(MachineState selectedState, int dcScore,
-			ArrayList<MachineState> path, Role role, long timeout) throws GoalDefinitionException {
-		StateMachine SM = getStateMachine();
+	private void backpropagate(MachineState selectedState, int dcScore, int numCharges,
+			ArrayList<Long> path, Role role, long timeout) throws GoalDefinitionException {
 		for(int i=0; i< path.size(); i++) {
-			MachineState cur = path.get(i);
-			numVisits.put(cur, numVisits.get(cur) + NUM_CHARGES);
-			totals.put(cur, totals.get(cur) +dcScore);
+			int slot = tree.probe(path.get(i));
+			if (slot == -1) {
+				continue;
+			}
+			tree.setCount(slot, tree.getCount(slot) + numCharges);
+			tree.setValue(slot, tree.getValue(slot) +dcScore);
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				return ;
 			}
@@ -155,18 +290,16 @@ public final class MCTSPropPimp extends SampleGamer
 
 
     /*
-     * Expand simply adds the children of the selected node to numVisits and totals
+     * Expand simply adds the children of the selected node to the tree
      */
-	private void expand(MachineState state, Role role, long timeout) throws MoveDefinitionException, TransitionDefinitionException {
-		StateMachine SM = getStateMachine();
-		List<Move> legalMoves = SM.getLegalMoves(state, role);
+	private void expand(MachineState state, Role role, int ply, long timeout) throws MoveDefinitionException, TransitionDefinitionException {
+		List<Move> legalMoves = SM.getStateInfo(state).getLegalMoves(SM.getRoleIndices().get(role));
 		for (int i=0; i < legalMoves.size(); i++) {
 			List<List<Move>> legalJointMoves = SM.getLegalJointMoves(state, role, legalMoves.get(i));
 			for(int j=0; j< legalJointMoves.size(); j++) {
-				MachineState child = SM.getNextState(state, legalJointMoves.get(j));
-				if(numVisits.get(child) == null) {
-					numVisits.put(child, 0);
-					totals.put(child, 0);
+				long child = key(SM.getNextState(state, legalJointMoves.get(j)));
+				if(tree.probe(child) == -1) {
+					tree.store(child, MAX_PLY - ply);
 				}
 				if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 					return;
@@ -177,57 +310,75 @@ public final class MCTSPropPimp extends SampleGamer
 
 
 
-	private MachineState select(MachineState state, Role role, ArrayList<MachineState> path, long timeout) throws MoveDefinitionException, TransitionDefinitionException {
-		StateMachine SM = getStateMachine();
+	private MachineState select(MachineState state, Role role, ArrayList<Long> path, long timeout) throws MoveDefinitionException, TransitionDefinitionException {
 		while (true) {
-			path.add(state);
+			long stateKey = key(state);
+			path.add(stateKey);
 			if (timeout - System.currentTimeMillis() <= MC_TIMEOUT_MARGIN){
 				return state;
 			}
-			if (numVisits.get(state) == 0)  {
+			int stateSlot = tree.probe(stateKey);
+			if (stateSlot == -1 || tree.getCount(stateSlot) == 0)  {
 				return state;
 			}
+			int stateVisits = tree.getCount(stateSlot);
 			//find unvisited child and return it
-			List<Move> legalMoves = SM.getLegalMoves(state, role);
+			List<Move> legalMoves = SM.getStateInfo(state).getLegalMoves(SM.getRoleIndices().get(role));
 			for (int i=0; i < legalMoves.size(); i++) {
 				List<List<Move>> legalJointMoves = SM.getLegalJointMoves(state, role, legalMoves.get(i));
 				for(int j=0; j< legalJointMoves.size(); j++) {
 					MachineState child = SM.getNextState(state, legalJointMoves.get(j));
-					if(numVisits.get(child) != null && numVisits.get(child)== 0) {
-						path.add(child);
+					long childKey = key(child);
+					int slot = tree.probe(childKey);
+					if(slot != -1 && tree.getCount(slot)== 0) {
+						path.add(childKey);
 						return child;
 					}
 				}
 			}
-			int score = 0;
+			int score = -1;
 			MachineState result = state;
 			// check which visited child is worth exploring
 			for (int i=0; i < legalMoves.size(); i++) {
 				List<List<Move>> legalJointMoves = SM.getLegalJointMoves(state, role, legalMoves.get(i));
 				for(int j=0; j< legalJointMoves.size(); j++) {
-					MachineState child = getStateMachine().getNextState(state, legalJointMoves.get(j));
-					if(numVisits.get(child) == null) {
+					MachineState child = SM.getNextState(state, legalJointMoves.get(j));
+					int slot = tree.probe(key(child));
+					if(slot == -1) {
 						continue;
 					}
-					int curScore = selectFn(state, child);
+					int curScore = selectFn(stateVisits, tree.getCount(slot), tree.getValue(slot));
 					if (curScore> score) {
 						score = curScore;
 						result = child;
 					}
 				}
 			}
+			if (result == state) {
+				// None of the children could be stored, since the table is
+				// full of nodes nearer the root, so treat this one as a leaf.
+				return state;
+			}
 			state = result;
 		}
 	}
 
 
 
-	private int selectFn(MachineState parent, MachineState child) {
-		double utility = totals.get(child)/ (double)numVisits.get(child);// avg reward
-		if (numVisits.get(child) == 0) {
+	/**
+	 * States that are the same up to a symmetry of the game share their
+	 * statistics, under their canonical state.
+	 */
+	private long key(MachineState state) {
+		return SM.getZobristHash(SM.canonicalize(state));
+	}
+
+	private int selectFn(int parentVisits, int childVisits, int childTotal) {
+		double utility = childTotal/ (double)childVisits;// avg reward
+		if (childVisits == 0) {
 			System.out.println("its zero bitch");
 		}
-		return (int) (utility + SELECT_CONST *Math.sqrt(2*Math.log(numVisits.get(parent))/numVisits.get(child)));
+		return (int) (utility + SELECT_CONST *Math.sqrt(2*Math.log(parentVisits)/childVisits));
 	}
 
 }
\ No newline at end of file
@@ -3,8 +3,10 @@ package org.ggp.base.player.gamer.statemachine.sample;
 import java.util.List;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.statemachine.DepthChargeResults;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.ParallelDepthCharger;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
@@ -27,6 +29,15 @@ public final class MonteCarloPimp extends SampleGamer
 		public final static int LEVEL_LIMIT = 3;
 		public final static int NUM_DEPTH_CHARGES = 1000;
 
+	/** Runs the depth charges on every processor */
+	private ParallelDepthCharger charger;
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		charger = new ParallelDepthCharger(getStateMachine());
+	}
+
 
 	/**
 	 * This function is called at the start of each round
@@ -116,16 +127,11 @@ public final class MonteCarloPimp extends SampleGamer
 	}
 
 	//might want it to return a double
-	private int[] depth = new int[1];
 	private int monteCarlo(Role role, MachineState state, int count, long timeout) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException {
-		int total = 0;
-		for (int i=0; i< count; i++) {
-			if (timeout - System.currentTimeMillis() <= TIMEOUT_MARGIN2)
-   		        break;
-			MachineState finalState = getStateMachine().performDepthCharge(state, depth);
-			total += getStateMachine().getGoal(finalState, role);
-		}
-		return total/count;
+		if (timeout - System.currentTimeMillis() <= TIMEOUT_MARGIN2)
+			return 0;
+		DepthChargeResults results = charger.performDepthCharges(state, count, timeout - TIMEOUT_MARGIN2);
+		return (int) (results.getGoalSum(getStateMachine().getRoleIndices().get(role)) / count);
 
 	}
 
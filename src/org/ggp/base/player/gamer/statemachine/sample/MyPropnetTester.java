@@ -11,7 +11,7 @@ import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.propnet.PimpNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 /**
@@ -32,7 +32,7 @@ public final class MyPropnetTester extends SampleGamer
 		List gdlDescription = psm.gdlDescription;
 
 		// The only line you have to adapt in this file
-		StateMachine stateMachineX = new CachedStateMachine(new PimpNetStateMachine());
+		StateMachine stateMachineX = new CachedStateMachine(new CompiledPropNetStateMachine());
 
 		stateMachineX.initialize(gdlDescription);
 
@@ -3,8 +3,10 @@ package org.ggp.base.player.gamer.statemachine.sample;
 import java.util.List;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.statemachine.DepthChargeResults;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.ParallelDepthCharger;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
@@ -25,6 +27,15 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
  */
 public final class SampleMonteCarloGamer extends SampleGamer
 {
+	/** Runs the depth charges on every processor */
+	private ParallelDepthCharger charger;
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		charger = new ParallelDepthCharger(getStateMachine());
+	}
+
 	/**
 	 * Employs a simple sample "Monte Carlo" algorithm.
 	 */
@@ -38,6 +49,9 @@ public final class SampleMonteCarloGamer extends SampleGamer
 		List<Move> moves = theMachine.getLegalMoves(getCurrentState(), getRole());
 		Move selection = moves.get(0);
 		if (moves.size() > 1) {
+    		// Machines that can run several depth charges for the price of one
+    		// get to run that many for each attempt, on each thread.
+    		int chargesPerAttempt = theMachine.getDepthChargeBatchSize() * charger.getNumThreads();
     		int[] moveTotalPoints = new int[moves.size()];
     		int[] moveTotalAttempts = new int[moves.size()];
 
@@ -47,9 +61,14 @@ public final class SampleMonteCarloGamer extends SampleGamer
     		    if (System.currentTimeMillis() > finishBy)
     		        break;
 
-    		    int theScore = performDepthChargeFromMove(getCurrentState(), moves.get(i));
-    		    moveTotalPoints[i] += theScore;
-    		    moveTotalAttempts[i] += 1;
+    		    DepthChargeResults results = performDepthChargesFromMove(getCurrentState(), moves.get(i), chargesPerAttempt, finishBy);
+    		    if (results == null) {
+    		        // Charges that failed count as attempts that scored nothing.
+    		        moveTotalAttempts[i] += chargesPerAttempt;
+    		        continue;
+    		    }
+    		    moveTotalPoints[i] += results.getGoalSum(theMachine.getRoleIndices().get(getRole()));
+    		    moveTotalAttempts[i] += results.getNumCharges();
     		}
 
     		// Compute the expected score for each move.
@@ -76,15 +95,13 @@ public final class SampleMonteCarloGamer extends SampleGamer
 		return selection;
 	}
 
-	private int[] depth = new int[1];
-	int performDepthChargeFromMove(MachineState theState, Move myMove) {
+	DepthChargeResults performDepthChargesFromMove(MachineState theState, Move myMove, int count, long finishBy) {
 	    StateMachine theMachine = getStateMachine();
 	    try {
-            MachineState finalState = theMachine.performDepthCharge(theMachine.getRandomNextState(theState, getRole(), myMove), depth);
-            return theMachine.getGoal(finalState, getRole());
+            return charger.performDepthCharges(theMachine.getRandomNextState(theState, getRole(), myMove), count, finishBy);
         } catch (Exception e) {
             e.printStackTrace();
-            return 0;
+            return null;
         }
 	}
 }
\ No newline at end of file
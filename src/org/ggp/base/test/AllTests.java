@@ -10,7 +10,28 @@ import org.junit.runners.Suite;
 	NoTabsInRulesheetsTest.class,
 	ProverStateMachineTests.class,
 	SimpleSentenceFormTest.class,
-	StaticValidationTests.class
+	StaticValidationTests.class,
+	CachedStateMachineTests.class,
+	ClockCacheTests.class,
+	CompiledPropNetStateMachineTests.class,
+	DifferentialPropagatorTests.class,
+	FailsafeStateMachineTests.class,
+	GameFingerprintTests.class,
+	InstrumentedStateMachineTests.class,
+	PropNetCacheTests.class,
+	TranspositionTableTests.class,
+	BitParallelDepthChargerTests.class,
+	PropNetOptimizerTests.class,
+	PropNetFactorizerTests.class,
+	PropNetLatchAnalyzerTests.class,
+	CompiledPropNetTests.class,
+	MachineStateInfoTests.class,
+	PropNetSymmetryDetectorTests.class,
+	ZobristHashTests.class,
+	XorShiftRandomTests.class,
+	ParallelDepthChargerTests.class,
+	MCTSPropPimpTests.class,
+	PropNetCodeGeneratorTests.class
                      })
 public class AllTests {
 
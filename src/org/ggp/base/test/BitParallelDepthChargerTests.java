@@ -0,0 +1,68 @@
+package org.ggp.base.test;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitParallelDepthChargerTests extends Assert {
+
+    @Test
+    public void testDepthChargesTicTacToe() throws Exception {
+        checkDepthCharges("ticTacToe");
+    }
+
+    @Test
+    public void testDepthChargesConnectFour() throws Exception {
+        checkDepthCharges("connectFour");
+    }
+
+    /**
+     * Runs batches of depth charges (more than one bit-parallel batch's worth)
+     * from states along random matches. Terminal states must give depth zero
+     * and the prover's goals; every other charge must reach a terminal state
+     * whose goals add up to 100, as they do in these games.
+     */
+    protected void checkDepthCharges(String gameKey) throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        StateMachine sm = new CompiledPropNetStateMachine();
+        sm.initialize(description);
+
+        int count = 70;
+        int[][] goals = new int[count][];
+        int[] depths = new int[count];
+        Random random = new Random(42);
+        for (int i = 0; i < 5; i++) {
+            MachineState state = prover.getInitialState();
+            while (true) {
+                sm.performDepthCharges(state, count, goals, depths);
+                boolean terminal = prover.isTerminal(state);
+                for (int j = 0; j < count; j++) {
+                    if (terminal) {
+                        assertEquals(0, depths[j]);
+                        assertEquals(prover.getGoals(state).get(0).intValue(), goals[j][0]);
+                        assertEquals(prover.getGoals(state).get(1).intValue(), goals[j][1]);
+                    } else {
+                        assertTrue(depths[j] > 0);
+                        assertEquals(100, goals[j][0] + goals[j][1]);
+                    }
+                }
+                if (terminal) {
+                    break;
+                }
+                List<List<Move>> jointMoves = prover.getLegalJointMoves(state);
+                state = prover.getNextState(state, jointMoves.get(random.nextInt(jointMoves.size())));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.ggp.base.test;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine.Operation;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachedStateMachineTests extends Assert {
+
+    @Test
+    public void testMergeSymmetricStates() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        InstrumentedStateMachine backing = new InstrumentedStateMachine(new CompiledPropNetStateMachine());
+        CachedStateMachine sm = new CachedStateMachine(backing);
+        sm.setMergeSymmetricStates(true);
+        sm.initialize(description);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+
+        Set<MachineState> states = new LinkedHashSet<MachineState>();
+        for (int i = 0; i < 20; i++) {
+            MachineState state = prover.getInitialState();
+            states.add(state);
+            while (!prover.isTerminal(state)) {
+                state = prover.getRandomNextState(state);
+                states.add(state);
+            }
+        }
+        for (MachineState state : states) {
+            assertEquals(prover.isTerminal(state), sm.isTerminal(state));
+            if (prover.isTerminal(state)) {
+                for (Role role : sm.getRoles()) {
+                    assertEquals(prover.getGoal(state, role), sm.getGoal(state, role));
+                }
+            }
+        }
+        // Symmetric states share their terminal status, and each state is
+        // canonicalized once at most.
+        long canonicalizations = backing.getHistogram(Operation.CANONICALIZE).getCount();
+        long terminalChecks = backing.getHistogram(Operation.IS_TERMINAL).getCount();
+        long goals = backing.getHistogram(Operation.GET_GOAL).getCount();
+        assertTrue(terminalChecks < states.size());
+        assertTrue(canonicalizations <= states.size());
+
+        // Looking the states up again hits the cache without canonicalizing.
+        for (MachineState state : states) {
+            if (sm.isTerminal(state)) {
+                for (Role role : sm.getRoles()) {
+                    sm.getGoal(state, role);
+                }
+            }
+        }
+        assertEquals(canonicalizations, backing.getHistogram(Operation.CANONICALIZE).getCount());
+        assertEquals(terminalChecks, backing.getHistogram(Operation.IS_TERMINAL).getCount());
+        assertEquals(goals, backing.getHistogram(Operation.GET_GOAL).getCount());
+    }
+}
@@ -0,0 +1,125 @@
+package org.ggp.base.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.cache.ClockCache;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClockCacheTests extends Assert {
+
+    @Test
+    public void testEviction() throws Exception {
+        ClockCache<Integer, String> cache = new ClockCache<Integer, String>(4, 1);
+        for (int i = 0; i < 4; i++) {
+            assertEquals("" + i, cache.putIfAbsent(i, "" + i));
+        }
+        assertEquals("0", cache.putIfAbsent(0, "other"));
+        assertEquals(4, cache.size());
+
+        // Everything has been referenced, so the hand goes round once and
+        // evicts the first entry; the next eviction skips the entry read since.
+        cache.putIfAbsent(4, "4");
+        assertNull(cache.get(0));
+        assertEquals("1", cache.get(1));
+        cache.putIfAbsent(5, "5");
+        assertEquals("1", cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(4, cache.size());
+        assertEquals(2, cache.getEvictions());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testGrowsToCapacity() throws Exception {
+        // The segment starts small, and must keep every entry as it grows.
+        ClockCache<Integer, String> cache = new ClockCache<Integer, String>(100, 1);
+        for (int i = 0; i < 100; i++) {
+            cache.putIfAbsent(i, "" + i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(0, cache.getEvictions());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("" + i, cache.get(i));
+        }
+        cache.putIfAbsent(100, "100");
+        assertEquals(100, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals("100", cache.get(100));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        ClockCache<Integer, String> cache = new ClockCache<Integer, String>(100, 1);
+        for (int i = 0; i < 50; i++) {
+            cache.putIfAbsent(i, "" + i);
+        }
+        cache.prune();
+        assertEquals(50, cache.size());
+        for (int i = 0; i < 10; i++) {
+            cache.get(i);
+        }
+        cache.prune();
+        assertEquals(10, cache.size());
+        assertEquals("5", cache.get(5));
+        assertNull(cache.get(20));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final ClockCache<Integer, Object> cache = new ClockCache<Integer, Object>(100000);
+        final Object[][] seen = new Object[4][2000];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < seen.length; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < seen[thread].length; i++) {
+                        seen[thread][i] = cache.putIfAbsent(i % 500, new Object());
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Nothing is evicted, so every thread got the same value for a key.
+        assertEquals(500, cache.size());
+        for (int t = 0; t < seen.length; t++) {
+            for (int i = 0; i < seen[t].length; i++) {
+                assertSame(cache.get(i % 500), seen[t][i]);
+            }
+        }
+    }
+
+    @Test
+    public void testBoundedStateMachine() throws Exception {
+        CachedStateMachine sm = new CachedStateMachine(new ProverStateMachine(), 16);
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        for (int i = 0; i < 10; i++) {
+            MachineState state = sm.getInitialState();
+            while (!sm.isTerminal(state)) {
+                assertEquals(prover.getLegalJointMoves(state), sm.getLegalJointMoves(state));
+                state = sm.getRandomNextState(state);
+            }
+            assertEquals(prover.getGoals(state), sm.getGoals(state));
+            assertTrue(sm.getCacheSize() <= sm.getCacheCapacity());
+        }
+        assertTrue(sm.getCacheHits() > 0);
+        assertTrue(sm.getCacheEvictions() > 0);
+    }
+}
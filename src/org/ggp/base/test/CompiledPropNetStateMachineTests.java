@@ -0,0 +1,175 @@
+package org.ggp.base.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.MachineStateInfo;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine.PropagationMode;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Plays random matches with a CompiledPropNetStateMachine and a
+ * ProverStateMachine side by side, checking that they agree at every step.
+ * Every test game is checked with each propagation mode of the compiled
+ * machine, and with copies of it played on threads of their own.
+ *
+ * The tests of the parts of the compiled machine live beside those parts;
+ * they use {@link #compareWithProver(StateMachine, StateMachine)} to check
+ * that a machine still plays the same game.
+ */
+@RunWith(Parameterized.class)
+public class CompiledPropNetStateMachineTests extends Assert {
+
+    static final int NUM_PLAYOUTS = 20;
+
+    private static final String[] GAME_KEYS = {"ticTacToe", "connectFour", "test_case_1a", "test_case_3c",
+            "test_case_2b", "test_case_3d", "test_case_5b", "simpleMutex", "parallelLights", "latchedButtons"};
+
+    @Parameters(name = "{0} {1}")
+    public static Collection<Object[]> getParameters() {
+        List<Object[]> parameters = new ArrayList<Object[]>();
+        for (String gameKey : GAME_KEYS) {
+            for (PropagationMode mode : PropagationMode.values()) {
+                parameters.add(new Object[] {gameKey, mode});
+            }
+        }
+        return parameters;
+    }
+
+    private final String gameKey;
+    private final PropagationMode mode;
+
+    public CompiledPropNetStateMachineTests(String gameKey, PropagationMode mode) {
+        this.gameKey = gameKey;
+        this.mode = mode;
+    }
+
+    @Test
+    public void testMatchesProver() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        StateMachine sm = new CompiledPropNetStateMachine(mode);
+        sm.initialize(description);
+        compareWithProver(prover, sm);
+    }
+
+    @Test
+    public void testCopiesOnThreads() throws Exception {
+        final List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine sm = new CompiledPropNetStateMachine(mode);
+        sm.initialize(description);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final StateMachine copy = sm.copy();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        StateMachine prover = new ProverStateMachine();
+                        prover.initialize(description);
+                        compareWithProver(prover, copy);
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), failures);
+    }
+
+    /** @return One uninitialized compiled machine for each propagation mode. */
+    static List<StateMachine> createStateMachines() {
+        List<StateMachine> machines = new ArrayList<StateMachine>();
+        for (PropagationMode mode : PropagationMode.values()) {
+            machines.add(new CompiledPropNetStateMachine(mode));
+        }
+        return machines;
+    }
+
+    /**
+     * Plays random matches with both machines, which must be initialized
+     * with the same game, and checks that they agree at every step.
+     */
+    static void compareWithProver(StateMachine prover, StateMachine sm) throws Exception {
+        assertEquals(prover.getRoles(), sm.getRoles());
+        assertEquals(prover.getInitialState(), sm.getInitialState());
+
+        Random random = new Random(42);
+        for (int i = 0; i < NUM_PLAYOUTS; i++) {
+            MachineState state = sm.getInitialState();
+            MachineState proverState = prover.getInitialState();
+            while (true) {
+                assertEquals(proverState, state);
+                assertEquals(state, proverState);
+                assertEquals(proverState.hashCode(), state.hashCode());
+                assertEquals(state, sm.getMachineStateFromSentenceList(proverState.getContents()));
+                compareStateInfo(prover, proverState, sm.getStateInfo(state));
+                assertEquals(prover.isTerminal(proverState), sm.isTerminal(state));
+                if (sm.isTerminal(state)) {
+                    assertEquals(prover.getGoals(proverState), sm.getGoals(state));
+                    break;
+                }
+                List<Move> jointMove = new ArrayList<Move>();
+                int[] jointMoveIds = new int[sm.getRoles().size()];
+                for (Role role : sm.getRoles()) {
+                    List<Move> legals = sm.getLegalMoves(state, role);
+                    assertEquals(new HashSet<Move>(prover.getLegalMoves(proverState, role)), new HashSet<Move>(legals));
+                    int[] legalIds = sm.getLegalMoveIds(state, role);
+                    List<Move> movesFromIds = new ArrayList<Move>();
+                    for (int id : legalIds) {
+                        Move move = sm.getMoveFromId(role, id);
+                        assertEquals(id, sm.getMoveId(role, move));
+                        movesFromIds.add(move);
+                    }
+                    assertEquals(new HashSet<Move>(legals), new HashSet<Move>(movesFromIds));
+                    int choice = random.nextInt(legals.size());
+                    jointMove.add(movesFromIds.get(choice));
+                    jointMoveIds[sm.getRoleIndices().get(role)] = legalIds[choice];
+                }
+                // Alternate between playing moves as Moves and as ids.
+                if (i % 2 == 0) {
+                    state = sm.getNextState(state, jointMove);
+                } else {
+                    state = sm.getNextState(state, jointMoveIds);
+                }
+                proverState = prover.getNextState(proverState, jointMove);
+            }
+        }
+    }
+
+    private static void compareStateInfo(StateMachine prover, MachineState proverState, MachineStateInfo info) throws Exception {
+        assertEquals(prover.isTerminal(proverState), info.isTerminal());
+        if (info.isTerminal()) {
+            assertEquals(prover.getGoals(proverState), info.getGoals());
+        } else {
+            for (int r = 0; r < prover.getRoles().size(); r++) {
+                List<Move> legals = prover.getLegalMoves(proverState, prover.getRoles().get(r));
+                assertEquals(new HashSet<Move>(legals), new HashSet<Move>(info.getLegalMoves(r)));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.ggp.base.test;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledPropNetTests extends Assert {
+
+    @Test
+    public void testRenumbering() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3d"}) {
+            CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+            sm.initialize(new TestGameRepository().getGame(gameKey).getRules());
+            CompiledPropNet net = sm.getPropNet();
+            // The bases come first, and the ordering is a sweep through
+            // increasing ids, each reading only smaller ones.
+            for (int i = 0; i < net.getBasePropositions().length; i++) {
+                assertEquals(i, net.getBasePropositions()[i]);
+            }
+            int[] ordering = net.getOrdering();
+            for (int i = 0; i < ordering.length; i++) {
+                assertEquals(net.getNumComponents() - ordering.length + i, ordering[i]);
+                for (int j = net.getInputOffsets()[ordering[i]]; j < net.getInputOffsets()[ordering[i] + 1]; j++) {
+                    assertTrue(net.getInputs()[j] < ordering[i]);
+                }
+            }
+            // Renumbering again keeps the ids.
+            assertArrayEquals(net.getInputs(), net.renumbered().getInputs());
+        }
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        PropNet propNet = OptimizingPropNetFactory.create(new TestGameRepository().getGame("ticTacToe").getRules());
+        int size = propNet.getSize();
+        int numBases = propNet.getBasePropositions().size();
+        Component component = propNet.getComponents().iterator().next();
+        CompiledPropNet net = propNet.freeze();
+        assertEquals(size, net.getNumComponents());
+        assertEquals(numBases, net.getBasePropositions().length);
+
+        // The mutable graph is gone, and stays gone.
+        assertTrue(propNet.isFrozen());
+        assertEquals(0, propNet.getSize());
+        assertTrue(component.getInputs().isEmpty() && component.getOutputs().isEmpty());
+        try {
+            propNet.addComponent(new Or());
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+}
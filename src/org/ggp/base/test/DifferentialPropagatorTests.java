@@ -0,0 +1,62 @@
+package org.ggp.base.test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.DifferentialPropagator;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DifferentialPropagatorTests extends Assert {
+
+    @Test
+    public void testEvaluatesEachComponentOnce() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3d"}) {
+            CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+            sm.initialize(new TestGameRepository().getGame(gameKey).getRules());
+            CompiledPropNet net = sm.getPropNet();
+            long[] values = net.newValues();
+            net.propagate(values);
+            DifferentialPropagator propagator = new DifferentialPropagator(net, values);
+
+            Random random = new Random(42);
+            for (int i = 0; i < 200; i++) {
+                long[] before = values.clone();
+                for (int id : net.getBasePropositions()) {
+                    if (random.nextInt(4) == 0) {
+                        propagator.set(id, !CompiledPropNet.get(values, id));
+                    }
+                }
+                for (int id : net.getInputPropositions()) {
+                    propagator.set(id, random.nextBoolean());
+                }
+                long evaluations = propagator.getNumEvaluations();
+                propagator.propagate();
+
+                // The same values as a full propagation.
+                long[] expected = values.clone();
+                net.propagate(expected);
+                assertArrayEquals(expected, values);
+
+                // Exactly the computed outputs of the components that
+                // changed are evaluated, each of them once.
+                Set<Integer> affected = new HashSet<Integer>();
+                for (int id = 0; id < net.getNumComponents(); id++) {
+                    if (CompiledPropNet.get(before, id) != CompiledPropNet.get(values, id)) {
+                        for (int j = net.getOutputOffsets()[id]; j < net.getOutputOffsets()[id + 1]; j++) {
+                            int output = net.getOutputs()[j];
+                            if (!CompiledPropNet.isSource(net.getType(output))) {
+                                affected.add(output);
+                            }
+                        }
+                    }
+                }
+                assertEquals(affected.size(), propagator.getNumEvaluations() - evaluations);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.ggp.base.test;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.factory.exceptions.PropNetTooLargeException;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FailsafeStateMachineTests extends Assert {
+
+    private final List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+
+    @Test
+    public void testComponentBudget() throws Exception {
+        CompiledPropNetStateMachine propNetMachine = new CompiledPropNetStateMachine();
+        propNetMachine.setMaxComponents(10);
+        try {
+            propNetMachine.initialize(description);
+            fail("Expected the propnet to be too large");
+        } catch (PropNetTooLargeException e) {
+            assertEquals(10, e.getMaxComponents());
+        }
+
+        propNetMachine = new CompiledPropNetStateMachine();
+        propNetMachine.setMaxComponents(10);
+        FailsafeStateMachine sm = new FailsafeStateMachine(propNetMachine);
+        sm.initialize(description);
+        assertTrue(sm.getBackingMachine() instanceof ProverStateMachine);
+    }
+
+    @Test
+    public void testHeapBudget() throws Exception {
+        // No heap to spare, so the propnet is given up on straight away.
+        FailsafeStateMachine sm = new FailsafeStateMachine(new CompiledPropNetStateMachine(), 60000, 0.0);
+        sm.initialize(description);
+        assertTrue(sm.getBackingMachine() instanceof ProverStateMachine);
+        Thread.sleep(2000);
+        sm.doPerMoveWork();
+        assertTrue(sm.getBackingMachine() instanceof ProverStateMachine);
+    }
+
+    @Test
+    public void testSwitchToPropNetWhenReady() throws Exception {
+        // No time to wait, so the prover is used until the propnet is ready.
+        FailsafeStateMachine sm = new FailsafeStateMachine(new CompiledPropNetStateMachine(), 0, 1.0);
+        sm.initialize(description);
+        assertTrue(sm.getBackingMachine() instanceof ProverStateMachine);
+
+        // States from the prover are still understood after switching.
+        MachineState state = sm.getRandomNextState(sm.getInitialState());
+        List<Role> roles = sm.getRoles();
+        long deadline = System.currentTimeMillis() + 60000;
+        while (sm.getBackingMachine() instanceof ProverStateMachine && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            sm.doPerMoveWork();
+        }
+        assertTrue(sm.getBackingMachine() instanceof CompiledPropNetStateMachine);
+
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        assertEquals(prover.getRoles(), roles);
+        assertEquals(prover.getInitialState(), sm.getInitialState());
+        for (Role role : roles) {
+            assertEquals(new HashSet<Move>(prover.getLegalMoves(state, role)), new HashSet<Move>(sm.getLegalMoves(state, role)));
+        }
+        for (int i = 0; i < 10; i++) {
+            MachineState terminal = sm.performDepthCharge(state, null);
+            assertTrue(prover.isTerminal(terminal));
+            assertEquals(prover.getGoals(terminal), sm.getGoals(terminal));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.ggp.base.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.scrambler.GameFingerprint;
+import org.ggp.base.util.gdl.scrambler.GdlScrambler;
+import org.ggp.base.util.gdl.scrambler.MappingGdlScrambler;
+import org.ggp.base.util.gdl.transforms.CommonTransforms;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GameFingerprintTests extends Assert {
+    private final TestGameRepository repository = new TestGameRepository();
+
+    @Test
+    public void testScrambledGamesMatch() throws Exception {
+        for (String gameKey : repository.getGameKeys()) {
+            List<Gdl> description = repository.getGame(gameKey).getRules();
+            GameFingerprint fingerprint = GameFingerprint.compute(description);
+            for (int seed = 0; seed < 10; seed++) {
+                GdlScrambler scrambler = new MappingGdlScrambler(new Random(seed));
+                List<Gdl> scrambled = scramble(scrambler, description, new Random(seed));
+                GameFingerprint scrambledFingerprint = GameFingerprint.compute(scrambled);
+                assertEquals(gameKey, fingerprint.getHash(), scrambledFingerprint.getHash());
+                assertEquals(gameKey, fingerprint.getCanonicalDescription(), scrambledFingerprint.getCanonicalDescription());
+
+                // Going through the canonical names must turn the rules into
+                // the scrambled rules, though interchangeable constants may
+                // be swapped.
+                Map<GdlConstant, GdlConstant> mapping = new HashMap<GdlConstant, GdlConstant>();
+                for (Map.Entry<GdlConstant, GdlConstant> entry : fingerprint.getCanonicalMapping().entrySet()) {
+                    mapping.put(entry.getKey(), scrambledFingerprint.getInverseMapping().get(entry.getValue()));
+                }
+                Set<Gdl> mapped = new HashSet<Gdl>();
+                for (Gdl gdl : description) {
+                    mapped.add(renameVariables(CommonTransforms.replaceConstants(gdl, mapping)));
+                }
+                Set<Gdl> expected = new HashSet<Gdl>();
+                for (Gdl gdl : scrambled) {
+                    expected.add(renameVariables(gdl));
+                }
+                assertEquals(gameKey, expected, mapped);
+            }
+        }
+    }
+
+    @Test
+    public void testDifferentGamesDiffer() throws Exception {
+        Map<String, String> gamesByHash = new HashMap<String, String>();
+        for (String gameKey : repository.getGameKeys()) {
+            String hash = GameFingerprint.compute(repository.getGame(gameKey).getRules()).getHash();
+            assertNull(gameKey + " has the same fingerprint as " + gamesByHash.get(hash), gamesByHash.put(hash, gameKey));
+        }
+    }
+
+    @Test
+    public void testChangedRuleDiffers() throws Exception {
+        List<Gdl> description = repository.getGame("ticTacToe").getRules();
+        List<Gdl> changed = new ArrayList<Gdl>(description);
+        changed.remove(changed.size() - 1);
+        assertFalse(GameFingerprint.compute(description).getHash().equals(GameFingerprint.compute(changed).getHash()));
+    }
+
+    private static Gdl renameVariables(Gdl gdl) {
+        if (!(gdl instanceof GdlRule)) {
+            return gdl;
+        }
+        Map<GdlVariable, GdlTerm> renaming = new HashMap<GdlVariable, GdlTerm>();
+        for (GdlVariable variable : GdlUtils.getVariables(gdl)) {
+            renaming.put(variable, GdlPool.getVariable("?x" + renaming.size()));
+        }
+        return CommonTransforms.replaceVariables((GdlRule) gdl, renaming);
+    }
+
+    /**
+     * Scrambles the names in the rules, and shuffles their order if given
+     * a Random.
+     */
+    static List<Gdl> scramble(GdlScrambler scrambler, List<Gdl> description, Random random) throws Exception {
+        List<Gdl> scrambled = new ArrayList<Gdl>();
+        for (Gdl gdl : description) {
+            scrambled.add(GdlFactory.create(scrambler.scramble(gdl)));
+        }
+        if (random != null) {
+            Collections.shuffle(scrambled, random);
+        }
+        return scrambled;
+    }
+}
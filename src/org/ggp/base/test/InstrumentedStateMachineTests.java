@@ -0,0 +1,75 @@
+package org.ggp.base.test;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine.Operation;
+import org.ggp.base.util.statemachine.instrumented.LatencyHistogram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InstrumentedStateMachineTests extends Assert {
+
+    @Test
+    public void testHistogramPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxNanos());
+        assertEquals(500500.0, histogram.getMeanNanos(), 1e-9);
+        // Percentiles are within the bucket width of about 3%.
+        assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 32);
+        assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 32);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+        // Short durations are counted exactly.
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(7, 3);
+        assertEquals(7, small.getValueAtPercentile(50));
+        assertEquals(21, small.getTotalNanos());
+
+        histogram.add(small);
+        assertEquals(1003, histogram.getCount());
+        assertEquals(7, histogram.getValueAtPercentile(0.1));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void testCountsCalls() throws Exception {
+        InstrumentedStateMachine sm = new InstrumentedStateMachine(new ProverStateMachine());
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState state = sm.getInitialState();
+        int moves = 0;
+        while (!sm.isTerminal(state)) {
+            for (Role role : sm.getRoles()) {
+                sm.getLegalMoves(state, role);
+            }
+            state = sm.getNextState(state, sm.getRandomJointMove(state));
+            moves++;
+        }
+        sm.getGoals(state);
+        assertEquals(moves + 1, sm.getHistogram(Operation.IS_TERMINAL).getCount());
+        assertEquals(moves, sm.getHistogram(Operation.GET_NEXT_STATE).getCount());
+        assertEquals(2 * moves, sm.getHistogram(Operation.GET_LEGAL_MOVES).getCount());
+        assertEquals(moves, sm.getHistogram(Operation.GET_STATE_INFO).getCount());
+        assertEquals(2, sm.getHistogram(Operation.GET_GOAL).getCount());
+        assertTrue(sm.getHistogram(Operation.GET_NEXT_STATE).getTotalNanos() > 0);
+
+        // Copies count their calls in the same histograms.
+        StateMachine copy = sm.copy();
+        copy.performDepthCharges(copy.getInitialState(), 5, Long.MAX_VALUE);
+        assertEquals(5, sm.getHistogram(Operation.DEPTH_CHARGE).getCount());
+
+        sm.doPerMoveWork();
+        for (Operation operation : Operation.values()) {
+            assertEquals(0, sm.getHistogram(operation).getCount());
+        }
+    }
+}
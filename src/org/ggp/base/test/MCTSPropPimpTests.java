@@ -0,0 +1,56 @@
+package org.ggp.base.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.ggp.base.player.gamer.statemachine.sample.MCTSPropPimp;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine;
+import org.ggp.base.util.statemachine.instrumented.InstrumentedStateMachine.Operation;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MCTSPropPimpTests extends Assert {
+
+    @Test
+    public void testSearchWithTinyTable() throws Exception {
+        Game game = new TestGameRepository().getGame("ticTacToe");
+        File directory = Files.createTempDirectory("propnetcache").toFile();
+        try {
+            // Far too few entries for the tree, so most nodes are dropped.
+            MCTSPropPimp gamer = new MCTSPropPimp();
+            gamer.setTableEntries(16);
+            gamer.setPropNetCache(new PropNetCache(directory));
+            gamer.setMatch(new Match("tinyTable", -1, 10, 10, game));
+            gamer.setRoleName(GdlPool.getConstant("xplayer"));
+            gamer.metaGame(System.currentTimeMillis() + 10000);
+            StateMachine backingMachine = ((FailsafeStateMachine) gamer.getStateMachine()).getBackingMachine();
+            assertTrue(backingMachine instanceof InstrumentedStateMachine);
+
+            GdlTerm selection = gamer.selectMove(System.currentTimeMillis() + 3000);
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(game.getRules());
+            Role role = prover.getRoleFromConstant(GdlPool.getConstant("xplayer"));
+            assertTrue(prover.getLegalMoves(prover.getInitialState(), role).contains(prover.getMoveFromTerm(selection)));
+
+            // The search keeps running depth charges until its time is up,
+            // rather than getting stuck on a node with no children stored.
+            long numCharges = ((InstrumentedStateMachine) backingMachine).getHistogram(Operation.DEPTH_CHARGE).getCount();
+            assertTrue("only " + numCharges + " depth charges", numCharges > 1000);
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.ggp.base.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MachineStateInfoTests extends Assert {
+
+    @Test
+    public void testJointMovesOfInertRoles() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "simpleMutex", "test_case_2b"}) {
+            List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(description);
+            StateMachine sm = new CompiledPropNetStateMachine();
+            sm.initialize(description);
+            List<Role> roles = sm.getRoles();
+            int numTurnTaking = 0;
+            for (int i = 0; i < 5; i++) {
+                MachineState state = sm.getInitialState();
+                while (!sm.isTerminal(state)) {
+                    List<List<Move>> legals = new ArrayList<List<Move>>();
+                    for (Role role : roles) {
+                        legals.add(sm.getLegalMoves(state, role));
+                    }
+                    int mover = sm.getStateInfo(state).getMover(-1);
+                    if (mover >= 0) {
+                        numTurnTaking++;
+                    }
+                    for (StateMachine machine : Arrays.asList(sm, prover)) {
+                        assertEquals(mover, machine.getStateInfo(state).getMover(-1));
+                        assertEquals(crossProduct(legals, -1, null), new HashSet<List<Move>>(machine.getLegalJointMoves(state)));
+                        for (int r = 0; r < roles.size(); r++) {
+                            for (Move move : legals.get(r)) {
+                                assertEquals(crossProduct(legals, r, move), new HashSet<List<Move>>(machine.getLegalJointMoves(state, roles.get(r), move)));
+                                assertTrue(crossProduct(legals, r, move).contains(machine.getRandomJointMove(state, roles.get(r), move)));
+                            }
+                        }
+                        assertTrue(crossProduct(legals, -1, null).contains(machine.getRandomJointMove(state)));
+                    }
+                    state = sm.getRandomNextState(state);
+                }
+            }
+            if (gameKey.equals("ticTacToe") || gameKey.equals("connectFour")) {
+                assertTrue(numTurnTaking > 0);
+            }
+        }
+    }
+
+    /** The cross product of the legal moves, with the given role's move fixed if it is not -1. */
+    private static Set<List<Move>> crossProduct(List<List<Move>> legals, int fixedRole, Move fixedMove) {
+        Set<List<Move>> jointMoves = new HashSet<List<Move>>();
+        jointMoves.add(new ArrayList<Move>());
+        for (int r = 0; r < legals.size(); r++) {
+            List<Move> moves = (r == fixedRole) ? Collections.singletonList(fixedMove) : legals.get(r);
+            Set<List<Move>> extended = new HashSet<List<Move>>();
+            for (List<Move> partial : jointMoves) {
+                for (Move move : moves) {
+                    List<Move> jointMove = new ArrayList<Move>(partial);
+                    jointMove.add(move);
+                    extended.add(jointMove);
+                }
+            }
+            jointMoves = extended;
+        }
+        return jointMoves;
+    }
+}
@@ -0,0 +1,42 @@
+package org.ggp.base.test;
+
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.DepthChargeResults;
+import org.ggp.base.util.statemachine.ParallelDepthCharger;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelDepthChargerTests extends Assert {
+
+    @Test
+    public void testParallelDepthCharges() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        List<StateMachine> machines = CompiledPropNetStateMachineTests.createStateMachines();
+        machines.add(new CachedStateMachine(new ProverStateMachine()));
+        for (StateMachine sm : machines) {
+            sm.initialize(description);
+            int batchSize = sm.getDepthChargeBatchSize();
+            ParallelDepthCharger charger = new ParallelDepthCharger(sm, 3);
+            assertEquals(3, charger.getNumThreads());
+            int count = 3 * batchSize + 1;
+            DepthChargeResults results = charger.performDepthCharges(sm.getInitialState(), count, Long.MAX_VALUE);
+            // Every game of connect four hands out 100 points in all.
+            assertEquals(count, results.getNumCharges());
+            assertEquals(100L * count, results.getGoalSum(0) + results.getGoalSum(1));
+            assertTrue(results.getMinDepth() >= 7);
+            assertTrue(results.getMinDepth() <= results.getAverageDepth() && results.getAverageDepth() <= results.getMaxDepth());
+
+            // Past the deadline, each thread still runs its first batch.
+            results = charger.performDepthCharges(sm.getInitialState(), 100 * batchSize, 0);
+            assertEquals(3 * batchSize, results.getNumCharges());
+            results = sm.performDepthCharges(sm.getInitialState(), 100 * batchSize, 0);
+            assertEquals(batchSize, results.getNumCharges());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.ggp.base.test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.scrambler.MappingGdlScrambler;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetCacheTests extends Assert {
+
+    @Test
+    public void testPropNetCache() throws Exception {
+        File directory = Files.createTempDirectory("propnetcache").toFile();
+        try {
+            for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_2b"}) {
+                List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+                CompiledPropNetStateMachine built = new CompiledPropNetStateMachine();
+                built.setPropNetCache(new PropNetCache(directory));
+                built.initialize(description);
+                assertNotNull(new PropNetCache(directory).load(description));
+
+                // The rules in another order must hit the same entry.
+                List<Gdl> reversed = new ArrayList<Gdl>(description);
+                Collections.reverse(reversed);
+                assertEquals(PropNetCache.computeKey(description), PropNetCache.computeKey(reversed));
+
+                // So must a scrambled replay, with the propnet in its names.
+                List<Gdl> scrambled = GameFingerprintTests.scramble(new MappingGdlScrambler(new Random(1)), description, null);
+                assertNotNull(new PropNetCache(directory).load(scrambled));
+                StateMachine prover = new ProverStateMachine();
+                prover.initialize(scrambled);
+                for (StateMachine sm : CompiledPropNetStateMachineTests.createStateMachines()) {
+                    ((CompiledPropNetStateMachine) sm).setPropNetCache(new PropNetCache(directory));
+                    sm.initialize(scrambled);
+                    CompiledPropNetStateMachineTests.compareWithProver(prover, sm);
+                }
+                assertEquals(1, directory.listFiles().length);
+                directory.listFiles()[0].delete();
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testCorruptEntriesAreRebuilt() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        File directory = Files.createTempDirectory("propnetcache").toFile();
+        try {
+            CompiledPropNetStateMachine built = new CompiledPropNetStateMachine();
+            built.setPropNetCache(new PropNetCache(directory));
+            built.initialize(description);
+            File file = directory.listFiles()[0];
+            long length = file.length();
+
+            // Cut the entry short at various points, give the component
+            // count an impossible value, or refer to components that do not
+            // exist from the first link or the terminal proposition.
+            for (int corruption = 0; corruption < 6; corruption++) {
+                RandomAccessFile entry = new RandomAccessFile(file, "rw");
+                try {
+                    if (corruption < 3) {
+                        entry.setLength(length * corruption / 3 + 10);
+                    } else if (corruption == 3) {
+                        entry.seek(8);
+                        entry.writeInt(Integer.MAX_VALUE);
+                    } else if (corruption == 4) {
+                        entry.seek(8);
+                        int numComponents = entry.readInt();
+                        // Past the types, the input offsets and the length of the inputs.
+                        entry.seek(12 + numComponents + 4 + 4 * (numComponents + 1) + 4);
+                        entry.writeInt(numComponents);
+                    } else {
+                        entry.seek(length - 4);
+                        entry.writeInt(-2);
+                    }
+                } finally {
+                    entry.close();
+                }
+                assertNull(new PropNetCache(directory).load(description));
+
+                CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+                sm.setPropNetCache(new PropNetCache(directory));
+                sm.initialize(description);
+                assertEquals(prover.getInitialState(), sm.getInitialState());
+                assertEquals(length, file.length());
+                assertNotNull(new PropNetCache(directory).load(description));
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
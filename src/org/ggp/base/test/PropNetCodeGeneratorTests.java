@@ -0,0 +1,65 @@
+package org.ggp.base.test;
+
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNetCodeGenerator;
+import org.ggp.base.util.propnet.architecture.PropNetEvaluator;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetCodeGeneratorTests extends Assert {
+
+    @Test
+    public void testMatchesInterpreter() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3d"}) {
+            CompiledPropNet net = createPropNet(gameKey);
+            PropNetEvaluator evaluator = new PropNetCodeGenerator().generate(net);
+            assertNotNull(gameKey, evaluator);
+
+            Random random = new Random(42);
+            for (int i = 0; i < 100; i++) {
+                long[] values = net.newValues();
+                for (int id : net.getBasePropositions()) {
+                    CompiledPropNet.set(values, id, random.nextBoolean());
+                }
+                for (int id : net.getInputPropositions()) {
+                    CompiledPropNet.set(values, id, random.nextBoolean());
+                }
+                long[] generatedValues = values.clone();
+                net.propagate(values);
+                evaluator.propagate(generatedValues);
+                assertArrayEquals(gameKey, values, generatedValues);
+            }
+        }
+    }
+
+    @Test
+    public void testComponentBudget() throws Exception {
+        CompiledPropNet net = createPropNet("ticTacToe");
+        assertNull(new PropNetCodeGenerator(net.getNumComponents() - 1, PropNetCodeGenerator.DEFAULT_TIMEOUT_MILLIS).generate(net));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CompiledPropNet net = createPropNet("connectFour");
+        assertNull(new PropNetCodeGenerator(PropNetCodeGenerator.DEFAULT_MAX_COMPONENTS, 0).generate(net));
+
+        // The abandoned compilation holds off new ones until it finishes,
+        // after which code can be generated again.
+        PropNetCodeGenerator generator = new PropNetCodeGenerator();
+        long deadline = System.currentTimeMillis() + 60000;
+        PropNetEvaluator evaluator = generator.generate(net);
+        while (evaluator == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            evaluator = generator.generate(net);
+        }
+        assertNotNull(evaluator);
+    }
+
+    private static CompiledPropNet createPropNet(String gameKey) throws Exception {
+        return OptimizingPropNetFactory.create(new TestGameRepository().getGame(gameKey).getRules()).freeze();
+    }
+}
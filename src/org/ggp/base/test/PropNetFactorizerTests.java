@@ -0,0 +1,82 @@
+package org.ggp.base.test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.factory.PropNetFactorizer;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetFactorizerTests extends Assert {
+
+    @Test
+    public void testFactoring() throws Exception {
+        CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        assertEquals(1, countFactorsWithMoves(sm.getFactors()));
+
+        // One factor for each board, and one for the step counter.
+        sm.initialize(new TestGameRepository().getGame("parallelLights").getRules());
+        List<PropNetFactorizer.Factor> factors = sm.getFactors();
+        assertEquals(3, factors.size());
+        assertEquals(2, countFactorsWithMoves(factors));
+        Move noop = sm.getMoveFromTerm(GdlPool.getConstant("noop"));
+        for (PropNetFactorizer.Factor factor : factors) {
+            assertEquals(Collections.singleton(noop), factor.getFreeMoves(0));
+            if (!factor.hasMoves()) {
+                continue;
+            }
+            assertEquals(3, factor.getBaseIndices().length);
+            assertEquals(3, factor.getMoves(0).size());
+
+            // Searching a factor never changes the bases of another factor
+            // with moves.
+            StateMachine factorMachine = new FactorStateMachine(sm, factor);
+            Set<GdlSentence> otherBases = new HashSet<GdlSentence>();
+            for (PropNetFactorizer.Factor other : factors) {
+                if (other != factor && other.hasMoves()) {
+                    for (int index : other.getBaseIndices()) {
+                        otherBases.add(sm.getPropNet().getBaseNames()[index]);
+                    }
+                }
+            }
+            for (int i = 0; i < CompiledPropNetStateMachineTests.NUM_PLAYOUTS; i++) {
+                // Start from a state where the other board may have lights on.
+                MachineState state = sm.getRandomNextState(sm.getRandomNextState(sm.getInitialState()));
+                while (!factorMachine.isTerminal(state)) {
+                    List<Move> legals = factorMachine.getLegalMoves(state, sm.getRoles().get(0));
+                    assertEquals(4, legals.size());
+                    MachineState next = factorMachine.getRandomNextState(state);
+                    assertEquals(onlyBases(state, otherBases), onlyBases(next, otherBases));
+                    state = next;
+                }
+            }
+        }
+    }
+
+    private static int countFactorsWithMoves(List<PropNetFactorizer.Factor> factors) {
+        int count = 0;
+        for (PropNetFactorizer.Factor factor : factors) {
+            if (factor.hasMoves()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Set<GdlSentence> onlyBases(MachineState state, Set<GdlSentence> bases) {
+        Set<GdlSentence> contents = new HashSet<GdlSentence>(state.getContents());
+        contents.retainAll(bases);
+        return contents;
+    }
+}
@@ -0,0 +1,103 @@
+package org.ggp.base.test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.factory.PropNetLatchAnalyzer;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetLatchAnalyzerTests extends Assert {
+
+    @Test
+    public void testLatches() throws Exception {
+        CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("latchedButtons").getRules());
+        PropNetLatchAnalyzer latches = sm.getLatches();
+        GdlSentence[] baseNames = sm.getPropNet().getBaseNames();
+        Set<String> goalLatches = new HashSet<String>();
+        for (int index : latches.getGoalLatches()) {
+            goalLatches.add(baseNames[index].toString());
+        }
+        for (int i = 0; i < baseNames.length; i++) {
+            boolean pressed = baseNames[i].toString().contains("pressed");
+            assertEquals(baseNames[i].toString(), pressed, latches.isPositiveLatch(i));
+            // Nothing leads back to the first step.
+            boolean firstStep = baseNames[i].toString().equals("( true ( step 0 ) )");
+            assertEquals(baseNames[i].toString(), firstStep, latches.isNegativeLatch(i));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("( true ( pressed red 2 ) )", "( true ( pressed red 3 ) )",
+                "( true ( pressed blue 2 ) )", "( true ( pressed blue 3 ) )")), goalLatches);
+    }
+
+    @Test
+    public void testFixedOutcomes() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "latchedButtons"}) {
+            StateMachine sm = new CompiledPropNetStateMachine();
+            sm.initialize(new TestGameRepository().getGame(gameKey).getRules());
+            int numFixed = 0;
+            for (int i = 0; i < CompiledPropNetStateMachineTests.NUM_PLAYOUTS; i++) {
+                MachineState state = sm.getInitialState();
+                while (!sm.isTerminal(state)) {
+                    // A fixed outcome must be the outcome of every way the game can end.
+                    if (sm.isOutcomeFixed(state)) {
+                        numFixed++;
+                        for (int j = 0; j < 5; j++) {
+                            assertEquals(gameKey, sm.getGoals(state), sm.getGoals(sm.performDepthCharge(state, null)));
+                        }
+                    }
+                    state = sm.getRandomNextState(state);
+                }
+            }
+            if (gameKey.equals("latchedButtons")) {
+                assertTrue(numFixed > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testStopAtFixedOutcome() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("latchedButtons").getRules();
+        StateMachine sm = new CompiledPropNetStateMachine();
+        sm.initialize(description);
+        sm.setStopAtFixedOutcome(true);
+        Move press3 = sm.getMoveFromTerm(GdlPool.getRelation(GdlPool.getConstant("press"), new GdlTerm[] {GdlPool.getConstant("3")}).toTerm());
+        MachineState fixed = sm.getNextState(sm.getInitialState(), Arrays.asList(press3, press3));
+        assertTrue(sm.isOutcomeFixed(fixed));
+        assertFalse(sm.isTerminal(fixed));
+
+        // Both the single and the bit-parallel depth charges stop right away.
+        int[] depth = new int[1];
+        assertEquals(fixed, sm.performDepthCharge(fixed, depth));
+        assertEquals(0, depth[0]);
+        int count = 70;
+        int[][] goals = new int[count][];
+        int[] depths = new int[count];
+        sm.performDepthCharges(fixed, count, goals, depths);
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, depths[i]);
+            assertEquals(100, goals[i][0]);
+            assertEquals(100, goals[i][1]);
+        }
+
+        // From the start, charges often stop before the eight steps are up.
+        sm.performDepthCharges(sm.getInitialState(), count, goals, depths);
+        int totalDepth = 0;
+        for (int i = 0; i < count; i++) {
+            assertTrue(depths[i] <= 8);
+            totalDepth += depths[i];
+        }
+        assertTrue(totalDepth < 8 * count);
+    }
+}
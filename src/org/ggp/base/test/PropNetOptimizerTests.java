@@ -0,0 +1,129 @@
+package org.ggp.base.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer.Pass;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that each pass of the optimizer, and all of them together, leave a
+ * propnet that computes the same legal moves, goals, terminality and next
+ * state as the unoptimized one, in states along random matches.
+ */
+public class PropNetOptimizerTests extends Assert {
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        checkOptimizer("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        checkOptimizer("connectFour");
+    }
+
+    @Test
+    public void testCase3D() throws Exception {
+        checkOptimizer("test_case_3d");
+    }
+
+    @Test
+    public void testLatchedButtons() throws Exception {
+        checkOptimizer("latchedButtons");
+    }
+
+    private void checkOptimizer(String gameKey) throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        CompiledPropNet reference = OptimizingPropNetFactory.create(description).freeze();
+
+        List<Pass[]> configurations = new ArrayList<Pass[]>();
+        for (Pass pass : Pass.values()) {
+            configurations.add(new Pass[] {pass});
+        }
+        configurations.add(Pass.values());
+        for (Pass[] passes : configurations) {
+            PropNet propNet = OptimizingPropNetFactory.create(description);
+            new PropNetOptimizer(passes).optimize(propNet);
+            CompiledPropNet optimized = propNet.freeze();
+            assertTrue(optimized.getNumComponents() <= reference.getNumComponents());
+            if (passes.length > 1) {
+                assertTrue(optimized.getNumComponents() < reference.getNumComponents());
+            }
+
+            for (int i = 0; i < CompiledPropNetStateMachineTests.NUM_PLAYOUTS; i++) {
+                MachineState state = prover.getInitialState();
+                while (!prover.isTerminal(state)) {
+                    List<Move> jointMove = prover.getRandomJointMove(state);
+                    assertEquals(gameKey + " " + passes[0], evaluate(reference, state, jointMove), evaluate(optimized, state, jointMove));
+                    state = prover.getNextState(state, jointMove);
+                }
+                List<Move> noMoves = new ArrayList<Move>();
+                assertEquals(gameKey + " " + passes[0], evaluate(reference, state, noMoves), evaluate(optimized, state, noMoves));
+            }
+        }
+    }
+
+    /**
+     * Propagates the given state and joint move through the propnet, and
+     * returns everything a state machine would read from it, by name.
+     */
+    private static Set<String> evaluate(CompiledPropNet net, MachineState state, List<Move> jointMove) {
+        long[] values = net.newValues();
+        GdlSentence[] baseNames = net.getBaseNames();
+        int[] bases = net.getBasePropositions();
+        for (int i = 0; i < bases.length; i++) {
+            CompiledPropNet.set(values, bases[i], state.getContents().contains(baseNames[i]));
+        }
+        for (int r = 0; r < jointMove.size(); r++) {
+            Integer input = net.getInputProposition(r, jointMove.get(r));
+            if (input != null) {
+                CompiledPropNet.set(values, input, true);
+            }
+        }
+        net.propagate(values);
+
+        Set<String> facts = new HashSet<String>();
+        if (net.getTerminalProposition() != -1 && CompiledPropNet.get(values, net.getTerminalProposition())) {
+            facts.add("terminal");
+        }
+        List<Role> roles = net.getRoles();
+        for (int r = 0; r < roles.size(); r++) {
+            for (int j = 0; j < net.getLegalPropositions()[r].length; j++) {
+                if (CompiledPropNet.get(values, net.getLegalPropositions()[r][j])) {
+                    facts.add("legal " + roles.get(r) + " " + net.getLegalMoves()[r][j]);
+                }
+            }
+            for (int j = 0; j < net.getGoalPropositions()[r].length; j++) {
+                if (CompiledPropNet.get(values, net.getGoalPropositions()[r][j])) {
+                    facts.add("goal " + roles.get(r) + " " + net.getGoalValues()[r][j]);
+                }
+            }
+        }
+        if (!jointMove.isEmpty()) {
+            for (int i = 0; i < bases.length; i++) {
+                if (CompiledPropNet.get(values, net.getBaseTransitions()[i])) {
+                    facts.add("next " + baseNames[i]);
+                }
+            }
+        }
+        return facts;
+    }
+}
@@ -0,0 +1,55 @@
+package org.ggp.base.test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetSymmetryDetectorTests extends Assert {
+
+    @Test
+    public void testSymmetries() throws Exception {
+        CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        // The rotations and reflections of the board.
+        assertEquals(8, sm.getSymmetries().getNumSymmetries());
+        GdlSentence[] baseNames = sm.getPropNet().getBaseNames();
+        List<Role> roles = sm.getRoles();
+        for (int i = 0; i < CompiledPropNetStateMachineTests.NUM_PLAYOUTS; i++) {
+            MachineState state = sm.getInitialState();
+            while (true) {
+                MachineState canonical = sm.canonicalize(state);
+                assertEquals(canonical, sm.canonicalize(canonical));
+                assertEquals(sm.isTerminal(state), sm.isTerminal(canonical));
+                for (int[] permutation : sm.getSymmetries().getBasePermutations()) {
+                    Set<GdlSentence> image = new HashSet<GdlSentence>();
+                    for (int b = 0; b < baseNames.length; b++) {
+                        if (state.getContents().contains(baseNames[b])) {
+                            image.add(baseNames[permutation[b]]);
+                        }
+                    }
+                    assertEquals(canonical, sm.canonicalize(new MachineState(image)));
+                }
+                if (sm.isTerminal(state)) {
+                    for (Role role : roles) {
+                        assertEquals(sm.getGoal(state, role), sm.getGoal(canonical, role));
+                    }
+                    break;
+                }
+                state = sm.getRandomNextState(state);
+            }
+        }
+
+        // Connect four is the same game in a mirror.
+        sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        assertTrue(sm.getSymmetries().getNumSymmetries() >= 2);
+    }
+}
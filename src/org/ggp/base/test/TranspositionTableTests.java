@@ -0,0 +1,71 @@
+package org.ggp.base.test;
+
+import org.ggp.base.util.statemachine.cache.TranspositionTable;
+import org.ggp.base.util.statemachine.cache.TranspositionTable.ReplacementPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TranspositionTableTests extends Assert {
+
+    // Keys that all have the same home slot in a table of 16 entries.
+    private static long collidingKey(int i) {
+        return ((long) i << 32) | i;
+    }
+
+    @Test
+    public void testStoreAndProbe() throws Exception {
+        TranspositionTable table = new TranspositionTable(1000, ReplacementPolicy.ALWAYS_REPLACE);
+        assertEquals(1024, table.getCapacity());
+        assertEquals(-1, table.probe(42));
+        int slot = table.store(42, 3);
+        table.setValue(slot, 70);
+        table.setBound(slot, TranspositionTable.LOWER_BOUND);
+        assertEquals(-1, table.getBestMove(slot));
+
+        slot = table.probe(42);
+        assertEquals(70, table.getValue(slot));
+        assertEquals(TranspositionTable.LOWER_BOUND, table.getBound(slot));
+        assertEquals(3, table.getDepth(slot));
+        // Storing the same key again keeps the entry.
+        assertEquals(slot, table.store(42, 5));
+        assertEquals(70, table.getValue(slot));
+        assertEquals(1, table.size());
+        assertEquals(1, table.getHits());
+        assertEquals(1, table.getMisses());
+
+        table.clear();
+        assertEquals(-1, table.probe(42));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testAlwaysReplace() throws Exception {
+        TranspositionTable table = new TranspositionTable(16, ReplacementPolicy.ALWAYS_REPLACE);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(table.store(collidingKey(i), 100) != -1);
+        }
+        assertEquals(4, table.size());
+        assertEquals(4, table.getReplacements());
+        assertTrue(table.probe(collidingKey(7)) != -1);
+    }
+
+    @Test
+    public void testDepthPreferred() throws Exception {
+        TranspositionTable table = new TranspositionTable(16, ReplacementPolicy.DEPTH_PREFERRED);
+        for (int i = 0; i < 4; i++) {
+            table.store(collidingKey(i), 10 + i);
+        }
+        // Shallower entries are dropped; deeper ones take the shallowest slot.
+        assertEquals(-1, table.store(collidingKey(4), 5));
+        assertEquals(-1, table.probe(collidingKey(4)));
+        assertTrue(table.store(collidingKey(5), 20) != -1);
+        assertEquals(-1, table.probe(collidingKey(0)));
+        assertTrue(table.probe(collidingKey(1)) != -1);
+
+        // Entries from an earlier search make way for any new one.
+        table.newSearch();
+        assertTrue(table.store(collidingKey(6), 0) != -1);
+        assertTrue(table.probe(collidingKey(6)) != -1);
+        assertEquals(4, table.size());
+    }
+}
@@ -0,0 +1,60 @@
+package org.ggp.base.test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.XorShiftRandom;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class XorShiftRandomTests extends Assert {
+
+    @Test
+    public void testSeededDepthCharges() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        List<StateMachine> machines = CompiledPropNetStateMachineTests.createStateMachines();
+        machines.add(new CachedStateMachine(new ProverStateMachine()));
+        for (StateMachine sm : machines) {
+            sm.initialize(description);
+            int[][] goals = new int[64][];
+            int[] depths = new int[64];
+            int[][] otherGoals = new int[64][];
+            int[] otherDepths = new int[64];
+
+            // The same seed gives the same depth charges, and so do copies.
+            sm.setRandom(new XorShiftRandom(42));
+            sm.performDepthCharges(sm.getInitialState(), 64, goals, depths);
+            StateMachine copy = sm.copy();
+            sm.setRandom(new XorShiftRandom(42));
+            sm.performDepthCharges(sm.getInitialState(), 64, otherGoals, otherDepths);
+            assertArrayEquals(depths, otherDepths);
+            assertTrue(Arrays.deepEquals(goals, otherGoals));
+            StateMachine otherCopy = sm.copy();
+            copy.performDepthCharges(sm.getInitialState(), 64, goals, depths);
+            otherCopy.performDepthCharges(sm.getInitialState(), 64, otherGoals, otherDepths);
+            assertArrayEquals(depths, otherDepths);
+
+            // Another seed plays different ones.
+            sm.setRandom(new XorShiftRandom(43));
+            sm.performDepthCharges(sm.getInitialState(), 64, otherGoals, otherDepths);
+            assertFalse(Arrays.equals(depths, otherDepths));
+        }
+    }
+
+    @Test
+    public void testUniformInts() {
+        XorShiftRandom random = new XorShiftRandom(7);
+        int[] counts = new int[7];
+        for (int i = 0; i < 7000; i++) {
+            counts[random.nextInt(7)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+}
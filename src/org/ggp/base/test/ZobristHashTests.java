@@ -0,0 +1,52 @@
+package org.ggp.base.test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.ZobristHash;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZobristHashTests extends Assert {
+
+    @Test
+    public void testZobristHash() throws Exception {
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3d"}) {
+            List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(description);
+            CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+            sm.initialize(description);
+            // Every base has a key of its own, whatever its hash code.
+            Set<Long> keys = new HashSet<Long>();
+            for (GdlSentence base : sm.getPropNet().getBaseNames()) {
+                assertTrue(keys.add(ZobristHash.getKey(base)));
+                assertEquals(ZobristHash.getKey(base), ZobristHash.getKey(GdlPool.getRelation(GdlPool.getConstant("true"), base.getBody())));
+            }
+            for (int i = 0; i < CompiledPropNetStateMachineTests.NUM_PLAYOUTS; i++) {
+                MachineState state = sm.getInitialState();
+                while (true) {
+                    // Kept up to date from state to state, and the same as
+                    // computed from the sentences by any machine.
+                    MachineState proverState = new MachineState(state.getContents());
+                    assertEquals(ZobristHash.of(proverState), sm.getZobristHash(state));
+                    assertEquals(prover.getZobristHash(proverState), sm.getZobristHash(state));
+                    assertEquals(proverState.hashCode(), state.hashCode());
+                    if (sm.isTerminal(state)) {
+                        break;
+                    }
+                    state = sm.getRandomNextState(state);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package org.ggp.base.util.gdl.scrambler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.transforms.CommonTransforms;
+
+/**
+ * A GameFingerprint identifies a game independently of the names of its
+ * constants and variables, so that a game scrambled by {@link MappingGdlScrambler}
+ * has the same fingerprint as the original. Along with the fingerprint, it
+ * provides a mapping from the game's constants to canonical names, which lets
+ * anything computed for one version of the game (a compiled propnet, an
+ * opening book, ...) be stored under canonical names and used with another.
+ *
+ * The canonical names are found by color refinement over a graph of the
+ * rules: every sentence, term, rule and variable occurrence is a node, joined
+ * to its parts by edges labelled with their role (head, name, argument i),
+ * and every constant is a single node shared by all of its occurrences. Only
+ * keywords and numbers, which the scrambler leaves alone, start out with
+ * distinct colors. Colors are refined from the neighbors' colors until
+ * they are stable; constants left with the same color are then told apart
+ * one at a time, refining again after each, until every constant has its own
+ * color. The constants are named after the order of their colors.
+ *
+ * The fingerprint is the hash of the rules rewritten with the canonical names
+ * (and variables renamed in order of appearance), sorted. Two games with the
+ * same fingerprint are therefore the same game up to renaming. Breaking ties
+ * between constants depends on where they first appear in the rules, which
+ * does not matter when the tied constants are interchangeable, as they are
+ * in practice; when it does, the result is only a missed match.
+ */
+public final class GameFingerprint
+{
+	private static final int HEAD = 0;
+	private static final int NAME = 1;
+	/**
+	 * The i-th argument, conjunct or disjunct is labelled ARG + i. Keeping
+	 * the order makes the graph's symmetries exactly those of the text.
+	 */
+	private static final int ARG = 2;
+
+	private final String hash;
+	private final List<Gdl> canonicalDescription;
+	private final Map<GdlConstant, GdlConstant> canonicalMapping;
+	private final Map<GdlConstant, GdlConstant> inverseMapping;
+
+	private GameFingerprint(String hash, List<Gdl> canonicalDescription, Map<GdlConstant, GdlConstant> canonicalMapping)
+	{
+		this.hash = hash;
+		this.canonicalDescription = Collections.unmodifiableList(canonicalDescription);
+		this.canonicalMapping = Collections.unmodifiableMap(canonicalMapping);
+		Map<GdlConstant, GdlConstant> inverse = new HashMap<GdlConstant, GdlConstant>();
+		for (Map.Entry<GdlConstant, GdlConstant> entry : canonicalMapping.entrySet()) {
+			inverse.put(entry.getValue(), entry.getKey());
+		}
+		this.inverseMapping = Collections.unmodifiableMap(inverse);
+	}
+
+	public static GameFingerprint compute(List<Gdl> description)
+	{
+		RuleGraph graph = new RuleGraph();
+		for (Gdl gdl : description) {
+			graph.addRule(gdl);
+		}
+		int[] colors = graph.computeCanonicalColors();
+
+		// Name the scrambled constants in the order of their colors.
+		List<GdlConstant> constants = new ArrayList<GdlConstant>(graph.constantNodes.keySet());
+		final Map<GdlConstant, Integer> constantColors = new HashMap<GdlConstant, Integer>();
+		for (GdlConstant constant : constants) {
+			constantColors.put(constant, colors[graph.constantNodes.get(constant)]);
+		}
+		Collections.sort(constants, new Comparator<GdlConstant>() {
+			@Override
+			public int compare(GdlConstant a, GdlConstant b) {
+				return Integer.compare(constantColors.get(a), constantColors.get(b));
+			}
+		});
+		Map<GdlConstant, GdlConstant> mapping = new HashMap<GdlConstant, GdlConstant>();
+		for (GdlConstant constant : constants) {
+			if (isScrambled(constant)) {
+				mapping.put(constant, GdlPool.getConstant("c" + mapping.size()));
+			}
+		}
+
+		List<Gdl> canonical = new ArrayList<Gdl>(description.size());
+		final Map<Gdl, String> renderings = new HashMap<Gdl, String>();
+		for (Gdl gdl : description) {
+			Gdl renamed = renameVariables(CommonTransforms.replaceConstants(gdl, mapping));
+			canonical.add(renamed);
+			renderings.put(renamed, renamed.toString());
+		}
+		Collections.sort(canonical, new Comparator<Gdl>() {
+			@Override
+			public int compare(Gdl a, Gdl b) {
+				return renderings.get(a).compareTo(renderings.get(b));
+			}
+		});
+		StringBuilder rules = new StringBuilder();
+		for (Gdl gdl : canonical) {
+			rules.append(renderings.get(gdl)).append('\n');
+		}
+		return new GameFingerprint(BaseHashing.computeSHA1Hash(rules.toString()), canonical, mapping);
+	}
+
+	/**
+	 * Returns the fingerprint, as a hexadecimal string.
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+
+	/**
+	 * Returns the rules of the game with canonical names, sorted.
+	 */
+	public List<Gdl> getCanonicalDescription()
+	{
+		return canonicalDescription;
+	}
+
+	/**
+	 * Returns the canonical name of each of the game's constants. Keywords and
+	 * numbers are not renamed, and are not in the mapping.
+	 */
+	public Map<GdlConstant, GdlConstant> getCanonicalMapping()
+	{
+		return canonicalMapping;
+	}
+
+	/**
+	 * Returns the game's constant for each canonical name.
+	 */
+	public Map<GdlConstant, GdlConstant> getInverseMapping()
+	{
+		return inverseMapping;
+	}
+
+	/**
+	 * Keywords and numbers keep their names when a game is scrambled.
+	 */
+	private static boolean isScrambled(GdlConstant constant)
+	{
+		String value = constant.getValue();
+		if (GdlPool.KEYWORDS.contains(value.toLowerCase())) {
+			return false;
+		}
+		try {
+			Integer.parseInt(value);
+			return false;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	private static Gdl renameVariables(Gdl gdl)
+	{
+		if (!(gdl instanceof GdlRule)) {
+			return gdl;
+		}
+		Map<GdlVariable, GdlTerm> renaming = new HashMap<GdlVariable, GdlTerm>();
+		for (GdlVariable variable : GdlUtils.getVariables(gdl)) {
+			renaming.put(variable, GdlPool.getVariable("?v" + renaming.size()));
+		}
+		return CommonTransforms.replaceVariables((GdlRule) gdl, renaming);
+	}
+
+	/**
+	 * The graph of the rules that color refinement runs on.
+	 */
+	private static final class RuleGraph
+	{
+		private final List<String> labels = new ArrayList<String>();
+		private int[] edgeFrom = new int[64];
+		private int[] edgeTo = new int[64];
+		private int[] edgeLabel = new int[64];
+		private int numEdges = 0;
+		/** The node of every constant, in order of first appearance. */
+		private final Map<GdlConstant, Integer> constantNodes = new LinkedHashMap<GdlConstant, Integer>();
+		private final Map<GdlVariable, Integer> variableNodes = new HashMap<GdlVariable, Integer>();
+
+		public void addRule(Gdl gdl)
+		{
+			// Variables are local to a rule.
+			variableNodes.clear();
+			int root = addNode("root");
+			addEdge(root, visit(gdl), ARG);
+		}
+
+		private int addNode(String label)
+		{
+			labels.add(label);
+			return labels.size() - 1;
+		}
+
+		private void addEdge(int from, int to, int label)
+		{
+			if (numEdges + 2 > edgeFrom.length) {
+				edgeFrom = Arrays.copyOf(edgeFrom, 2 * edgeFrom.length);
+				edgeTo = Arrays.copyOf(edgeTo, 2 * edgeTo.length);
+				edgeLabel = Arrays.copyOf(edgeLabel, 2 * edgeLabel.length);
+			}
+			edgeFrom[numEdges] = from;
+			edgeTo[numEdges] = to;
+			edgeLabel[numEdges] = label;
+			numEdges++;
+			// The reverse edge gets a label of its own, so that parts and
+			// wholes are told apart.
+			edgeFrom[numEdges] = to;
+			edgeTo[numEdges] = from;
+			edgeLabel[numEdges] = -1 - label;
+			numEdges++;
+		}
+
+		private int visit(Gdl gdl)
+		{
+			if (gdl instanceof GdlConstant) {
+				GdlConstant constant = (GdlConstant) gdl;
+				Integer node = constantNodes.get(constant);
+				if (node == null) {
+					node = addNode(isScrambled(constant) ? "constant" : "keyword " + constant.getValue());
+					constantNodes.put(constant, node);
+				}
+				return node;
+			} else if (gdl instanceof GdlVariable) {
+				GdlVariable variable = (GdlVariable) gdl;
+				Integer node = variableNodes.get(variable);
+				if (node == null) {
+					node = addNode("variable");
+					variableNodes.put(variable, node);
+				}
+				return node;
+			} else if (gdl instanceof GdlProposition) {
+				int node = addNode("proposition");
+				addEdge(node, visit(((GdlProposition) gdl).getName()), NAME);
+				return node;
+			} else if (gdl instanceof GdlRelation) {
+				GdlRelation relation = (GdlRelation) gdl;
+				int node = addNode("relation " + relation.arity());
+				addEdge(node, visit(relation.getName()), NAME);
+				for (int i = 0; i < relation.arity(); i++) {
+					addEdge(node, visit(relation.get(i)), ARG + i);
+				}
+				return node;
+			} else if (gdl instanceof GdlFunction) {
+				GdlFunction function = (GdlFunction) gdl;
+				int node = addNode("function " + function.arity());
+				addEdge(node, visit(function.getName()), NAME);
+				for (int i = 0; i < function.arity(); i++) {
+					addEdge(node, visit(function.get(i)), ARG + i);
+				}
+				return node;
+			} else if (gdl instanceof GdlNot) {
+				int node = addNode("not");
+				addEdge(node, visit(((GdlNot) gdl).getBody()), ARG);
+				return node;
+			} else if (gdl instanceof GdlOr) {
+				GdlOr or = (GdlOr) gdl;
+				int node = addNode("or");
+				for (int i = 0; i < or.arity(); i++) {
+					addEdge(node, visit(or.get(i)), ARG + i);
+				}
+				return node;
+			} else if (gdl instanceof GdlDistinct) {
+				GdlDistinct distinct = (GdlDistinct) gdl;
+				int node = addNode("distinct");
+				addEdge(node, visit(distinct.getArg1()), ARG);
+				addEdge(node, visit(distinct.getArg2()), ARG + 1);
+				return node;
+			} else if (gdl instanceof GdlRule) {
+				GdlRule rule = (GdlRule) gdl;
+				int node = addNode("rule");
+				addEdge(node, visit(rule.getHead()), HEAD);
+				for (int i = 0; i < rule.arity(); i++) {
+					addEdge(node, visit(rule.get(i)), ARG + i);
+				}
+				return node;
+			}
+			throw new RuntimeException("Unforeseen Gdl subtype " + gdl.getClass().getSimpleName());
+		}
+
+		/**
+		 * Refines the colors until they are stable, then tells apart tied
+		 * scrambled constants one at a time until none are left.
+		 */
+		public int[] computeCanonicalColors()
+		{
+			int n = labels.size();
+			int[][] neighbors = new int[n][];
+			int[][] neighborLabels = new int[n][];
+			int[] degree = new int[n];
+			for (int e = 0; e < numEdges; e++) {
+				degree[edgeFrom[e]]++;
+			}
+			for (int v = 0; v < n; v++) {
+				neighbors[v] = new int[degree[v]];
+				neighborLabels[v] = new int[degree[v]];
+				degree[v] = 0;
+			}
+			for (int e = 0; e < numEdges; e++) {
+				int v = edgeFrom[e];
+				neighbors[v][degree[v]] = edgeTo[e];
+				neighborLabels[v][degree[v]] = edgeLabel[e];
+				degree[v]++;
+			}
+
+			List<String> distinctLabels = new ArrayList<String>(new TreeSet<String>(labels));
+			Map<String, Integer> labelColors = new HashMap<String, Integer>();
+			for (String label : distinctLabels) {
+				labelColors.put(label, labelColors.size());
+			}
+			int[] colors = new int[n];
+			for (int v = 0; v < n; v++) {
+				colors[v] = labelColors.get(labels.get(v));
+			}
+
+			int numColors = refine(colors, distinctLabels.size(), neighbors, neighborLabels);
+			while (true) {
+				int tied = findTiedConstant(colors);
+				if (tied == -1) {
+					return colors;
+				}
+				// Give the constant a color of its own, past every other.
+				colors[tied] = numColors;
+				numColors = refine(colors, numColors + 1, neighbors, neighborLabels);
+			}
+		}
+
+		/**
+		 * Returns the first-appearing scrambled constant in the lowest color
+		 * shared by more than one scrambled constant, or -1 if there is none.
+		 */
+		private int findTiedConstant(int[] colors)
+		{
+			Map<Integer, Integer> firstWithColor = new HashMap<Integer, Integer>();
+			int bestColor = Integer.MAX_VALUE;
+			int best = -1;
+			for (Map.Entry<GdlConstant, Integer> entry : constantNodes.entrySet()) {
+				if (!isScrambled(entry.getKey()))
+					continue;
+				int node = entry.getValue();
+				Integer first = firstWithColor.get(colors[node]);
+				if (first == null) {
+					firstWithColor.put(colors[node], node);
+				} else if (colors[node] < bestColor) {
+					bestColor = colors[node];
+					best = first;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Replaces every node's color with one for its color together with
+		 * the labels and colors of its neighbors, until that no longer
+		 * splits any color. New colors are numbered in the sorted order of
+		 * those signatures, which keeps the numbering independent of the
+		 * order of the nodes.
+		 *
+		 * @return The number of colors.
+		 */
+		private static int refine(int[] colors, int numColors, int[][] neighbors, int[][] neighborLabels)
+		{
+			int n = colors.length;
+			final long[][] signatures = new long[n][];
+			Integer[] order = new Integer[n];
+			while (true) {
+				for (int v = 0; v < n; v++) {
+					long[] signature = new long[neighbors[v].length + 1];
+					for (int j = 0; j < neighbors[v].length; j++) {
+						signature[j + 1] = ((long) neighborLabels[v][j] << 32) | colors[neighbors[v][j]];
+					}
+					Arrays.sort(signature, 1, signature.length);
+					signature[0] = colors[v];
+					signatures[v] = signature;
+					order[v] = v;
+				}
+				Comparator<Integer> bySignature = new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return compareSignatures(signatures[a], signatures[b]);
+					}
+				};
+				Arrays.sort(order, bySignature);
+				int newNumColors = 0;
+				for (int i = 0; i < n; i++) {
+					if (i > 0 && bySignature.compare(order[i - 1], order[i]) != 0) {
+						newNumColors++;
+					}
+					colors[order[i]] = newNumColors;
+				}
+				newNumColors++;
+				if (newNumColors == numColors) {
+					return numColors;
+				}
+				numColors = newNumColors;
+			}
+		}
+
+		private static int compareSignatures(long[] a, long[] b)
+		{
+			for (int i = 0; i < Math.min(a.length, b.length); i++) {
+				if (a[i] != b[i]) {
+					return (a[i] < b[i]) ? -1 : 1;
+				}
+			}
+			return Integer.compare(a.length, b.length);
+		}
+	}
+}
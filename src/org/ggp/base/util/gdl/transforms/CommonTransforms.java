@@ -165,6 +165,77 @@ public class CommonTransforms {
 		}
 	}
 
+	//Rename constants throughout a Gdl object; constants not in the mapping are kept
+	public static Gdl replaceConstants(Gdl gdl,
+			Map<GdlConstant, GdlConstant> mapping) {
+		return replaceConstantsInternal(gdl, mapping);
+	}
+	public static GdlSentence replaceConstants(GdlSentence sentence,
+			Map<GdlConstant, GdlConstant> mapping) {
+		return (GdlSentence) replaceConstantsInternal(sentence, mapping);
+	}
+	public static GdlTerm replaceConstants(GdlTerm term,
+			Map<GdlConstant, GdlConstant> mapping) {
+		return (GdlTerm) replaceConstantsInternal(term, mapping);
+	}
+	public static GdlLiteral replaceConstants(GdlLiteral literal,
+			Map<GdlConstant, GdlConstant> mapping) {
+		return (GdlLiteral) replaceConstantsInternal(literal, mapping);
+	}
+	private static Gdl replaceConstantsInternal(Gdl gdl,
+			Map<GdlConstant, GdlConstant> mapping) {
+		if (gdl instanceof GdlConstant) {
+			GdlConstant replacement = mapping.get(gdl);
+			return (replacement == null) ? gdl : replacement;
+		} else if (gdl instanceof GdlVariable) {
+			return gdl;
+		} else if (gdl instanceof GdlProposition) {
+			GdlConstant name = (GdlConstant) replaceConstantsInternal(((GdlProposition) gdl).getName(), mapping);
+			return GdlPool.getProposition(name);
+		} else if (gdl instanceof GdlRelation) {
+			GdlRelation relation = (GdlRelation) gdl;
+			GdlConstant name = (GdlConstant) replaceConstantsInternal(relation.getName(), mapping);
+			List<GdlTerm> newBody = new ArrayList<GdlTerm>(relation.arity());
+			for(GdlTerm term : relation.getBody()) {
+				newBody.add(replaceConstants(term, mapping));
+			}
+			return GdlPool.getRelation(name, newBody);
+		} else if (gdl instanceof GdlFunction) {
+			GdlFunction function = (GdlFunction) gdl;
+			GdlConstant name = (GdlConstant) replaceConstantsInternal(function.getName(), mapping);
+			List<GdlTerm> newBody = new ArrayList<GdlTerm>(function.arity());
+			for (GdlTerm term : function.getBody()) {
+				newBody.add(replaceConstants(term, mapping));
+			}
+			return GdlPool.getFunction(name, newBody);
+		} else if (gdl instanceof GdlDistinct) {
+			GdlDistinct distinct = (GdlDistinct) gdl;
+			GdlTerm arg1 = replaceConstants(distinct.getArg1(), mapping);
+			GdlTerm arg2 = replaceConstants(distinct.getArg2(), mapping);
+			return GdlPool.getDistinct(arg1, arg2);
+		} else if (gdl instanceof GdlNot) {
+			GdlLiteral internal = ((GdlNot) gdl).getBody();
+			return GdlPool.getNot(replaceConstants(internal, mapping));
+		} else if (gdl instanceof GdlOr) {
+			GdlOr or = (GdlOr) gdl;
+			List<GdlLiteral> newInternals = new ArrayList<GdlLiteral>(or.arity());
+			for (int i = 0; i < or.arity(); i++) {
+				newInternals.add(replaceConstants(or.get(i), mapping));
+			}
+			return GdlPool.getOr(newInternals);
+		} else if (gdl instanceof GdlRule) {
+			GdlRule rule = (GdlRule) gdl;
+			GdlSentence newHead = replaceConstants(rule.getHead(), mapping);
+			List<GdlLiteral> newBody = Lists.newArrayList();
+			for (GdlLiteral conjunct : rule.getBody()) {
+				newBody.add(replaceConstants(conjunct, mapping));
+			}
+			return GdlPool.getRule(newHead, newBody);
+		} else {
+			throw new RuntimeException("Unforeseen Gdl subtype " + gdl.getClass().getSimpleName());
+		}
+	}
+
 	public static GdlRelation replaceHead(GdlRelation sentence, GdlConstant newHead) {
 		return GdlPool.getRelation(newHead, sentence.getBody());
 	}
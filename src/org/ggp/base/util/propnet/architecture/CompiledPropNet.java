@@ -0,0 +1,1090 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.factory.exceptions.GdlFormatException;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.transforms.CommonTransforms;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+
+/**
+ * The CompiledPropNet class is a flat, array-based representation of a
+ * PropNet. Every component is assigned an integer id, and the structure of
+ * the network is stored in primitive arrays: a type per component, plus
+ * offset-indexed adjacency lists for the inputs and outputs of each component.
+ *
+ * A CompiledPropNet holds no component values; those are stored by the
+ * caller in a long[] bitset (one bit per component id, see {@link #newValues()})
+ * so that evaluation is a tight loop over the topological ordering with no
+ * virtual calls, iterators, or allocation.
+ *
+ * Instances are immutable once constructed. They can be saved in a compact
+ * binary form with {@link #write(DataOutputStream)} and loaded back with
+ * {@link #read(ByteBuffer)}, which is much faster than building the PropNet.
+ */
+public final class CompiledPropNet implements PropNetEvaluator
+{
+	/** Components whose value is always false. */
+	public static final byte TYPE_FALSE = 0;
+	/** Components whose value is always true. */
+	public static final byte TYPE_TRUE = 1;
+	/** Base propositions, whose values are set from a state. */
+	public static final byte TYPE_BASE = 2;
+	/** Input propositions, whose values are set from a joint move. */
+	public static final byte TYPE_INPUT = 3;
+	/** The INIT proposition. */
+	public static final byte TYPE_INIT = 4;
+	/** Components that are true if any of their inputs is true: views, transitions and ors. */
+	public static final byte TYPE_OR = 5;
+	/** Components that are true if all of their inputs are true. */
+	public static final byte TYPE_AND = 6;
+	/** Components that negate their single input. */
+	public static final byte TYPE_NOT = 7;
+
+	private static final GdlConstant INIT = GdlPool.getConstant("init");
+
+	/** Identifies the binary form, and its version. */
+	private static final int MAGIC = 0x4750524e;
+	private static final int FORMAT_VERSION = 2;
+
+	private final int numComponents;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	private final int[] outputOffsets;
+	private final int[] outputs;
+	/** Every component whose value is computed from its inputs, in topological order. */
+	private final int[] ordering;
+
+	private final int[] basePropositions;
+	private final int[] baseTransitions;
+	private final int[] baseInits;
+	private final GdlSentence[] baseNames;
+	private final Map<GdlSentence, Integer> baseIndices;
+
+	private final int[] inputPropositions;
+	private final List<Role> roles;
+	private final int[][] legalPropositions;
+	private final int[][] legalInputs;
+	private final Move[][] legalMoves;
+	private final List<Map<Move, Integer>> inputsByMove;
+	private final List<Map<Move, Integer>> legalIndicesByMove;
+	private final int[][] goalPropositions;
+	private final int[][] goalValues;
+	private final int initProposition;
+	private final int terminalProposition;
+
+	/**
+	 * Compiles the given PropNet. The PropNet is only read, and can be
+	 * discarded once this constructor returns.
+	 *
+	 * @throws IllegalArgumentException if the PropNet contains a cycle
+	 * that does not pass through a Transition.
+	 */
+	public CompiledPropNet(PropNet propNet)
+	{
+		Map<Component, Integer> ids = new HashMap<Component, Integer>();
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		for (Component c : components) {
+			ids.put(c, ids.size());
+		}
+		// Components such as INIT may be referenced without being in the set.
+		for (Proposition p : new Proposition[] {propNet.getInitProposition(), propNet.getTerminalProposition()}) {
+			if (p != null && !ids.containsKey(p)) {
+				ids.put(p, ids.size());
+				components.add(p);
+			}
+		}
+		numComponents = components.size();
+
+		types = new byte[numComponents];
+		for (int id = 0; id < numComponents; id++) {
+			types[id] = getType(propNet, components.get(id));
+		}
+
+		inputOffsets = new int[numComponents + 1];
+		outputOffsets = new int[numComponents + 1];
+		for (int id = 0; id < numComponents; id++) {
+			Component c = components.get(id);
+			inputOffsets[id + 1] = inputOffsets[id] + (isSource(types[id]) ? 0 : countKnown(c.getInputs(), ids));
+			outputOffsets[id + 1] = outputOffsets[id] + countKnown(c.getOutputs(), ids);
+		}
+		inputs = new int[inputOffsets[numComponents]];
+		outputs = new int[outputOffsets[numComponents]];
+		for (int id = 0; id < numComponents; id++) {
+			Component c = components.get(id);
+			if (!isSource(types[id])) {
+				fill(c.getInputs(), ids, inputs, inputOffsets[id]);
+			}
+			fill(c.getOutputs(), ids, outputs, outputOffsets[id]);
+		}
+
+		ordering = computeOrdering();
+
+		Map<GdlSentence, Proposition> bases = propNet.getBasePropositions();
+		basePropositions = new int[bases.size()];
+		baseTransitions = new int[bases.size()];
+		baseInits = new int[bases.size()];
+		baseNames = new GdlSentence[bases.size()];
+		baseIndices = new HashMap<GdlSentence, Integer>();
+		Map<List<GdlTerm>, Proposition> initsByBody = new HashMap<List<GdlTerm>, Proposition>();
+		for (Proposition p : propNet.getPropositions()) {
+			if (p.getName().getName().equals(INIT) && p.getName().arity() == 1) {
+				initsByBody.put(p.getName().getBody(), p);
+			}
+		}
+		int index = 0;
+		for (Proposition p : bases.values()) {
+			Proposition init = initsByBody.get(p.getName().getBody());
+			basePropositions[index] = ids.get(p);
+			baseTransitions[index] = ids.get(p.getSingleInput());
+			baseInits[index] = (init == null) ? -1 : ids.get(init);
+			baseNames[index] = p.getName();
+			baseIndices.put(p.getName(), index);
+			index++;
+		}
+
+		roles = propNet.getRoles();
+		legalPropositions = new int[roles.size()][];
+		legalInputs = new int[roles.size()][];
+		legalMoves = new Move[roles.size()][];
+		goalPropositions = new int[roles.size()][];
+		goalValues = new int[roles.size()][];
+		inputsByMove = new ArrayList<Map<Move, Integer>>();
+		legalIndicesByMove = new ArrayList<Map<Move, Integer>>();
+		for (int r = 0; r < roles.size(); r++) {
+			Role role = roles.get(r);
+
+			List<Proposition> legals = asList(propNet.getLegalPropositions().get(role));
+			legalPropositions[r] = new int[legals.size()];
+			legalInputs[r] = new int[legals.size()];
+			legalMoves[r] = new Move[legals.size()];
+			legalIndicesByMove.add(new HashMap<Move, Integer>());
+			for (int i = 0; i < legals.size(); i++) {
+				Proposition legal = legals.get(i);
+				Proposition input = propNet.getLegalInputMap().get(legal);
+				legalPropositions[r][i] = ids.get(legal);
+				legalInputs[r][i] = (input == null) ? -1 : ids.get(input);
+				legalMoves[r][i] = new Move(legal.getName().get(1));
+				legalIndicesByMove.get(r).put(legalMoves[r][i], i);
+			}
+
+			List<Proposition> goals = asList(propNet.getGoalPropositions().get(role));
+			goalPropositions[r] = new int[goals.size()];
+			goalValues[r] = new int[goals.size()];
+			for (int i = 0; i < goals.size(); i++) {
+				goalPropositions[r][i] = ids.get(goals.get(i));
+				goalValues[r][i] = getGoalValue(goals.get(i));
+			}
+
+			inputsByMove.add(new HashMap<Move, Integer>());
+		}
+		Map<GdlConstant, Integer> roleIndices = new HashMap<GdlConstant, Integer>();
+		for (int r = 0; r < roles.size(); r++) {
+			roleIndices.put(roles.get(r).getName(), r);
+		}
+		inputPropositions = new int[propNet.getInputPropositions().size()];
+		index = 0;
+		for (Proposition input : propNet.getInputPropositions().values()) {
+			inputPropositions[index++] = ids.get(input);
+			Integer r = roleIndices.get(input.getName().get(0));
+			if (r != null) {
+				inputsByMove.get(r).put(new Move(input.getName().get(1)), ids.get(input));
+			}
+		}
+
+		initProposition = propNet.getInitProposition() == null ? -1 : ids.get(propNet.getInitProposition());
+		terminalProposition = propNet.getTerminalProposition() == null ? -1 : ids.get(propNet.getTerminalProposition());
+	}
+
+	/**
+	 * Copies the other propnet, renaming the constants in the names of its
+	 * bases, roles and moves. The arrays are shared.
+	 */
+	private CompiledPropNet(CompiledPropNet other, Map<GdlConstant, GdlConstant> mapping)
+	{
+		numComponents = other.numComponents;
+		types = other.types;
+		inputOffsets = other.inputOffsets;
+		inputs = other.inputs;
+		outputOffsets = other.outputOffsets;
+		outputs = other.outputs;
+		ordering = other.ordering;
+
+		basePropositions = other.basePropositions;
+		baseTransitions = other.baseTransitions;
+		baseInits = other.baseInits;
+		baseNames = new GdlSentence[other.baseNames.length];
+		baseIndices = new HashMap<GdlSentence, Integer>();
+		for (int i = 0; i < baseNames.length; i++) {
+			baseNames[i] = CommonTransforms.replaceConstants(other.baseNames[i], mapping);
+			baseIndices.put(baseNames[i], i);
+		}
+
+		inputPropositions = other.inputPropositions;
+		int numRoles = other.roles.size();
+		roles = new ArrayList<Role>(numRoles);
+		legalPropositions = other.legalPropositions;
+		legalInputs = other.legalInputs;
+		legalMoves = new Move[numRoles][];
+		inputsByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		legalIndicesByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		for (int r = 0; r < numRoles; r++) {
+			roles.add(new Role((GdlConstant) CommonTransforms.replaceConstants(other.roles.get(r).getName(), mapping)));
+			legalMoves[r] = new Move[other.legalMoves[r].length];
+			legalIndicesByMove.add(new HashMap<Move, Integer>());
+			for (int i = 0; i < legalMoves[r].length; i++) {
+				legalMoves[r][i] = new Move(CommonTransforms.replaceConstants(other.legalMoves[r][i].getContents(), mapping));
+				legalIndicesByMove.get(r).put(legalMoves[r][i], i);
+			}
+			inputsByMove.add(new HashMap<Move, Integer>());
+			for (Map.Entry<Move, Integer> entry : other.inputsByMove.get(r).entrySet()) {
+				inputsByMove.get(r).put(new Move(CommonTransforms.replaceConstants(entry.getKey().getContents(), mapping)), entry.getValue());
+			}
+		}
+		goalPropositions = other.goalPropositions;
+		goalValues = other.goalValues;
+		initProposition = other.initProposition;
+		terminalProposition = other.terminalProposition;
+	}
+
+	/**
+	 * Returns a copy of this propnet whose bases, roles and moves have their
+	 * constants renamed by the given mapping, such as one from a
+	 * {@link org.ggp.base.util.gdl.scrambler.GameFingerprint}. Constants that
+	 * are not in the mapping keep their names.
+	 */
+	public CompiledPropNet withRenamedConstants(Map<GdlConstant, GdlConstant> mapping)
+	{
+		return new CompiledPropNet(this, mapping);
+	}
+
+	/**
+	 * Copies the other propnet with every component id replaced by its new
+	 * id. Base indices, roles and moves are unchanged.
+	 */
+	private CompiledPropNet(CompiledPropNet other, int[] newIds)
+	{
+		numComponents = other.numComponents;
+		int[] oldIds = new int[numComponents];
+		for (int id = 0; id < numComponents; id++) {
+			oldIds[newIds[id]] = id;
+		}
+		types = new byte[numComponents];
+		inputOffsets = new int[numComponents + 1];
+		outputOffsets = new int[numComponents + 1];
+		inputs = new int[other.inputs.length];
+		outputs = new int[other.outputs.length];
+		for (int id = 0; id < numComponents; id++) {
+			int old = oldIds[id];
+			types[id] = other.types[old];
+			inputOffsets[id + 1] = inputOffsets[id] + copyRenumbered(other.inputs, other.inputOffsets[old], other.inputOffsets[old + 1], newIds, inputs, inputOffsets[id]);
+			outputOffsets[id + 1] = outputOffsets[id] + copyRenumbered(other.outputs, other.outputOffsets[old], other.outputOffsets[old + 1], newIds, outputs, outputOffsets[id]);
+		}
+		// New ids are handed out in a topological order, so the computed
+		// components in id order are one.
+		ordering = new int[other.ordering.length];
+		for (int i = 0, id = 0; id < numComponents; id++) {
+			if (!isSource(types[id])) {
+				ordering[i++] = id;
+			}
+		}
+
+		basePropositions = renumber(other.basePropositions, newIds);
+		baseTransitions = renumber(other.baseTransitions, newIds);
+		baseInits = renumber(other.baseInits, newIds);
+		baseNames = other.baseNames;
+		baseIndices = other.baseIndices;
+
+		inputPropositions = renumber(other.inputPropositions, newIds);
+		roles = other.roles;
+		int numRoles = roles.size();
+		legalPropositions = new int[numRoles][];
+		legalInputs = new int[numRoles][];
+		goalPropositions = new int[numRoles][];
+		inputsByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		for (int r = 0; r < numRoles; r++) {
+			legalPropositions[r] = renumber(other.legalPropositions[r], newIds);
+			legalInputs[r] = renumber(other.legalInputs[r], newIds);
+			goalPropositions[r] = renumber(other.goalPropositions[r], newIds);
+			inputsByMove.add(new HashMap<Move, Integer>());
+			for (Map.Entry<Move, Integer> entry : other.inputsByMove.get(r).entrySet()) {
+				inputsByMove.get(r).put(entry.getKey(), newIds[entry.getValue()]);
+			}
+		}
+		legalMoves = other.legalMoves;
+		legalIndicesByMove = other.legalIndicesByMove;
+		goalValues = other.goalValues;
+		initProposition = (other.initProposition == -1) ? -1 : newIds[other.initProposition];
+		terminalProposition = (other.terminalProposition == -1) ? -1 : newIds[other.terminalProposition];
+	}
+
+	/**
+	 * Returns a copy of this propnet with its components renumbered for
+	 * cache locality during propagation.
+	 *
+	 * The source components come first, starting with the bases in base
+	 * index order. The computed components follow by topological level,
+	 * the length of the longest path to them from a source, so that the
+	 * ordering becomes a sweep through increasing ids. Within a level,
+	 * components are sorted by the smallest new id among their inputs, in
+	 * the manner of Cuthill-McKee, which puts components that read the same
+	 * neighbourhood next to each other. The values a component reads are
+	 * then mostly in words of the value bitset that were touched recently,
+	 * rather than scattered over the whole of it.
+	 */
+	public CompiledPropNet renumbered()
+	{
+		final int[] newIds = new int[numComponents];
+		Arrays.fill(newIds, -1);
+		int next = 0;
+		for (int base : basePropositions) {
+			newIds[base] = next++;
+		}
+		for (int id = 0; id < numComponents; id++) {
+			if (isSource(types[id]) && newIds[id] == -1) {
+				newIds[id] = next++;
+			}
+		}
+
+		int[] levels = new int[numComponents];
+		int maxLevel = 0;
+		for (int id : ordering) {
+			int level = 0;
+			for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+				level = Math.max(level, levels[inputs[j]]);
+			}
+			levels[id] = level + 1;
+			maxLevel = Math.max(maxLevel, level + 1);
+		}
+		List<List<Integer>> byLevel = new ArrayList<List<Integer>>(maxLevel + 1);
+		for (int level = 0; level <= maxLevel; level++) {
+			byLevel.add(new ArrayList<Integer>());
+		}
+		for (int id : ordering) {
+			byLevel.get(levels[id]).add(id);
+		}
+
+		// Every input of a level has a new id by the time the level is sorted.
+		final int[] keys = new int[numComponents];
+		for (int level = 1; level <= maxLevel; level++) {
+			List<Integer> components = byLevel.get(level);
+			for (int id : components) {
+				int key = Integer.MAX_VALUE;
+				for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+					key = Math.min(key, newIds[inputs[j]]);
+				}
+				keys[id] = key;
+			}
+			Collections.sort(components, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					if (keys[a] != keys[b]) {
+						return keys[a] < keys[b] ? -1 : 1;
+					}
+					return a.compareTo(b);
+				}
+			});
+			for (int id : components) {
+				newIds[id] = next++;
+			}
+		}
+		return new CompiledPropNet(this, newIds);
+	}
+
+	/**
+	 * Copies values[start..end) to target[offset...], replacing each id by
+	 * its new id and sorting them, and returns how many were copied.
+	 */
+	private static int copyRenumbered(int[] values, int start, int end, int[] newIds, int[] target, int offset)
+	{
+		for (int j = start; j < end; j++) {
+			target[offset + j - start] = newIds[values[j]];
+		}
+		Arrays.sort(target, offset, offset + end - start);
+		return end - start;
+	}
+
+	/** Returns the new ids of the given components, keeping -1 as it is. */
+	private static int[] renumber(int[] ids, int[] newIds)
+	{
+		int[] result = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			result[i] = (ids[i] == -1) ? -1 : newIds[ids[i]];
+		}
+		return result;
+	}
+
+	/**
+	 * Loads a propnet from the binary form written by {@link #write(DataOutputStream)}.
+	 */
+	private CompiledPropNet(ByteBuffer buffer) throws IOException
+	{
+		if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+			throw new IOException("Not a compiled propnet, or written by another version.");
+		}
+		numComponents = readLength(buffer, 1);
+		types = new byte[numComponents];
+		buffer.get(types);
+		inputOffsets = readInts(buffer);
+		inputs = readInts(buffer);
+		outputOffsets = readInts(buffer);
+		outputs = readInts(buffer);
+		ordering = readInts(buffer);
+
+		basePropositions = readInts(buffer);
+		baseTransitions = readInts(buffer);
+		baseInits = readInts(buffer);
+		baseNames = new GdlSentence[basePropositions.length];
+		baseIndices = new HashMap<GdlSentence, Integer>();
+		for (int i = 0; i < baseNames.length; i++) {
+			Gdl name = parse(readString(buffer));
+			if (!(name instanceof GdlSentence)) {
+				throw new IOException("Malformed base proposition name: " + name);
+			}
+			baseNames[i] = (GdlSentence) name;
+			baseIndices.put(baseNames[i], i);
+		}
+
+		inputPropositions = readInts(buffer);
+		int numRoles = readLength(buffer, 4);
+		roles = new ArrayList<Role>(numRoles);
+		legalPropositions = new int[numRoles][];
+		legalInputs = new int[numRoles][];
+		legalMoves = new Move[numRoles][];
+		inputsByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		legalIndicesByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		goalPropositions = new int[numRoles][];
+		goalValues = new int[numRoles][];
+		for (int r = 0; r < numRoles; r++) {
+			roles.add(new Role(GdlPool.getConstant(readString(buffer))));
+			legalPropositions[r] = readInts(buffer);
+			legalInputs[r] = readInts(buffer);
+			legalMoves[r] = new Move[legalPropositions[r].length];
+			legalIndicesByMove.add(new HashMap<Move, Integer>());
+			for (int i = 0; i < legalMoves[r].length; i++) {
+				legalMoves[r][i] = new Move(parseTerm(readString(buffer)));
+				legalIndicesByMove.get(r).put(legalMoves[r][i], i);
+			}
+			int numInputs = readLength(buffer, 8);
+			inputsByMove.add(new HashMap<Move, Integer>());
+			for (int i = 0; i < numInputs; i++) {
+				int input = buffer.getInt();
+				inputsByMove.get(r).put(new Move(parseTerm(readString(buffer))), input);
+			}
+			goalPropositions[r] = readInts(buffer);
+			goalValues[r] = readInts(buffer);
+		}
+		initProposition = buffer.getInt();
+		terminalProposition = buffer.getInt();
+		checkStructure();
+	}
+
+	/**
+	 * Checks that the arrays of a loaded propnet fit together and only refer
+	 * to components that exist, so that a corrupt file is rejected when it
+	 * is loaded rather than failing part way through a match.
+	 */
+	private void checkStructure() throws IOException
+	{
+		for (int id = 0; id < numComponents; id++) {
+			if (types[id] < TYPE_FALSE || types[id] > TYPE_NOT) {
+				throw new IOException("Malformed compiled propnet: component " + id + " has type " + types[id] + ".");
+			}
+		}
+		checkOffsets(inputOffsets, inputs.length);
+		checkOffsets(outputOffsets, outputs.length);
+		for (int id = 0; id < numComponents; id++) {
+			int numInputs = inputOffsets[id + 1] - inputOffsets[id];
+			if ((isSource(types[id]) && numInputs != 0) || (types[id] == TYPE_NOT && numInputs != 1)) {
+				throw new IOException("Malformed compiled propnet: component " + id + " has " + numInputs + " inputs.");
+			}
+		}
+		checkIds(inputs, false);
+		checkIds(outputs, false);
+		checkIds(ordering, false);
+		for (int id : ordering) {
+			if (isSource(types[id])) {
+				throw new IOException("Malformed compiled propnet: source component " + id + " is in the ordering.");
+			}
+		}
+
+		checkLength(baseTransitions, basePropositions.length);
+		checkLength(baseInits, basePropositions.length);
+		checkIds(basePropositions, false);
+		checkIds(baseTransitions, false);
+		checkIds(baseInits, true);
+		checkIds(inputPropositions, false);
+		for (int r = 0; r < roles.size(); r++) {
+			checkLength(legalInputs[r], legalPropositions[r].length);
+			checkLength(goalValues[r], goalPropositions[r].length);
+			checkIds(legalPropositions[r], false);
+			checkIds(legalInputs[r], true);
+			checkIds(goalPropositions[r], false);
+			for (int input : inputsByMove.get(r).values()) {
+				checkId(input, false);
+			}
+		}
+		checkId(initProposition, true);
+		checkId(terminalProposition, true);
+	}
+
+	private void checkOffsets(int[] offsets, int numLinks) throws IOException
+	{
+		checkLength(offsets, numComponents + 1);
+		if (offsets[0] != 0 || offsets[numComponents] != numLinks) {
+			throw new IOException("Malformed compiled propnet: offsets do not cover the " + numLinks + " links.");
+		}
+		for (int id = 0; id < numComponents; id++) {
+			if (offsets[id] > offsets[id + 1]) {
+				throw new IOException("Malformed compiled propnet: offsets decrease at component " + id + ".");
+			}
+		}
+	}
+
+	private static void checkLength(int[] values, int length) throws IOException
+	{
+		if (values.length != length) {
+			throw new IOException("Malformed compiled propnet: " + values.length + " values where " + length + " were expected.");
+		}
+	}
+
+	private void checkIds(int[] ids, boolean mayBeNone) throws IOException
+	{
+		for (int id : ids) {
+			checkId(id, mayBeNone);
+		}
+	}
+
+	/** Checks that the id is a component's, or -1 if that is allowed. */
+	private void checkId(int id, boolean mayBeNone) throws IOException
+	{
+		if ((id < 0 || id >= numComponents) && !(mayBeNone && id == -1)) {
+			throw new IOException("Malformed compiled propnet: no component has id " + id + ".");
+		}
+	}
+
+	/**
+	 * Loads a propnet from the binary form written by {@link #write(DataOutputStream)},
+	 * starting at the buffer's position.
+	 *
+	 * @throws IOException if the buffer does not hold a propnet in the
+	 * current binary form.
+	 */
+	public static CompiledPropNet read(ByteBuffer buffer) throws IOException
+	{
+		try {
+			return new CompiledPropNet(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated compiled propnet.", e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed compiled propnet.", e);
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("Malformed compiled propnet.", e);
+		}
+	}
+
+	/**
+	 * Writes the propnet in a compact binary form: the component types and
+	 * adjacency arrays, the ids of the special propositions, and the names of
+	 * the bases, roles and moves.
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(numComponents);
+		out.write(types);
+		writeInts(out, inputOffsets);
+		writeInts(out, inputs);
+		writeInts(out, outputOffsets);
+		writeInts(out, outputs);
+		writeInts(out, ordering);
+
+		writeInts(out, basePropositions);
+		writeInts(out, baseTransitions);
+		writeInts(out, baseInits);
+		for (GdlSentence name : baseNames) {
+			writeString(out, name.toString());
+		}
+
+		writeInts(out, inputPropositions);
+		out.writeInt(roles.size());
+		for (int r = 0; r < roles.size(); r++) {
+			writeString(out, roles.get(r).getName().toString());
+			writeInts(out, legalPropositions[r]);
+			writeInts(out, legalInputs[r]);
+			for (Move move : legalMoves[r]) {
+				writeString(out, move.getContents().toString());
+			}
+			out.writeInt(inputsByMove.get(r).size());
+			for (Map.Entry<Move, Integer> entry : inputsByMove.get(r).entrySet()) {
+				out.writeInt(entry.getValue());
+				writeString(out, entry.getKey().getContents().toString());
+			}
+			writeInts(out, goalPropositions[r]);
+			writeInts(out, goalValues[r]);
+		}
+		out.writeInt(initProposition);
+		out.writeInt(terminalProposition);
+	}
+
+	/**
+	 * Reads the length of something made of elements of the given size, and
+	 * checks that the rest of the buffer could hold that many, so that a
+	 * corrupt length cannot make for an enormous array.
+	 */
+	private static int readLength(ByteBuffer buffer, int elementSize) throws IOException
+	{
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining() / elementSize) {
+			throw new IOException("Malformed compiled propnet: a length of " + length + " with " + buffer.remaining() + " bytes left.");
+		}
+		return length;
+	}
+
+	private static int[] readInts(ByteBuffer buffer) throws IOException
+	{
+		int[] values = new int[readLength(buffer, 4)];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * values.length);
+		return values;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException
+	{
+		byte[] bytes = new byte[readLength(buffer, 1)];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static Gdl parse(String string) throws IOException
+	{
+		try {
+			return GdlFactory.create(string);
+		} catch (GdlFormatException e) {
+			throw new IOException("Malformed name: " + string, e);
+		} catch (SymbolFormatException e) {
+			throw new IOException("Malformed name: " + string, e);
+		}
+	}
+
+	private static GdlTerm parseTerm(String string) throws IOException
+	{
+		try {
+			return GdlFactory.createTerm(string);
+		} catch (SymbolFormatException e) {
+			throw new IOException("Malformed move: " + string, e);
+		}
+	}
+
+	private static byte getType(PropNet propNet, Component c)
+	{
+		if (c instanceof Proposition) {
+			Proposition p = (Proposition) c;
+			if (p == propNet.getInitProposition()) {
+				return TYPE_INIT;
+			} else if (propNet.getBasePropositions().get(p.getName()) == p) {
+				return TYPE_BASE;
+			} else if (propNet.getInputPropositions().get(p.getName()) == p) {
+				return TYPE_INPUT;
+			} else if (p.getInputs().isEmpty()) {
+				return TYPE_FALSE;
+			}
+			return TYPE_OR;
+		} else if (c instanceof Constant) {
+			return c.getValue() ? TYPE_TRUE : TYPE_FALSE;
+		} else if (c instanceof And) {
+			return TYPE_AND;
+		} else if (c instanceof Not) {
+			return TYPE_NOT;
+		} else if (c instanceof Transition) {
+			return TYPE_OR;
+		}
+		return TYPE_OR;
+	}
+
+	/**
+	 * Returns true for the types of components whose values are not computed
+	 * from their inputs: constants, and base, input and INIT propositions.
+	 */
+	public static boolean isSource(byte type)
+	{
+		return type <= TYPE_INIT;
+	}
+
+	private static int countKnown(Set<Component> components, Map<Component, Integer> ids)
+	{
+		int count = 0;
+		for (Component c : components) {
+			if (ids.containsKey(c)) count++;
+		}
+		return count;
+	}
+
+	private static void fill(Set<Component> components, Map<Component, Integer> ids, int[] target, int offset)
+	{
+		for (Component c : components) {
+			Integer id = ids.get(c);
+			if (id != null) target[offset++] = id;
+		}
+	}
+
+	private static List<Proposition> asList(Set<Proposition> propositions)
+	{
+		if (propositions == null) {
+			return new ArrayList<Proposition>();
+		}
+		return new ArrayList<Proposition>(propositions);
+	}
+
+	private static int getGoalValue(Proposition goalProposition)
+	{
+		GdlRelation relation = (GdlRelation) goalProposition.getName();
+		GdlConstant constant = (GdlConstant) relation.get(1);
+		return Integer.parseInt(constant.toString());
+	}
+
+	/**
+	 * Orders the computed components so that every component comes after
+	 * all of its inputs. Source components (bases, inputs, INIT and
+	 * constants) have no inputs here, which is what cuts the cycles that
+	 * pass through Transitions.
+	 */
+	private int[] computeOrdering()
+	{
+		int[] remainingInputs = new int[numComponents];
+		int[] queue = new int[numComponents];
+		int head = 0, tail = 0;
+		for (int id = 0; id < numComponents; id++) {
+			remainingInputs[id] = inputOffsets[id + 1] - inputOffsets[id];
+			if (remainingInputs[id] == 0) {
+				queue[tail++] = id;
+			}
+		}
+		int[] order = new int[numComponents];
+		int size = 0;
+		while (head < tail) {
+			int id = queue[head++];
+			if (!isSource(types[id])) {
+				order[size++] = id;
+			}
+			for (int j = outputOffsets[id]; j < outputOffsets[id + 1]; j++) {
+				int output = outputs[j];
+				if (isSource(types[output])) continue;
+				if (--remainingInputs[output] == 0) {
+					queue[tail++] = output;
+				}
+			}
+		}
+		if (tail != numComponents) {
+			throw new IllegalArgumentException("PropNet contains a cycle that does not pass through a transition.");
+		}
+		int[] result = new int[size];
+		System.arraycopy(order, 0, result, 0, size);
+		return result;
+	}
+
+	/**
+	 * Returns the cone of influence of the given components: every computed
+	 * component that their values depend on, found by searching backwards
+	 * from them until reaching source components, in topological order.
+	 * Propagating only the cone is enough to compute the given components'
+	 * values from the sources.
+	 */
+	public int[] getCone(int... targets)
+	{
+		boolean[] inCone = new boolean[numComponents];
+		int[] stack = new int[numComponents];
+		int size = 0;
+		for (int target : targets) {
+			if (target != -1 && !inCone[target] && !isSource(types[target])) {
+				inCone[target] = true;
+				stack[size++] = target;
+			}
+		}
+		while (size > 0) {
+			int id = stack[--size];
+			for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+				int input = inputs[j];
+				if (!inCone[input] && !isSource(types[input])) {
+					inCone[input] = true;
+					stack[size++] = input;
+				}
+			}
+		}
+		int count = 0;
+		for (int id : ordering) {
+			if (inCone[id]) count++;
+		}
+		int[] cone = new int[count];
+		int i = 0;
+		for (int id : ordering) {
+			if (inCone[id]) cone[i++] = id;
+		}
+		return cone;
+	}
+
+	/**
+	 * Returns a new, all-false value bitset for this propnet, with constant
+	 * components set to their values.
+	 */
+	public long[] newValues()
+	{
+		long[] values = new long[(numComponents + 63) >>> 6];
+		for (int id = 0; id < numComponents; id++) {
+			if (types[id] == TYPE_TRUE) set(values, id, true);
+		}
+		return values;
+	}
+
+	/**
+	 * Recomputes the value of every non-source component from the values of
+	 * the source components, in topological order.
+	 */
+	@Override
+	public void propagate(long[] values)
+	{
+		propagate(values, ordering);
+	}
+
+	/**
+	 * Recomputes the value of the given computed components, in the given
+	 * order, which must be a subsequence of the topological ordering such as
+	 * one returned by {@link #getCone(int...)}.
+	 */
+	public void propagate(long[] values, int[] ordering)
+	{
+		final byte[] types = this.types;
+		final int[] inputOffsets = this.inputOffsets;
+		final int[] inputs = this.inputs;
+		for (int i = 0; i < ordering.length; i++) {
+			int id = ordering[i];
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			boolean value;
+			switch (types[id]) {
+			case TYPE_AND:
+				value = true;
+				for (int j = start; j < end; j++) {
+					int in = inputs[j];
+					if ((values[in >>> 6] & (1L << in)) == 0) {
+						value = false;
+						break;
+					}
+				}
+				break;
+			case TYPE_NOT:
+				int in = inputs[start];
+				value = (values[in >>> 6] & (1L << in)) == 0;
+				break;
+			default:
+				value = false;
+				for (int j = start; j < end; j++) {
+					int input = inputs[j];
+					if ((values[input >>> 6] & (1L << input)) != 0) {
+						value = true;
+						break;
+					}
+				}
+				break;
+			}
+			if (value) {
+				values[id >>> 6] |= (1L << id);
+			} else {
+				values[id >>> 6] &= ~(1L << id);
+			}
+		}
+	}
+
+	public static boolean get(long[] values, int id)
+	{
+		return (values[id >>> 6] & (1L << id)) != 0;
+	}
+
+	public static void set(long[] values, int id, boolean value)
+	{
+		if (value) {
+			values[id >>> 6] |= (1L << id);
+		} else {
+			values[id >>> 6] &= ~(1L << id);
+		}
+	}
+
+	/* Getter methods */
+
+	public int getNumComponents()
+	{
+		return numComponents;
+	}
+
+	public byte getType(int id)
+	{
+		return types[id];
+	}
+
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	public int[] getInputs()
+	{
+		return inputs;
+	}
+
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	public int[] getOutputs()
+	{
+		return outputs;
+	}
+
+	public int[] getOrdering()
+	{
+		return ordering;
+	}
+
+	/** @return The component ids of the base propositions, by base index. */
+	public int[] getBasePropositions()
+	{
+		return basePropositions;
+	}
+
+	/** @return The component ids of the transitions feeding each base proposition, by base index. */
+	public int[] getBaseTransitions()
+	{
+		return baseTransitions;
+	}
+
+	/**
+	 * @return The component ids of the (init ...) propositions matching each
+	 * base proposition, by base index, or -1 where there is none.
+	 */
+	public int[] getBaseInits()
+	{
+		return baseInits;
+	}
+
+	/** @return The names of the base propositions, by base index. */
+	public GdlSentence[] getBaseNames()
+	{
+		return baseNames;
+	}
+
+	/** @return The base index of the base proposition with the given name, or null. */
+	public Integer getBaseIndex(GdlSentence name)
+	{
+		return baseIndices.get(name);
+	}
+
+	/** @return The component ids of every input proposition. */
+	public int[] getInputPropositions()
+	{
+		return inputPropositions;
+	}
+
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/** @return The component ids of the legal propositions of each role. */
+	public int[][] getLegalPropositions()
+	{
+		return legalPropositions;
+	}
+
+	/** @return The component ids of the input propositions matching each legal proposition, or -1. */
+	public int[][] getLegalInputs()
+	{
+		return legalInputs;
+	}
+
+	/** @return The moves described by each legal proposition. */
+	public Move[][] getLegalMoves()
+	{
+		return legalMoves;
+	}
+
+	/** @return The component id of the input proposition for the given move, or null. */
+	public Integer getInputProposition(int roleIndex, Move move)
+	{
+		return inputsByMove.get(roleIndex).get(move);
+	}
+
+	/** @return The index of the given move among the role's legal propositions, or -1. */
+	public int getLegalIndex(int roleIndex, Move move)
+	{
+		Integer index = legalIndicesByMove.get(roleIndex).get(move);
+		return (index == null) ? -1 : index;
+	}
+
+	/** @return The component ids of the goal propositions of each role. */
+	public int[][] getGoalPropositions()
+	{
+		return goalPropositions;
+	}
+
+	/** @return The values of the goal propositions of each role. */
+	public int[][] getGoalValues()
+	{
+		return goalValues;
+	}
+
+	/** @return The component id of the INIT proposition, or -1. */
+	public int getInitProposition()
+	{
+		return initProposition;
+	}
+
+	/** @return The component id of the terminal proposition, or -1. */
+	public int getTerminalProposition()
+	{
+		return terminalProposition;
+	}
+}
@@ -0,0 +1,199 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.Arrays;
+
+/**
+ * The DifferentialPropagator class keeps the component values of a
+ * CompiledPropNet up to date by forward, change-driven propagation.
+ *
+ * For every computed component it maintains the number of inputs that are
+ * currently true, from which the component's value follows directly. When a
+ * source component (base, input or INIT proposition) is changed, only the
+ * counters of its outputs are adjusted, and a component's own outputs are
+ * only visited if its value actually flips. The work done per update is thus
+ * proportional to the part of the network affected by the change, rather
+ * than to the size of the network.
+ *
+ * Changes are queued with {@link #set(int, boolean)} and pushed through the
+ * network with {@link #propagate()}. Components are re-examined in
+ * topological order, so each one is evaluated at most once per propagation,
+ * after all of its inputs have settled.
+ */
+public final class DifferentialPropagator
+{
+	private final CompiledPropNet net;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] outputOffsets;
+	private final int[] outputs;
+
+	/** The value of every component, one bit per component id. */
+	private final long[] values;
+	/** The number of true inputs of every component. */
+	private final int[] trueInputs;
+	/** The position of every computed component in the topological ordering */
+	private final int[] ranks;
+	/**
+	 * Components whose true-input count changed and that must be re-examined,
+	 * as a binary heap ordered by rank, so the earliest comes out first.
+	 */
+	private int[] pending;
+	private int numPending;
+	/** Whether each component is in the heap, one bit per component id */
+	private final long[] queued;
+	/** The number of components evaluated so far */
+	private long numEvaluations;
+
+	/**
+	 * Creates a propagator over the given values, which must be consistent:
+	 * every computed component must hold the value implied by its inputs,
+	 * as after a call to {@link CompiledPropNet#propagate(long[])}.
+	 */
+	public DifferentialPropagator(CompiledPropNet net, long[] values)
+	{
+		this.net = net;
+		this.types = new byte[net.getNumComponents()];
+		for (int id = 0; id < types.length; id++) {
+			types[id] = net.getType(id);
+		}
+		this.inputOffsets = net.getInputOffsets();
+		this.outputOffsets = net.getOutputOffsets();
+		this.outputs = net.getOutputs();
+		this.values = values;
+		this.trueInputs = new int[types.length];
+		this.ranks = new int[types.length];
+		int[] ordering = net.getOrdering();
+		for (int i = 0; i < ordering.length; i++) {
+			ranks[ordering[i]] = i;
+		}
+		this.pending = new int[Math.max(16, ordering.length)];
+		this.queued = new long[(types.length + 63) / 64];
+		recount();
+	}
+
+	/**
+	 * Recomputes every true-input counter from the current values. Call this
+	 * after the values have been modified by anything other than this
+	 * propagator, e.g. a full propagation.
+	 */
+	public void recount()
+	{
+		int[] inputs = net.getInputs();
+		for (int id = 0; id < types.length; id++) {
+			int count = 0;
+			for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+				if (CompiledPropNet.get(values, inputs[j])) count++;
+			}
+			trueInputs[id] = count;
+		}
+		numPending = 0;
+		Arrays.fill(queued, 0);
+	}
+
+	public long[] getValues()
+	{
+		return values;
+	}
+
+	/** @return The number of times a component has been evaluated so far. */
+	public long getNumEvaluations()
+	{
+		return numEvaluations;
+	}
+
+	/**
+	 * Sets the value of a source component. Nothing else changes until
+	 * {@link #propagate()} is called.
+	 */
+	public void set(int id, boolean value)
+	{
+		if (CompiledPropNet.get(values, id) != value) {
+			flip(id, value);
+		}
+	}
+
+	/**
+	 * Pushes every queued change forward through the network, stopping
+	 * wherever a component's value does not change.
+	 */
+	public void propagate()
+	{
+		while (numPending > 0) {
+			int id = poll();
+			numEvaluations++;
+			boolean value = computeValue(id);
+			if (value != ((values[id >>> 6] & (1L << id)) != 0)) {
+				flip(id, value);
+			}
+		}
+	}
+
+	private boolean computeValue(int id)
+	{
+		switch (types[id]) {
+		case CompiledPropNet.TYPE_AND:
+			return trueInputs[id] == inputOffsets[id + 1] - inputOffsets[id];
+		case CompiledPropNet.TYPE_NOT:
+			return trueInputs[id] == 0;
+		default:
+			return trueInputs[id] > 0;
+		}
+	}
+
+	private void flip(int id, boolean value)
+	{
+		if (value) {
+			values[id >>> 6] |= (1L << id);
+		} else {
+			values[id >>> 6] &= ~(1L << id);
+		}
+		int delta = value ? 1 : -1;
+		for (int j = outputOffsets[id]; j < outputOffsets[id + 1]; j++) {
+			int output = outputs[j];
+			// Transitions feed base propositions, which are only set from states.
+			if (CompiledPropNet.isSource(types[output])) continue;
+			trueInputs[output] += delta;
+			if ((queued[output >>> 6] & (1L << output)) == 0) {
+				queued[output >>> 6] |= (1L << output);
+				offer(output);
+			}
+		}
+	}
+
+	private void offer(int id)
+	{
+		if (numPending == pending.length) {
+			int[] grown = new int[pending.length * 2];
+			System.arraycopy(pending, 0, grown, 0, numPending);
+			pending = grown;
+		}
+		int rank = ranks[id];
+		int i = numPending++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (ranks[pending[parent]] <= rank) break;
+			pending[i] = pending[parent];
+			i = parent;
+		}
+		pending[i] = id;
+	}
+
+	private int poll()
+	{
+		int first = pending[0];
+		queued[first >>> 6] &= ~(1L << first);
+		int last = pending[--numPending];
+		int rank = ranks[last];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= numPending) break;
+			if (child + 1 < numPending && ranks[pending[child + 1]] < ranks[pending[child]]) child++;
+			if (ranks[pending[child]] >= rank) break;
+			pending[i] = pending[child];
+			i = child;
+		}
+		pending[i] = last;
+		return first;
+	}
+}
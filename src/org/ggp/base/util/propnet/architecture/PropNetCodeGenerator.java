@@ -0,0 +1,306 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.ggp.base.util.logging.GamerLogger;
+
+/**
+ * The PropNetCodeGenerator turns a CompiledPropNet into straight-line Java
+ * code: every computed component becomes a single statement, with the word
+ * indices and bit offsets of its inputs baked in as constants, and the
+ * statements are emitted in topological order. The source is compiled in
+ * memory with the system Java compiler and loaded as a {@link PropNetEvaluator}.
+ *
+ * Generation is bounded by a component budget and a compilation deadline.
+ * When either is exceeded, or when no compiler is available (e.g. when
+ * running on a JRE), {@link #generate(CompiledPropNet)} returns null and the
+ * caller is expected to keep interpreting the CompiledPropNet.
+ *
+ * A compilation that misses its deadline cannot reliably be stopped: the Java
+ * compiler only notices an interrupt if it is reading files at the time, so it
+ * usually keeps running on its daemon thread until it finishes. While it does, further calls to generate return null at
+ * once rather than starting another compilation beside it, so repeated
+ * timeouts cannot pile up compilations competing for the same cores.
+ */
+public final class PropNetCodeGenerator
+{
+	public static final int DEFAULT_MAX_COMPONENTS = 250000;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+
+	/**
+	 * Statements are split across methods of roughly this many operands, which
+	 * keeps each method well under the size HotSpot is willing to JIT-compile.
+	 */
+	private static final int OPERANDS_PER_METHOD = 250;
+	private static final String PACKAGE = "org.ggp.base.util.propnet.generated";
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	/** The last compilation that missed its deadline, which may still be running. */
+	private static Future<PropNetEvaluator> abandonedCompilation;
+
+	private final int maxComponents;
+	private final long timeoutMillis;
+
+	public PropNetCodeGenerator()
+	{
+		this(DEFAULT_MAX_COMPONENTS, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	public PropNetCodeGenerator(int maxComponents, long timeoutMillis)
+	{
+		this.maxComponents = maxComponents;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Generates, compiles and loads an evaluator for the given propnet.
+	 *
+	 * @return The evaluator, or null if the propnet is over the component
+	 * budget, compilation did not finish within the deadline, it failed, or an
+	 * earlier compilation that missed its deadline is still running.
+	 */
+	public PropNetEvaluator generate(final CompiledPropNet net)
+	{
+		if (net.getNumComponents() > maxComponents) {
+			GamerLogger.log("StateMachine", "Not generating code for a propnet with " + net.getNumComponents() + " components; the limit is " + maxComponents + ".");
+			return null;
+		}
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			GamerLogger.log("StateMachine", "Not generating code for the propnet: no Java compiler is available.");
+			return null;
+		}
+		if (isAbandonedCompilationRunning()) {
+			GamerLogger.log("StateMachine", "Not generating code for the propnet: an earlier compilation that timed out is still running.");
+			return null;
+		}
+
+		final String className = "PropNetEvaluator" + classCounter.incrementAndGet();
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PropNetCodeGenerator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		Future<PropNetEvaluator> future = null;
+		try {
+			future = executor.submit(new Callable<PropNetEvaluator>() {
+				@Override
+				public PropNetEvaluator call() throws Exception {
+					String source = generateSource(net, className);
+					return compile(compiler, className, source);
+				}
+			});
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			GamerLogger.log("StateMachine", "Generating code for the propnet took longer than " + timeoutMillis + "ms; giving up.");
+			abandon(future);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (Exception e) {
+			GamerLogger.logError("StateMachine", "Failed to generate code for the propnet.");
+			GamerLogger.logStackTrace("StateMachine", e);
+			return null;
+		} finally {
+			// This interrupts the compilation if it is still running, which
+			// javac mostly ignores; the thread only exits once it finishes.
+			executor.shutdownNow();
+		}
+	}
+
+	private static synchronized boolean isAbandonedCompilationRunning()
+	{
+		if (abandonedCompilation != null && abandonedCompilation.isDone()) {
+			abandonedCompilation = null;
+		}
+		return abandonedCompilation != null;
+	}
+
+	private static synchronized void abandon(Future<PropNetEvaluator> future)
+	{
+		abandonedCompilation = future;
+	}
+
+	/**
+	 * Generates the source of a class in the generated-code package with the
+	 * given simple name, which implements PropNetEvaluator for the propnet.
+	 */
+	public String generateSource(CompiledPropNet net, String className)
+	{
+		int[] ordering = net.getOrdering();
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+
+		List<StringBuilder> methods = new ArrayList<StringBuilder>();
+		StringBuilder method = null;
+		int operands = 0;
+		for (int i = 0; i < ordering.length; i++) {
+			int id = ordering[i];
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			if (method == null || operands >= OPERANDS_PER_METHOD) {
+				method = new StringBuilder();
+				methods.add(method);
+				operands = 0;
+			}
+			operands += 1 + end - start;
+
+			method.append("\t\tx = ");
+			switch (net.getType(id)) {
+			case CompiledPropNet.TYPE_AND:
+				if (start == end) {
+					method.append("1L");
+				} else {
+					for (int j = start; j < end; j++) {
+						appendBit(method, inputs[j]);
+						method.append(" & ");
+					}
+					method.append("1L");
+				}
+				break;
+			case CompiledPropNet.TYPE_NOT:
+				method.append("~");
+				appendBit(method, inputs[start]);
+				method.append(" & 1L");
+				break;
+			default:
+				if (start == end) {
+					method.append("0L");
+				} else {
+					method.append("(");
+					for (int j = start; j < end; j++) {
+						if (j > start) method.append(" | ");
+						appendBit(method, inputs[j]);
+					}
+					method.append(") & 1L");
+				}
+				break;
+			}
+			method.append(";\n");
+			int word = id >>> 6;
+			int shift = id & 63;
+			method.append("\t\tv[").append(word).append("] = (v[").append(word).append("] & ~(1L << ").append(shift)
+					.append(")) | (x << ").append(shift).append(");\n");
+		}
+
+		StringBuilder source = new StringBuilder();
+		source.append("package ").append(PACKAGE).append(";\n\n");
+		source.append("public final class ").append(className).append(" implements ").append(PropNetEvaluator.class.getName()).append(" {\n");
+		source.append("\t@Override\n");
+		source.append("\tpublic void propagate(long[] v) {\n");
+		for (int m = 0; m < methods.size(); m++) {
+			source.append("\t\tp").append(m).append("(v);\n");
+		}
+		source.append("\t}\n");
+		for (int m = 0; m < methods.size(); m++) {
+			source.append("\n\tprivate static void p").append(m).append("(long[] v) {\n");
+			source.append("\t\tlong x;\n");
+			source.append(methods.get(m));
+			source.append("\t}\n");
+		}
+		source.append("}\n");
+		return source.toString();
+	}
+
+	private static void appendBit(StringBuilder builder, int id)
+	{
+		builder.append("(v[").append(id >>> 6).append("] >>> ").append(id & 63).append(")");
+	}
+
+	private PropNetEvaluator compile(JavaCompiler compiler, String className, final String source) throws Exception
+	{
+		final String qualifiedName = PACKAGE + "." + className;
+		StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, null);
+		final Map<String, ByteArrayOutputStream> classBytes = new HashMap<String, ByteArrayOutputStream>();
+		ForwardingJavaFileManager<StandardJavaFileManager> fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, final String name, JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						classBytes.put(name, bytes);
+						return bytes;
+					}
+				};
+			}
+		};
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + qualifiedName.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		List<String> options = Arrays.asList("-g:none", "-nowarn", "-proc:none", "-classpath", getClassPath());
+		try {
+			StringWriter output = new StringWriter();
+			boolean success = compiler.getTask(output, fileManager, null, options, null, Arrays.asList(sourceFile)).call();
+			if (!success) {
+				throw new IllegalStateException("Compilation of the generated propnet code failed:\n" + output);
+			}
+		} finally {
+			fileManager.close();
+		}
+
+		final byte[] bytes = classBytes.get(qualifiedName).toByteArray();
+		ClassLoader loader = new ClassLoader(PropNetEvaluator.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				if (name.equals(qualifiedName)) {
+					return defineClass(name, bytes, 0, bytes.length);
+				}
+				throw new ClassNotFoundException(name);
+			}
+		};
+		try {
+			return (PropNetEvaluator) loader.loadClass(qualifiedName).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not instantiate the generated propnet code.", e);
+		}
+	}
+
+	/**
+	 * The generated code only needs PropNetEvaluator, so make sure the
+	 * location it was loaded from is on the compiler's class path.
+	 */
+	private static String getClassPath()
+	{
+		String classPath = System.getProperty("java.class.path");
+		try {
+			String location = new File(PropNetEvaluator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+			return location + File.pathSeparator + classPath;
+		} catch (Exception e) {
+			return classPath;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.ggp.base.util.propnet.architecture;
+
+/**
+ * A PropNetEvaluator computes the values of every component of a
+ * CompiledPropNet from the values of its source components (base, input and
+ * INIT propositions, and constants), by evaluating the network's topological
+ * ordering from start to finish.
+ *
+ * The CompiledPropNet itself is an evaluator, which interprets its arrays;
+ * {@link PropNetCodeGenerator} produces evaluators that run generated code.
+ */
+public interface PropNetEvaluator
+{
+	/**
+	 * Sets the value of every computed component in the given bitset (one bit
+	 * per component id) from the values of the source components.
+	 */
+	void propagate(long[] values);
+}
@@ -54,6 +54,7 @@ import org.ggp.base.util.propnet.architecture.components.Not;
 import org.ggp.base.util.propnet.architecture.components.Or;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.propnet.factory.exceptions.PropNetTooLargeException;
 import org.ggp.base.util.statemachine.Role;
 
 import com.google.common.collect.HashMultiset;
@@ -114,6 +115,18 @@ public class OptimizingPropNetFactory {
 	}
 
 	public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+		return create(description, verbose, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, giving up
+	 * once it has more than maxComponents components.
+	 *
+	 * @throws PropNetTooLargeException if the PropNet grows too large.
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, int maxComponents) throws InterruptedException {
 		System.out.println("Building propnet...");
 
 		long startTime = System.currentTimeMillis();
@@ -171,6 +184,7 @@ public class OptimizingPropNetFactory {
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
+		ComponentBudget budget = new ComponentBudget(maxComponents);
 		for(SentenceForm form : topologicalOrdering) {
 			ConcurrencyUtils.checkForInterruption();
 
@@ -184,10 +198,12 @@ public class OptimizingPropNetFactory {
 				//Only add it if it's important
 				if(form.getName().equals(LEGAL)
 						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
+						|| form.getName().equals(INIT)
+						|| form.getName().equals(NEXT)) {
 					//Add it
 					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
 						Proposition trueProp = new Proposition(trueSentence);
+						budget.add(1);
 						trueProp.addInput(trueComponent);
 						trueComponent.addOutput(trueProp);
 						components.put(trueSentence, trueComponent);
@@ -207,7 +223,7 @@ public class OptimizingPropNetFactory {
 			//Add a temporary sentence form thingy? ...
 			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
 			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
+			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues, budget);
 			//TODO: Pass these over groups of multiple sentence forms
 			if(verbose && !temporaryComponents.isEmpty())
 				System.out.println("Processing temporary components...");
@@ -235,6 +251,8 @@ public class OptimizingPropNetFactory {
 		negations = null;
 		completeComponentSet(componentSet);
 		ConcurrencyUtils.checkForInterruption();
+		if(componentSet.size() > maxComponents)
+			throw new PropNetTooLargeException(maxComponents);
 		if(verbose)
 			System.out.println("Initializing propnet object...");
 		//Make it look the same as the PropNetFactory results, until we decide
@@ -836,7 +854,8 @@ public class OptimizingPropNetFactory {
 			Set<SentenceForm> recursionForms,
 			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
 			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			ComponentBudget budget) throws InterruptedException {
 		//This is the meat of it (along with the entire Assignments class).
 		//We need to enumerate the possible propositions in the sentence form...
 		//We also need to hook up the sentence form to the inputs that can make it true.
@@ -853,6 +872,7 @@ public class OptimizingPropNetFactory {
 					|| alwaysTrueSentence.getName().equals(NEXT)
 					|| alwaysTrueSentence.getName().equals(GOAL)) {
 				Proposition prop = new Proposition(alwaysTrueSentence);
+				budget.add(1);
 				//Attach to true
 				trueComponent.addOutput(prop);
 				prop.addInput(trueComponent);
@@ -872,6 +892,7 @@ public class OptimizingPropNetFactory {
 			for (GdlSentence inputSentence : constantChecker.getTrueSentences(inputForm)) {
 				GdlSentence doesSentence = GdlPool.getRelation(DOES, inputSentence.getBody());
 				Proposition prop = new Proposition(doesSentence);
+				budget.add(1);
 				components.put(doesSentence, prop);
 			}
 			return;
@@ -881,6 +902,7 @@ public class OptimizingPropNetFactory {
 			for (GdlSentence baseSentence : constantChecker.getTrueSentences(baseForm)) {
 				GdlSentence trueSentence = GdlPool.getRelation(TRUE, baseSentence.getBody());
 				Proposition prop = new Proposition(trueSentence);
+				budget.add(1);
 				components.put(trueSentence, prop);
 			}
 			return;
@@ -933,6 +955,7 @@ public class OptimizingPropNetFactory {
 						if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
 							//Set up a temporary component
 							Proposition tempProp = new Proposition(transformed);
+							budget.add(1);
 							temporaryComponents.put(transformed, tempProp);
 							conj = tempProp;
 						}
@@ -985,6 +1008,7 @@ public class OptimizingPropNetFactory {
 							if(positive == null) {
 								//Make the temporary proposition
 								Proposition tempProp = new Proposition(transformed);
+								budget.add(1);
 								temporaryComponents.put(transformed, tempProp);
 								positive = tempProp;
 							}
@@ -992,6 +1016,7 @@ public class OptimizingPropNetFactory {
 							//Evidently, wasn't in temporaryNegations
 							//So we add the "not" gate and set it in temporaryNegations
 							Not not = new Not();
+							budget.add(1);
 							//Add positive as input
 							not.addInput(positive);
 							positive.addOutput(not);
@@ -1020,6 +1045,7 @@ public class OptimizingPropNetFactory {
 							}
 
 							Not not = new Not();
+							budget.add(1);
 							not.addInput(positive);
 							positive.addOutput(not);
 							negations.put(transformed, not);
@@ -1037,6 +1063,9 @@ public class OptimizingPropNetFactory {
 					Proposition andComponent = new Proposition(TEMP);
 
 					andify(componentsToConnect, andComponent, trueComponent);
+					//The proposition is thrown away below, but an and gate may stay
+					if(componentsToConnect.size() > 1)
+						budget.add(1);
 					if(!isThisConstant(andComponent, falseComponent)) {
 						if(!inputsToOr.containsKey(sentence))
 							inputsToOr.put(sentence, new HashSet<Component>());
@@ -1070,6 +1099,7 @@ public class OptimizingPropNetFactory {
 
 			Proposition prop = new Proposition(sentence);
 			orify(realInputs, prop, falseComponent);
+			budget.add(realInputs.size() > 1 ? 2 : 1);
 			components.put(sentence, prop);
 		}
 
@@ -1082,12 +1112,34 @@ public class OptimizingPropNetFactory {
 				ConcurrencyUtils.checkForInterruption();
 
 				Proposition prop = new Proposition(sentence);
+				budget.add(1);
 				components.put(sentence, prop);
 			}
 		}
 
 	}
 
+	/**
+	 * Counts the components made while the PropNet is built, and gives up
+	 * as soon as there are more than the maximum. Components that are
+	 * optimized away later are still counted, so this can give up on a
+	 * PropNet that would have ended up just under the maximum.
+	 */
+	private static final class ComponentBudget {
+		private final int maxComponents;
+		private int numComponents = 0;
+
+		public ComponentBudget(int maxComponents) {
+			this.maxComponents = maxComponents;
+		}
+
+		public void add(int count) {
+			numComponents += count;
+			if(numComponents > maxComponents)
+				throw new PropNetTooLargeException(maxComponents);
+		}
+	}
+
 
 	private static Set<GdlVariable> getVarsInLiveConjuncts(
 			GdlRule rule, Set<SentenceForm> constantSentenceForms) {
@@ -0,0 +1,149 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.scrambler.GameFingerprint;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * The PropNetCache keeps compiled propnets on disk, so that games which are
+ * played again do not need their propnets rebuilt. Each propnet is stored in
+ * the binary form of {@link CompiledPropNet#write} in a file named after the
+ * game's {@link GameFingerprint}, and is read back through a memory-mapped
+ * buffer.
+ *
+ * Propnets are stored with the fingerprint's canonical constant names, and
+ * renamed back to the game's own names when loaded, so a scrambled replay of
+ * a game (or one whose rules are in another order) uses the same entry.
+ *
+ * Failures to read or write the cache are logged and otherwise ignored: a
+ * missing or unreadable entry just means the propnet has to be built.
+ */
+public final class PropNetCache
+{
+	public static final File DEFAULT_DIRECTORY = new File(System.getProperty("user.home"), ".ggp-propnetcache");
+	private static final String EXTENSION = ".propnet";
+
+	private final File directory;
+	/** The fingerprint of the last rules seen, which load and store share */
+	private List<Gdl> lastDescription;
+	private GameFingerprint lastFingerprint;
+
+	/**
+	 * Creates a cache in the default directory, in the user's home directory.
+	 */
+	public PropNetCache()
+	{
+		this(DEFAULT_DIRECTORY);
+	}
+
+	public PropNetCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the key of the given rules, which is their fingerprint.
+	 */
+	public static String computeKey(List<Gdl> description)
+	{
+		return GameFingerprint.compute(description).getHash();
+	}
+
+	private synchronized GameFingerprint getFingerprint(List<Gdl> description)
+	{
+		if (description != lastDescription) {
+			lastFingerprint = GameFingerprint.compute(description);
+			lastDescription = description;
+		}
+		return lastFingerprint;
+	}
+
+	/**
+	 * Returns the cached propnet for the given rules, or null if there is no
+	 * readable entry for them.
+	 */
+	public CompiledPropNet load(List<Gdl> description)
+	{
+		GameFingerprint fingerprint = getFingerprint(description);
+		File file = getFile(fingerprint);
+		if (!file.isFile()) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			RandomAccessFile input = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = input.getChannel();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				CompiledPropNet net = CompiledPropNet.read(buffer).withRenamedConstants(fingerprint.getInverseMapping());
+				if (!net.getRoles().equals(Role.computeRoles(description))) {
+					// The same game, but with its roles listed in another order.
+					GamerLogger.log("StateMachine", "Cached propnet " + file.getName() + " has its roles in another order; not using it.");
+					return null;
+				}
+				GamerLogger.log("StateMachine", "Loaded cached propnet " + file.getName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+				return net;
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			GamerLogger.logError("StateMachine", "Could not load cached propnet " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the propnet to the cache as the entry for the given rules. The
+	 * entry is written to a temporary file first and then renamed, so other
+	 * processes never see a partially written entry.
+	 */
+	public void store(List<Gdl> description, CompiledPropNet net)
+	{
+		GameFingerprint fingerprint = getFingerprint(description);
+		File file = getFile(fingerprint);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			GamerLogger.logError("StateMachine", "Could not create the propnet cache directory " + directory + ".");
+			return;
+		}
+		File temporary = null;
+		try {
+			temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				net.withRenamedConstants(fingerprint.getCanonicalMapping()).write(output);
+			} finally {
+				output.close();
+			}
+			if (!temporary.renameTo(file)) {
+				// Some platforms will not rename onto an existing file.
+				file.delete();
+				if (!temporary.renameTo(file)) {
+					throw new IOException("Could not rename " + temporary + " to " + file + ".");
+				}
+			}
+			GamerLogger.log("StateMachine", "Stored propnet in the cache as " + file.getName() + ".");
+		} catch (IOException e) {
+			GamerLogger.logError("StateMachine", "Could not store propnet in the cache: " + e);
+			if (temporary != null) {
+				temporary.delete();
+			}
+		}
+	}
+
+	private File getFile(GameFingerprint fingerprint)
+	{
+		return new File(directory, fingerprint.getHash() + EXTENSION);
+	}
+}
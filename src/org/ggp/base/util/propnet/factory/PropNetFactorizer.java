@@ -0,0 +1,286 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * The PropNetFactorizer splits a propnet into independent subgames, following
+ * "Factoring General Games using Propositional Automata" by Evan Cox et al.
+ *
+ * Two base propositions are in the same factor if the next value of one
+ * depends on the other, and a move is in the factor of the bases that its
+ * input proposition changes, or that its legality depends on. Factors
+ * therefore only meet at the terminal and goal propositions: playing a move
+ * of one factor leaves the bases of every other factor as they were, and
+ * which moves of a factor are legal depends only on that factor's bases.
+ *
+ * Moves whose inputs change no base (such as a noop) are in no factor; they
+ * are reported as free moves, and can be played alongside any factor.
+ *
+ * Games that don't decompose, which includes most games where the players
+ * take turns through a shared control proposition, come out as one factor.
+ */
+public final class PropNetFactorizer
+{
+	/**
+	 * One independent subgame: a set of base propositions, and the moves of
+	 * each role which change or are enabled by them.
+	 */
+	public static final class Factor
+	{
+		private final int[] baseIndices;
+		private final List<Set<Move>> moves;
+		private final List<Set<Move>> freeMoves;
+
+		private Factor(int[] baseIndices, List<Set<Move>> moves, List<Set<Move>> freeMoves)
+		{
+			this.baseIndices = baseIndices;
+			this.moves = moves;
+			this.freeMoves = freeMoves;
+		}
+
+		/** @return The indices of the factor's base propositions, in increasing order. */
+		public int[] getBaseIndices()
+		{
+			return baseIndices;
+		}
+
+		/** @return The moves of the given role that belong to this factor. */
+		public Set<Move> getMoves(int roleIndex)
+		{
+			return moves.get(roleIndex);
+		}
+
+		/**
+		 * @return The moves of the given role that belong to no factor, and
+		 * which are the same for every factor of a propnet.
+		 */
+		public Set<Move> getFreeMoves(int roleIndex)
+		{
+			return freeMoves.get(roleIndex);
+		}
+
+		/** @return Whether any role has a move in this factor. */
+		public boolean hasMoves()
+		{
+			for (Set<Move> roleMoves : moves) {
+				if (!roleMoves.isEmpty())
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Factor(" + baseIndices.length + " bases, moves=" + moves + ")";
+		}
+	}
+
+	private final CompiledPropNet net;
+	private final int numBases;
+	/** The base index of each component, or -1 */
+	private final int[] baseIndexOf;
+	/** The union-find node of each input proposition, or -1 */
+	private final int[] inputNodeOf;
+	/** Union-find parents: base indices, followed by the input propositions */
+	private final int[] parents;
+
+	private PropNetFactorizer(CompiledPropNet net)
+	{
+		this.net = net;
+		this.numBases = net.getBasePropositions().length;
+		this.baseIndexOf = new int[net.getNumComponents()];
+		this.inputNodeOf = new int[net.getNumComponents()];
+		Arrays.fill(baseIndexOf, -1);
+		Arrays.fill(inputNodeOf, -1);
+		for (int i = 0; i < numBases; i++) {
+			baseIndexOf[net.getBasePropositions()[i]] = i;
+		}
+		int[] inputPropositions = net.getInputPropositions();
+		for (int i = 0; i < inputPropositions.length; i++) {
+			inputNodeOf[inputPropositions[i]] = numBases + i;
+		}
+		this.parents = new int[numBases + inputPropositions.length];
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+	}
+
+	/**
+	 * Returns the factors of the given propnet, which partition its base
+	 * propositions. A propnet that doesn't decompose has a single factor.
+	 */
+	public static List<Factor> factor(CompiledPropNet net)
+	{
+		long startTime = System.currentTimeMillis();
+		List<Factor> factors = new PropNetFactorizer(net).computeFactors();
+		StringBuilder sizes = new StringBuilder();
+		for (Factor factor : factors) {
+			if (sizes.length() > 0)
+				sizes.append(", ");
+			sizes.append(factor.getBaseIndices().length);
+		}
+		GamerLogger.log("StateMachine", "Found " + factors.size() + " factors in " + (System.currentTimeMillis() - startTime) + "ms, with " + sizes + " bases.");
+		return factors;
+	}
+
+	private List<Factor> computeFactors()
+	{
+		// Join each base with the bases and inputs that its next value depends on.
+		boolean[] changesBases = new boolean[parents.length];
+		int[] transitions = net.getBaseTransitions();
+		for (int i = 0; i < numBases; i++) {
+			for (int source : getSources(transitions[i])) {
+				int node = getNode(source);
+				if (node != -1) {
+					union(i, node);
+					changesBases[node] = true;
+				}
+			}
+		}
+
+		// Join each move that changes something with the bases its legality depends on.
+		int[][] legals = net.getLegalPropositions();
+		int[][] legalInputs = net.getLegalInputs();
+		for (int r = 0; r < legals.length; r++) {
+			for (int i = 0; i < legals[r].length; i++) {
+				int input = legalInputs[r][i];
+				if (input == -1 || !changesBases[inputNodeOf[input]])
+					continue;
+				for (int source : getSources(legals[r][i])) {
+					int node = getNode(source);
+					if (node != -1) {
+						union(inputNodeOf[input], node);
+					}
+				}
+			}
+		}
+
+		// Every factor is named after the root of its first base.
+		int[] factorOfRoot = new int[parents.length];
+		Arrays.fill(factorOfRoot, -1);
+		List<List<Integer>> basesByFactor = new ArrayList<List<Integer>>();
+		for (int i = 0; i < numBases; i++) {
+			int root = find(i);
+			if (factorOfRoot[root] == -1) {
+				factorOfRoot[root] = basesByFactor.size();
+				basesByFactor.add(new ArrayList<Integer>());
+			}
+			basesByFactor.get(factorOfRoot[root]).add(i);
+		}
+
+		int numRoles = legals.length;
+		Move[][] legalMoves = net.getLegalMoves();
+		List<List<Set<Move>>> movesByFactor = new ArrayList<List<Set<Move>>>();
+		for (int f = 0; f < basesByFactor.size(); f++) {
+			movesByFactor.add(newMoveSets(numRoles));
+		}
+		List<Set<Move>> freeMoves = newMoveSets(numRoles);
+		for (int r = 0; r < numRoles; r++) {
+			for (int i = 0; i < legals[r].length; i++) {
+				int input = legalInputs[r][i];
+				if (input == -1) {
+					// A legal move that can't be played changes nothing.
+					freeMoves.get(r).add(legalMoves[r][i]);
+					continue;
+				}
+				int node = inputNodeOf[input];
+				int factor = changesBases[node] ? factorOfRoot[find(node)] : -1;
+				if (factor == -1) {
+					freeMoves.get(r).add(legalMoves[r][i]);
+				} else {
+					movesByFactor.get(factor).get(r).add(legalMoves[r][i]);
+				}
+			}
+		}
+		for (int r = 0; r < numRoles; r++) {
+			freeMoves.set(r, Collections.unmodifiableSet(freeMoves.get(r)));
+		}
+
+		List<Factor> factors = new ArrayList<Factor>();
+		for (int f = 0; f < basesByFactor.size(); f++) {
+			List<Integer> bases = basesByFactor.get(f);
+			int[] baseIndices = new int[bases.size()];
+			for (int i = 0; i < baseIndices.length; i++) {
+				baseIndices[i] = bases.get(i);
+			}
+			List<Set<Move>> moves = movesByFactor.get(f);
+			for (int r = 0; r < numRoles; r++) {
+				moves.set(r, Collections.unmodifiableSet(moves.get(r)));
+			}
+			factors.add(new Factor(baseIndices, moves, freeMoves));
+		}
+		return factors;
+	}
+
+	private static List<Set<Move>> newMoveSets(int numRoles)
+	{
+		List<Set<Move>> sets = new ArrayList<Set<Move>>(numRoles);
+		for (int r = 0; r < numRoles; r++) {
+			sets.add(new HashSet<Move>());
+		}
+		return sets;
+	}
+
+	/**
+	 * Returns the union-find node of a base or input proposition, or -1 for
+	 * other components.
+	 */
+	private int getNode(int id)
+	{
+		if (baseIndexOf[id] != -1)
+			return baseIndexOf[id];
+		return inputNodeOf[id];
+	}
+
+	/**
+	 * Returns the source components that the given component's value
+	 * depends on.
+	 */
+	private Set<Integer> getSources(int target)
+	{
+		Set<Integer> sources = new HashSet<Integer>();
+		if (CompiledPropNet.isSource(net.getType(target))) {
+			sources.add(target);
+			return sources;
+		}
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+		int[] cone = net.getCone(target);
+		for (int id : cone) {
+			for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+				if (CompiledPropNet.isSource(net.getType(inputs[j]))) {
+					sources.add(inputs[j]);
+				}
+			}
+		}
+		return sources;
+	}
+
+	private int find(int node)
+	{
+		while (parents[node] != node) {
+			parents[node] = parents[parents[node]];
+			node = parents[node];
+		}
+		return node;
+	}
+
+	private void union(int a, int b)
+	{
+		int rootA = find(a);
+		int rootB = find(b);
+		if (rootA != rootB) {
+			parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+
+/**
+ * The PropNetLatchAnalyzer finds the latches of a propnet: base propositions
+ * that keep their value once they have it. A positive latch stays true once
+ * it is true, whatever the other bases and the moves are, and a negative
+ * latch stays false once it is false.
+ *
+ * Latches that the goal propositions depend on can fix the outcome of a game
+ * long before it ends. {@link #getFixedGoals(long[])} works out, from the
+ * latches that are engaged in a state, whether every role's goal value is
+ * already certain; if so, every terminal state reachable from that state has
+ * those goal values, and a depth charge can stop there.
+ *
+ * Both questions are answered by three-valued propagation, where components
+ * whose value depends on anything unknown are themselves unknown. This only
+ * finds latches that hold by themselves, and not sets of bases that only
+ * hold each other in place, but what it finds is always sound.
+ *
+ * Instances can be shared between threads.
+ */
+public final class PropNetLatchAnalyzer
+{
+	private static final byte FALSE = 0;
+	private static final byte TRUE = 1;
+	private static final byte UNKNOWN = 2;
+
+	/** The results of getFixedGoals are remembered for this many latch assignments. */
+	private static final int MAX_MEMO_SIZE = 1 << 16;
+	private static final int[] NOT_FIXED = new int[0];
+
+	private final CompiledPropNet net;
+	private final boolean[] positiveLatches;
+	private final boolean[] negativeLatches;
+	/** The base indices of the latches in the goal propositions' cone, in increasing order */
+	private final int[] goalLatches;
+	/** Every computed component the goal propositions depend on, in topological order */
+	private final int[] goalCone;
+	/** The fixed goals, or NOT_FIXED, by engaged goal latches */
+	private final Map<BitSet, int[]> fixedGoals = new ConcurrentHashMap<BitSet, int[]>();
+
+	private PropNetLatchAnalyzer(CompiledPropNet net)
+	{
+		this.net = net;
+		int numBases = net.getBasePropositions().length;
+		this.positiveLatches = new boolean[numBases];
+		this.negativeLatches = new boolean[numBases];
+		int[] transitions = net.getBaseTransitions();
+		for (int i = 0; i < numBases; i++) {
+			int[] cone = net.getCone(transitions[i]);
+			positiveLatches[i] = evaluateWithOneBase(cone, i, TRUE, transitions[i]) == TRUE;
+			negativeLatches[i] = evaluateWithOneBase(cone, i, FALSE, transitions[i]) == FALSE;
+		}
+
+		List<Integer> goalPropositions = new ArrayList<Integer>();
+		for (int[] roleGoals : net.getGoalPropositions()) {
+			for (int goal : roleGoals) {
+				goalPropositions.add(goal);
+			}
+		}
+		int[] targets = new int[goalPropositions.size()];
+		for (int i = 0; i < targets.length; i++) {
+			targets[i] = goalPropositions.get(i);
+		}
+		this.goalCone = net.getCone(targets);
+		this.goalLatches = findLatchSources(goalCone, targets);
+	}
+
+	/**
+	 * Finds the latches of the given propnet, and logs how many there are.
+	 */
+	public static PropNetLatchAnalyzer analyze(CompiledPropNet net)
+	{
+		long startTime = System.currentTimeMillis();
+		PropNetLatchAnalyzer analyzer = new PropNetLatchAnalyzer(net);
+		int numPositive = 0, numNegative = 0;
+		for (int i = 0; i < analyzer.positiveLatches.length; i++) {
+			if (analyzer.positiveLatches[i]) numPositive++;
+			if (analyzer.negativeLatches[i]) numNegative++;
+		}
+		GamerLogger.log("StateMachine", "Found " + numPositive + " positive and " + numNegative + " negative latches in "
+				+ (System.currentTimeMillis() - startTime) + "ms, " + analyzer.goalLatches.length + " of which the goals depend on.");
+		return analyzer;
+	}
+
+	public boolean isPositiveLatch(int baseIndex)
+	{
+		return positiveLatches[baseIndex];
+	}
+
+	public boolean isNegativeLatch(int baseIndex)
+	{
+		return negativeLatches[baseIndex];
+	}
+
+	/** @return The base indices of the latches that the goals depend on. */
+	public int[] getGoalLatches()
+	{
+		return goalLatches;
+	}
+
+	/**
+	 * Returns the goal value of every role if it is the same in every state
+	 * reachable from a state with the given bases, or null if it may still
+	 * change.
+	 *
+	 * Only the bits of the goal latches (see {@link #getGoalLatches()}) are
+	 * read, so callers may leave the other bases unset.
+	 *
+	 * @param baseBits The value of every base proposition, one bit per base
+	 * index, as in a PropNetMachineState.
+	 */
+	public int[] getFixedGoals(long[] baseBits)
+	{
+		if (goalLatches.length == 0) {
+			return null;
+		}
+		BitSet engaged = new BitSet(2 * goalLatches.length);
+		for (int i = 0; i < goalLatches.length; i++) {
+			int base = goalLatches[i];
+			boolean value = (baseBits[base >>> 6] & (1L << base)) != 0;
+			if (value && positiveLatches[base]) {
+				engaged.set(2 * i);
+			} else if (!value && negativeLatches[base]) {
+				engaged.set(2 * i + 1);
+			}
+		}
+		if (engaged.isEmpty()) {
+			return null;
+		}
+		int[] goals = fixedGoals.get(engaged);
+		if (goals == null) {
+			goals = computeFixedGoals(engaged);
+			if (fixedGoals.size() < MAX_MEMO_SIZE) {
+				fixedGoals.put(engaged, goals);
+			}
+		}
+		return goals == NOT_FIXED ? null : goals;
+	}
+
+	/**
+	 * Propagates the goal cone with only the engaged latches known, and
+	 * returns the goals if every role has exactly one goal proposition that
+	 * is true and all of its others false.
+	 */
+	private int[] computeFixedGoals(BitSet engaged)
+	{
+		byte[] values = newValues();
+		for (int i = 0; i < goalLatches.length; i++) {
+			int base = net.getBasePropositions()[goalLatches[i]];
+			if (engaged.get(2 * i)) {
+				values[base] = TRUE;
+			} else if (engaged.get(2 * i + 1)) {
+				values[base] = FALSE;
+			}
+		}
+		propagate(values, goalCone);
+
+		int[][] goalPropositions = net.getGoalPropositions();
+		int[][] goalValues = net.getGoalValues();
+		int[] goals = new int[goalPropositions.length];
+		for (int r = 0; r < goalPropositions.length; r++) {
+			int numTrue = 0;
+			for (int i = 0; i < goalPropositions[r].length; i++) {
+				byte value = values[goalPropositions[r][i]];
+				if (value == UNKNOWN) {
+					return NOT_FIXED;
+				} else if (value == TRUE) {
+					goals[r] = goalValues[r][i];
+					numTrue++;
+				}
+			}
+			if (numTrue != 1) {
+				return NOT_FIXED;
+			}
+		}
+		return goals;
+	}
+
+	private byte evaluateWithOneBase(int[] cone, int baseIndex, byte baseValue, int target)
+	{
+		byte[] values = newValues();
+		values[net.getBasePropositions()[baseIndex]] = baseValue;
+		propagate(values, cone);
+		return values[target];
+	}
+
+	/**
+	 * Returns new values where the bases and inputs are unknown. The INIT
+	 * proposition is false, since latches are about the states that follow.
+	 */
+	private byte[] newValues()
+	{
+		byte[] values = new byte[net.getNumComponents()];
+		Arrays.fill(values, UNKNOWN);
+		for (int id = 0; id < values.length; id++) {
+			byte type = net.getType(id);
+			if (type == CompiledPropNet.TYPE_TRUE) {
+				values[id] = TRUE;
+			} else if (type == CompiledPropNet.TYPE_FALSE || type == CompiledPropNet.TYPE_INIT) {
+				values[id] = FALSE;
+			}
+		}
+		return values;
+	}
+
+	private void propagate(byte[] values, int[] ordering)
+	{
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+		for (int id : ordering) {
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			byte value;
+			switch (net.getType(id)) {
+			case CompiledPropNet.TYPE_AND:
+				value = TRUE;
+				for (int j = start; j < end && value != FALSE; j++) {
+					byte input = values[inputs[j]];
+					if (input != TRUE) {
+						value = input;
+					}
+				}
+				break;
+			case CompiledPropNet.TYPE_NOT:
+				byte input = values[inputs[start]];
+				value = (input == UNKNOWN) ? UNKNOWN : (input == TRUE ? FALSE : TRUE);
+				break;
+			default:
+				value = FALSE;
+				for (int j = start; j < end && value != TRUE; j++) {
+					byte in = values[inputs[j]];
+					if (in != FALSE) {
+						value = in;
+					}
+				}
+				break;
+			}
+			values[id] = value;
+		}
+	}
+
+	/**
+	 * Returns the base indices of the latches among the sources that the
+	 * given cone (or the targets themselves) read.
+	 */
+	private int[] findLatchSources(int[] cone, int[] targets)
+	{
+		int numBases = positiveLatches.length;
+		boolean[] isSource = new boolean[net.getNumComponents()];
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+		for (int id : cone) {
+			for (int j = inputOffsets[id]; j < inputOffsets[id + 1]; j++) {
+				isSource[inputs[j]] = true;
+			}
+		}
+		for (int target : targets) {
+			isSource[target] = true;
+		}
+		List<Integer> latches = new ArrayList<Integer>();
+		for (int i = 0; i < numBases; i++) {
+			if ((positiveLatches[i] || negativeLatches[i]) && isSource[net.getBasePropositions()[i]]) {
+				latches.add(i);
+			}
+		}
+		int[] result = new int[latches.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = latches.get(i);
+		}
+		return result;
+	}
+}
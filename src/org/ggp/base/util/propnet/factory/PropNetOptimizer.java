@@ -0,0 +1,282 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * The PropNetOptimizer rewrites an already-built PropNet into a smaller,
+ * equivalent one by running a configurable list of passes over it. Each pass
+ * preserves the values of every base, input, legal, goal, terminal and init
+ * proposition; only anonymous propositions and gates are merged or removed.
+ *
+ * The passes are run in the given order, and the whole list is repeated
+ * until none of them changes the PropNet any more, since one pass often
+ * creates opportunities for another (e.g. removing a proposition between
+ * two Ands lets them be merged into one).
+ *
+ * Like the other post-creation optimizations in {@link OptimizingPropNetFactory},
+ * this modifies the PropNet in place, and should only be done before the
+ * PropNet is in use, from a single thread.
+ */
+public final class PropNetOptimizer
+{
+	public static enum Pass {
+		/**
+		 * Splices out propositions with no meaning to the state machine,
+		 * connecting their single input straight to their outputs.
+		 */
+		NONESSENTIAL_PROPOSITIONS,
+		/** Replaces Ands and Ors that have a single input by that input. */
+		SINGLE_INPUT_GATES,
+		/**
+		 * Removes double negations, and rewrites Ands and Ors whose inputs are
+		 * all Nots into a single Not of the dual gate.
+		 */
+		DE_MORGAN,
+		/**
+		 * Merges Ands (Ors) into the And (Or) that is their only output.
+		 */
+		GATE_CHAINS,
+		/** Merges gates of the same type with the same inputs. */
+		COMMON_SUBEXPRESSIONS
+	}
+
+	private static final int MAX_ROUNDS = 10;
+
+	private final List<Pass> passes;
+
+	/**
+	 * Creates an optimizer that runs every pass.
+	 */
+	public PropNetOptimizer()
+	{
+		this(Pass.values());
+	}
+
+	public PropNetOptimizer(Pass... passes)
+	{
+		this.passes = new ArrayList<Pass>(Arrays.asList(passes));
+	}
+
+	/**
+	 * Optimizes the given PropNet in place, and logs its size before and after.
+	 */
+	public void optimize(PropNet pn)
+	{
+		long startTime = System.currentTimeMillis();
+		String before = describe(pn);
+		Map<Pass, Integer> removed = new EnumMap<Pass, Integer>(Pass.class);
+		for (Pass pass : passes) {
+			removed.put(pass, 0);
+		}
+
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			boolean changed = false;
+			for (Pass pass : passes) {
+				int sizeBefore = pn.getSize();
+				if (runPass(pass, pn)) {
+					changed = true;
+				}
+				removed.put(pass, removed.get(pass) + sizeBefore - pn.getSize());
+			}
+			if (!changed)
+				break;
+		}
+
+		GamerLogger.log("StateMachine", "Optimized propnet in " + (System.currentTimeMillis() - startTime) + "ms, from " + before + " to " + describe(pn) + ".");
+		GamerLogger.log("StateMachine", "Components removed by each pass: " + removed);
+	}
+
+	private static String describe(PropNet pn)
+	{
+		return pn.getSize() + " components (" + pn.getNumAnds() + " ands, " + pn.getNumOrs() + " ors, " + pn.getNumNots() + " nots) and " + pn.getNumLinks() + " links";
+	}
+
+	private static boolean runPass(Pass pass, PropNet pn)
+	{
+		switch (pass) {
+		case NONESSENTIAL_PROPOSITIONS:
+			return removeNonessentialPropositions(pn);
+		case SINGLE_INPUT_GATES:
+			return collapseSingleInputGates(pn);
+		case DE_MORGAN:
+			return normalizeNots(pn);
+		case GATE_CHAINS:
+			return mergeGateChains(pn);
+		case COMMON_SUBEXPRESSIONS:
+			return mergeCommonSubexpressions(pn);
+		default:
+			throw new IllegalArgumentException("Unknown pass: " + pass);
+		}
+	}
+
+	/**
+	 * A proposition is essential if the state machine reads or sets it, or
+	 * if it is not simply a named copy of a single input.
+	 */
+	private static boolean isEssential(Proposition p)
+	{
+		if (p.getInputs().size() != 1)
+			return true;
+		if (p.getSingleInput() instanceof Transition)
+			return true;
+		GdlConstant name = p.getName().getName();
+		return name == GdlPool.LEGAL || name == GdlPool.GOAL || name == GdlPool.INIT
+				|| name == GdlPool.TERMINAL || name == GdlPool.DOES;
+	}
+
+	private static boolean isAndOr(Component c)
+	{
+		return c instanceof And || c instanceof Or;
+	}
+
+	private static void link(Component input, Component output)
+	{
+		input.addOutput(output);
+		output.addInput(input);
+	}
+
+	/**
+	 * Moves every output of the old component over to the replacement, and
+	 * removes the old component.
+	 */
+	private static void replace(PropNet pn, Component old, Component replacement)
+	{
+		for (Component output : new ArrayList<Component>(old.getOutputs())) {
+			output.removeInput(old);
+			link(replacement, output);
+		}
+		pn.removeComponent(old);
+	}
+
+	private static boolean removeNonessentialPropositions(PropNet pn)
+	{
+		boolean changed = false;
+		for (Proposition p : new ArrayList<Proposition>(pn.getPropositions())) {
+			if (!isEssential(p)) {
+				replace(pn, p, p.getSingleInput());
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean collapseSingleInputGates(PropNet pn)
+	{
+		boolean changed = false;
+		for (Component c : new ArrayList<Component>(pn.getComponents())) {
+			if (isAndOr(c) && c.getInputs().size() == 1) {
+				replace(pn, c, c.getSingleInput());
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean normalizeNots(PropNet pn)
+	{
+		boolean changed = false;
+		for (Component c : new ArrayList<Component>(pn.getComponents())) {
+			if (!pn.getComponents().contains(c))
+				continue;
+			if (c instanceof Not && c.getSingleInput() instanceof Not) {
+				// Not(Not(x)) is x.
+				Component inner = c.getSingleInput();
+				replace(pn, c, inner.getSingleInput());
+				if (inner.getOutputs().isEmpty()) {
+					pn.removeComponent(inner);
+				}
+				changed = true;
+			} else if (isAndOr(c) && c.getInputs().size() > 1 && hasOnlyPrivateNotInputs(c)) {
+				// And(Not(x), Not(y)) is Not(Or(x, y)), and vice versa.
+				Component dual = (c instanceof And) ? new Or() : new And();
+				Not not = new Not();
+				pn.addComponent(dual);
+				pn.addComponent(not);
+				for (Component input : new ArrayList<Component>(c.getInputs())) {
+					link(input.getSingleInput(), dual);
+					pn.removeComponent(input);
+				}
+				link(dual, not);
+				replace(pn, c, not);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean hasOnlyPrivateNotInputs(Component gate)
+	{
+		for (Component input : gate.getInputs()) {
+			if (!(input instanceof Not) || input.getOutputs().size() != 1)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean mergeGateChains(PropNet pn)
+	{
+		boolean changed = false;
+		for (Component c : new ArrayList<Component>(pn.getComponents())) {
+			if (!isAndOr(c) || !pn.getComponents().contains(c))
+				continue;
+			boolean merged = true;
+			while (merged) {
+				merged = false;
+				for (Component input : new ArrayList<Component>(c.getInputs())) {
+					if (input.getClass() == c.getClass() && input.getOutputs().size() == 1) {
+						for (Component grandInput : new ArrayList<Component>(input.getInputs())) {
+							link(grandInput, c);
+						}
+						pn.removeComponent(input);
+						merged = true;
+						changed = true;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Visits gates in topological order, so that by the time a gate is looked
+	 * at, its inputs have already been merged with their duplicates.
+	 */
+	private static boolean mergeCommonSubexpressions(PropNet pn)
+	{
+		boolean changed = false;
+		Map<List<Object>, Component> representatives = new HashMap<List<Object>, Component>();
+		for (Component c : pn.getTopologicalOrdering()) {
+			if (!(isAndOr(c) || c instanceof Not))
+				continue;
+			List<Object> key = new ArrayList<Object>(2);
+			key.add(c.getClass());
+			key.add(new HashSet<Component>(c.getInputs()));
+			Component representative = representatives.get(key);
+			if (representative == null) {
+				representatives.put(key, c);
+			} else {
+				replace(pn, c, representative);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+}
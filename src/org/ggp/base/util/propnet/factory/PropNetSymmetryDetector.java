@@ -0,0 +1,538 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+
+/**
+ * The PropNetSymmetryDetector finds the symmetries of a game from its
+ * propnet: permutations of the components that map every link to a link,
+ * and every component to one with the same meaning. Bases go to bases,
+ * the legals and inputs of a role to those of the same role, with each
+ * legal still matching its input, and the goals of a role to goals of the
+ * same role and value. Permuting the bases of a state by such a symmetry
+ * gives a state which is terminal exactly when the first one is, where
+ * every role has the same goal value, and whose legal moves and next states
+ * are the permuted ones. In tic-tac-toe these are the rotations and
+ * reflections of the board.
+ *
+ * Symmetries are found as graph automorphisms, by colour refinement and
+ * individualizing one component at a time, in the manner of McKay's
+ * nauty. The search is bounded, and symmetries that it misses are simply
+ * not used, so what it finds is always sound.
+ *
+ * {@link #canonicalize(long[])} maps a state to the smallest of its images,
+ * so that states which are the same up to symmetry can share entries in
+ * caches and search trees.
+ *
+ * Instances can be shared between threads.
+ */
+public final class PropNetSymmetryDetector
+{
+	/** Larger propnets are not searched for symmetries. */
+	private static final int MAX_COMPONENTS = 1 << 16;
+	/** The search gives up after trying this many individualizations... */
+	private static final int MAX_SEARCH_NODES = 1 << 14;
+	/** ...or after this long. */
+	private static final long MAX_SEARCH_MILLIS = 2000;
+	/** Symmetries beyond this many are not generated. */
+	private static final int MAX_GROUP_SIZE = 1 << 10;
+
+	private final CompiledPropNet net;
+	private final int numComponents;
+	/** The inputs of every component, plus the transition of each base and the legal of each input */
+	private final int[][] ins;
+	/** The initial colour of every component, which tells its type and meaning */
+	private final int[] labels;
+	/** The base permutations of the symmetries found, but the identity: base i goes to base symmetries[k][i] */
+	private final int[][] symmetries;
+
+	private long deadline;
+	private int searchNodes;
+	/** The colourings along the first path of the search, one per level */
+	private final List<int[]> pathColorings = new ArrayList<int[]>();
+	/** The colour of the cell split at each level of the first path */
+	private final List<Integer> pathCells = new ArrayList<Integer>();
+	private int[] leaf;
+
+	private PropNetSymmetryDetector(CompiledPropNet net)
+	{
+		this.net = net;
+		this.numComponents = net.getNumComponents();
+		this.ins = new int[numComponents][];
+		this.labels = new int[numComponents];
+		if (numComponents > MAX_COMPONENTS) {
+			this.symmetries = new int[0][];
+			return;
+		}
+		buildGraph();
+		this.symmetries = generateGroup(findAutomorphisms());
+	}
+
+	/**
+	 * Finds the symmetries of the given propnet, and logs how many there are.
+	 */
+	public static PropNetSymmetryDetector analyze(CompiledPropNet net)
+	{
+		long startTime = System.currentTimeMillis();
+		PropNetSymmetryDetector detector = new PropNetSymmetryDetector(net);
+		GamerLogger.log("StateMachine", "Found " + detector.getNumSymmetries() + " symmetries in "
+				+ (System.currentTimeMillis() - startTime) + "ms, after " + detector.searchNodes + " search nodes.");
+		return detector;
+	}
+
+	/** @return The number of symmetries found, counting the identity. */
+	public int getNumSymmetries()
+	{
+		return symmetries.length + 1;
+	}
+
+	/**
+	 * @return The base permutations of the symmetries found, but the
+	 * identity. Each maps base index i to base index permutation[i].
+	 */
+	public int[][] getBasePermutations()
+	{
+		return symmetries;
+	}
+
+	/**
+	 * Returns the smallest image of the given bases under the symmetries
+	 * found, or the given array itself if that is the smallest. States that
+	 * are the same up to symmetry have the same smallest image, unless the
+	 * game has more than {@value #MAX_GROUP_SIZE} symmetries, in which case
+	 * only some of them are.
+	 *
+	 * @param baseBits The value of every base proposition, one bit per base
+	 * index, as in a PropNetMachineState.
+	 */
+	public long[] canonicalize(long[] baseBits)
+	{
+		long[] best = baseBits;
+		long[] image = new long[baseBits.length];
+		for (int[] symmetry : symmetries) {
+			Arrays.fill(image, 0);
+			for (int w = 0; w < baseBits.length; w++) {
+				long word = baseBits[w];
+				while (word != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					int j = symmetry[i];
+					image[j >>> 6] |= (1L << j);
+				}
+			}
+			if (compare(image, best) < 0) {
+				best = image;
+				image = new long[baseBits.length];
+			}
+		}
+		return best;
+	}
+
+	private static int compare(long[] a, long[] b)
+	{
+		for (int w = a.length - 1; w >= 0; w--) {
+			if (a[w] != b[w]) {
+				return (a[w] + Long.MIN_VALUE) < (b[w] + Long.MIN_VALUE) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	private void buildGraph()
+	{
+		List<List<Integer>> extraInputs = new ArrayList<List<Integer>>(numComponents);
+		String[] names = new String[numComponents];
+		for (int id = 0; id < numComponents; id++) {
+			extraInputs.add(new ArrayList<Integer>());
+			names[id] = "t" + net.getType(id);
+		}
+		int[] bases = net.getBasePropositions();
+		int[] transitions = net.getBaseTransitions();
+		for (int i = 0; i < bases.length; i++) {
+			extraInputs.get(bases[i]).add(transitions[i]);
+		}
+		int[][] legals = net.getLegalPropositions();
+		int[][] legalInputs = net.getLegalInputs();
+		int[][] goals = net.getGoalPropositions();
+		for (int r = 0; r < legals.length; r++) {
+			for (int i = 0; i < legals[r].length; i++) {
+				names[legals[r][i]] += " legal" + r;
+				if (legalInputs[r][i] != -1) {
+					extraInputs.get(legalInputs[r][i]).add(legals[r][i]);
+				}
+			}
+			for (int i = 0; i < goals[r].length; i++) {
+				names[goals[r][i]] += " goal" + r + "=" + net.getGoalValues()[r][i];
+			}
+		}
+		for (int r = 0; r < net.getRoles().size(); r++) {
+			for (int i = 0; i < legalInputs[r].length; i++) {
+				if (legalInputs[r][i] != -1) {
+					names[legalInputs[r][i]] += " input" + r;
+				}
+			}
+		}
+		if (net.getTerminalProposition() != -1) {
+			names[net.getTerminalProposition()] += " terminal";
+		}
+		if (net.getInitProposition() != -1) {
+			names[net.getInitProposition()] += " init";
+		}
+		// Inputs that no legal matches can't be told apart by their role,
+		// so they are left where they are.
+		for (int input : net.getInputPropositions()) {
+			if (!names[input].contains("input")) {
+				names[input] += " fixed" + input;
+			}
+		}
+
+		Map<String, Integer> colors = new TreeMap<String, Integer>();
+		for (String name : names) {
+			colors.put(name, 0);
+		}
+		int color = 0;
+		for (Map.Entry<String, Integer> entry : colors.entrySet()) {
+			entry.setValue(color++);
+		}
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+		for (int id = 0; id < numComponents; id++) {
+			labels[id] = colors.get(names[id]);
+			List<Integer> extra = extraInputs.get(id);
+			int numInputs = inputOffsets[id + 1] - inputOffsets[id];
+			ins[id] = new int[numInputs + extra.size()];
+			System.arraycopy(inputs, inputOffsets[id], ins[id], 0, numInputs);
+			for (int j = 0; j < extra.size(); j++) {
+				ins[id][numInputs + j] = extra.get(j);
+			}
+		}
+	}
+
+	/**
+	 * Returns a set of automorphisms of the graph that generates its
+	 * automorphism group, or a part of it if the search ran out of budget.
+	 */
+	private List<int[]> findAutomorphisms()
+	{
+		deadline = System.currentTimeMillis() + MAX_SEARCH_MILLIS;
+		int[] colors = refine(labels);
+		while (true) {
+			int cell = chooseCell(colors);
+			if (cell == -1) {
+				break;
+			}
+			pathColorings.add(colors);
+			pathCells.add(cell);
+			colors = refine(individualize(colors, firstOfColor(colors, cell)));
+		}
+		leaf = colors;
+
+		// Going up the first path, find an automorphism taking the vertex
+		// it individualized to each other vertex of its cell, unless one
+		// found already does. Every automorphism found so far fixes the
+		// vertices individualized above.
+		List<int[]> automorphisms = new ArrayList<int[]>();
+		int[] orbits = new int[numComponents];
+		for (int i = 0; i < numComponents; i++) {
+			orbits[i] = i;
+		}
+		for (int level = pathColorings.size() - 1; level >= 0 && !outOfBudget(); level--) {
+			int[] levelColors = pathColorings.get(level);
+			int cell = pathCells.get(level);
+			int v = firstOfColor(levelColors, cell);
+			for (int w = 0; w < numComponents && !outOfBudget(); w++) {
+				if (levelColors[w] != cell || w == v || find(orbits, w) == find(orbits, v)) {
+					continue;
+				}
+				int[] automorphism = searchFrom(refine(individualize(levelColors, w)), level + 1);
+				if (automorphism != null) {
+					automorphisms.add(automorphism);
+					for (int x = 0; x < numComponents; x++) {
+						union(orbits, x, automorphism[x]);
+					}
+				}
+			}
+		}
+		return automorphisms;
+	}
+
+	/**
+	 * Searches below a node of the search tree whose colouring is given,
+	 * splitting the same cells as the first path, for a leaf that the first
+	 * path's leaf maps onto by an automorphism.
+	 */
+	private int[] searchFrom(int[] colors, int level)
+	{
+		searchNodes++;
+		int[] reference = (level == pathColorings.size()) ? leaf : pathColorings.get(level);
+		if (outOfBudget() || !sameCellSizes(colors, reference)) {
+			return null;
+		}
+		if (level == pathColorings.size()) {
+			int[] vertexOfColor = new int[numComponents];
+			for (int x = 0; x < numComponents; x++) {
+				vertexOfColor[colors[x]] = x;
+			}
+			int[] automorphism = new int[numComponents];
+			for (int x = 0; x < numComponents; x++) {
+				automorphism[x] = vertexOfColor[leaf[x]];
+			}
+			return isAutomorphism(automorphism) ? automorphism : null;
+		}
+		int cell = pathCells.get(level);
+		for (int u = 0; u < numComponents; u++) {
+			if (colors[u] == cell) {
+				int[] automorphism = searchFrom(refine(individualize(colors, u)), level + 1);
+				if (automorphism != null || outOfBudget()) {
+					return automorphism;
+				}
+			}
+		}
+		return null;
+	}
+
+	private boolean outOfBudget()
+	{
+		return searchNodes > MAX_SEARCH_NODES || System.currentTimeMillis() > deadline;
+	}
+
+	private boolean isAutomorphism(int[] permutation)
+	{
+		for (int x = 0; x < numComponents; x++) {
+			int y = permutation[x];
+			if (labels[x] != labels[y] || ins[x].length != ins[y].length) {
+				return false;
+			}
+			int[] mapped = new int[ins[x].length];
+			for (int j = 0; j < mapped.length; j++) {
+				mapped[j] = permutation[ins[x][j]];
+			}
+			int[] expected = ins[y].clone();
+			Arrays.sort(mapped);
+			Arrays.sort(expected);
+			if (!Arrays.equals(mapped, expected)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Refines the colouring until any two components of the same colour
+	 * have as many inputs and outputs of each colour. Colours are numbered
+	 * in the order of what tells them apart, and not by component ids, so
+	 * that the colourings of two nodes of the search can be compared colour
+	 * by colour.
+	 */
+	private int[] refine(int[] colors)
+	{
+		int numColors = countColors(colors);
+		while (true) {
+			List<List<Integer>> outColors = new ArrayList<List<Integer>>(numComponents);
+			for (int x = 0; x < numComponents; x++) {
+				outColors.add(new ArrayList<Integer>());
+			}
+			for (int x = 0; x < numComponents; x++) {
+				for (int y : ins[x]) {
+					outColors.get(y).add(colors[x]);
+				}
+			}
+			final int[][] signatures = new int[numComponents][];
+			for (int x = 0; x < numComponents; x++) {
+				int[] signature = new int[2 + ins[x].length + outColors.get(x).size()];
+				signature[0] = colors[x];
+				signature[1] = ins[x].length;
+				for (int j = 0; j < ins[x].length; j++) {
+					signature[2 + j] = colors[ins[x][j]];
+				}
+				Arrays.sort(signature, 2, 2 + ins[x].length);
+				for (int j = 0; j < outColors.get(x).size(); j++) {
+					signature[2 + ins[x].length + j] = outColors.get(x).get(j);
+				}
+				Arrays.sort(signature, 2 + ins[x].length, signature.length);
+				signatures[x] = signature;
+			}
+			Integer[] order = new Integer[numComponents];
+			for (int x = 0; x < numComponents; x++) {
+				order[x] = x;
+			}
+			Comparator<Integer> bySignature = new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b)
+				{
+					return compareSignatures(signatures[a], signatures[b]);
+				}
+			};
+			Arrays.sort(order, bySignature);
+			int[] refined = new int[numComponents];
+			int color = 0;
+			for (int i = 0; i < numComponents; i++) {
+				if (i > 0 && bySignature.compare(order[i - 1], order[i]) != 0) {
+					color++;
+				}
+				refined[order[i]] = color;
+			}
+			if (color + 1 == numColors) {
+				return refined;
+			}
+			colors = refined;
+			numColors = color + 1;
+		}
+	}
+
+	private static int compareSignatures(int[] a, int[] b)
+	{
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			if (a[i] != b[i]) {
+				return a[i] < b[i] ? -1 : 1;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/** Gives the vertex a colour of its own, just after its old one. */
+	private int[] individualize(int[] colors, int vertex)
+	{
+		int[] result = new int[numComponents];
+		for (int x = 0; x < numComponents; x++) {
+			result[x] = 2 * colors[x];
+		}
+		result[vertex]++;
+		return result;
+	}
+
+	/** Returns the smallest cell of more than one component, or -1 if there is none. */
+	private int chooseCell(int[] colors)
+	{
+		int[] sizes = new int[numComponents];
+		for (int x = 0; x < numComponents; x++) {
+			sizes[colors[x]]++;
+		}
+		int best = -1;
+		for (int color = 0; color < numComponents; color++) {
+			if (sizes[color] > 1 && (best == -1 || sizes[color] < sizes[best])) {
+				best = color;
+			}
+		}
+		return best;
+	}
+
+	private int firstOfColor(int[] colors, int color)
+	{
+		for (int x = 0; x < numComponents; x++) {
+			if (colors[x] == color) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	private boolean sameCellSizes(int[] a, int[] b)
+	{
+		int[] sizes = new int[numComponents];
+		for (int x = 0; x < numComponents; x++) {
+			sizes[a[x]]++;
+			sizes[b[x]]--;
+		}
+		for (int size : sizes) {
+			if (size != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int countColors(int[] colors)
+	{
+		Set<Integer> distinct = new HashSet<Integer>();
+		for (int color : colors) {
+			distinct.add(color);
+		}
+		return distinct.size();
+	}
+
+	private static int find(int[] parents, int x)
+	{
+		while (parents[x] != x) {
+			parents[x] = parents[parents[x]];
+			x = parents[x];
+		}
+		return x;
+	}
+
+	private static void union(int[] parents, int a, int b)
+	{
+		int rootA = find(parents, a);
+		int rootB = find(parents, b);
+		if (rootA != rootB) {
+			parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+		}
+	}
+
+	/**
+	 * Restricts the automorphisms to the bases, and returns every distinct
+	 * product of them but the identity, up to MAX_GROUP_SIZE of them.
+	 */
+	private int[][] generateGroup(List<int[]> automorphisms)
+	{
+		int numBases = net.getBasePropositions().length;
+		int[] baseIndexOf = new int[numComponents];
+		for (int i = 0; i < numBases; i++) {
+			baseIndexOf[net.getBasePropositions()[i]] = i;
+		}
+		int[] identity = new int[numBases];
+		for (int i = 0; i < numBases; i++) {
+			identity[i] = i;
+		}
+		List<int[]> generators = new ArrayList<int[]>();
+		for (int[] automorphism : automorphisms) {
+			int[] permutation = new int[numBases];
+			for (int i = 0; i < numBases; i++) {
+				permutation[i] = baseIndexOf[automorphism[net.getBasePropositions()[i]]];
+			}
+			if (!Arrays.equals(permutation, identity)) {
+				generators.add(permutation);
+			}
+		}
+
+		Set<List<Integer>> seen = new HashSet<List<Integer>>();
+		seen.add(asList(identity));
+		List<int[]> group = new ArrayList<int[]>();
+		List<int[]> queue = new ArrayList<int[]>();
+		queue.add(identity);
+		for (int head = 0; head < queue.size() && group.size() + 1 < MAX_GROUP_SIZE; head++) {
+			for (int[] generator : generators) {
+				int[] product = new int[numBases];
+				for (int i = 0; i < numBases; i++) {
+					product[i] = generator[queue.get(head)[i]];
+				}
+				if (seen.add(asList(product))) {
+					group.add(product);
+					queue.add(product);
+					if (group.size() + 1 >= MAX_GROUP_SIZE) {
+						break;
+					}
+				}
+			}
+		}
+		return group.toArray(new int[group.size()][]);
+	}
+
+	private static List<Integer> asList(int[] values)
+	{
+		List<Integer> list = new ArrayList<Integer>(values.length);
+		for (int value : values) {
+			list.add(value);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,29 @@
+package org.ggp.base.util.propnet.factory.exceptions;
+
+/**
+ * Thrown when a PropNet being built grows past the number of components it
+ * was allowed, so that building can be abandoned before it uses up the heap.
+ */
+@SuppressWarnings("serial")
+public final class PropNetTooLargeException extends RuntimeException
+{
+
+	private final int maxComponents;
+
+	public PropNetTooLargeException(int maxComponents)
+	{
+		this.maxComponents = maxComponents;
+	}
+
+	public int getMaxComponents()
+	{
+		return maxComponents;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PropNet has more than " + maxComponents + " components";
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+
+/**
+ * DepthChargeResults sums up a number of depth charges: how many there were,
+ * the total goal value each role reached, and the depths they went to.
+ * Roles are referred to by their index in {@link StateMachine#getRoles()}.
+ */
+public final class DepthChargeResults
+{
+	private int numCharges;
+	private final long[] goalSums;
+	private long depthSum;
+	private int minDepth = Integer.MAX_VALUE;
+	private int maxDepth;
+
+	public DepthChargeResults(int numRoles)
+	{
+		this.goalSums = new long[numRoles];
+	}
+
+	/** Counts one depth charge, which reached the given goals and depth. */
+	public void add(int[] goals, int depth)
+	{
+		numCharges++;
+		for (int r = 0; r < goalSums.length; r++) {
+			goalSums[r] += goals[r];
+		}
+		depthSum += depth;
+		minDepth = Math.min(minDepth, depth);
+		maxDepth = Math.max(maxDepth, depth);
+	}
+
+	/** Counts every depth charge of the other results as well. */
+	public void add(DepthChargeResults other)
+	{
+		numCharges += other.numCharges;
+		for (int r = 0; r < goalSums.length; r++) {
+			goalSums[r] += other.goalSums[r];
+		}
+		depthSum += other.depthSum;
+		minDepth = Math.min(minDepth, other.minDepth);
+		maxDepth = Math.max(maxDepth, other.maxDepth);
+	}
+
+	public int getNumCharges()
+	{
+		return numCharges;
+	}
+
+	public long getGoalSum(int roleIndex)
+	{
+		return goalSums[roleIndex];
+	}
+
+	/** @return The average goal value of the role, or 0 if there were no charges. */
+	public double getAverageGoal(int roleIndex)
+	{
+		return (numCharges == 0) ? 0 : goalSums[roleIndex] / (double) numCharges;
+	}
+
+	/** @return The average depth, or 0 if there were no charges. */
+	public double getAverageDepth()
+	{
+		return (numCharges == 0) ? 0 : depthSum / (double) numCharges;
+	}
+
+	/** @return The smallest depth reached, or 0 if there were no charges. */
+	public int getMinDepth()
+	{
+		return (numCharges == 0) ? 0 : minDepth;
+	}
+
+	public int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "DepthChargeResults(" + numCharges + " charges, goal sums " + Arrays.toString(goalSums)
+				+ ", depths " + getMinDepth() + ".." + maxDepth + ")";
+	}
+}
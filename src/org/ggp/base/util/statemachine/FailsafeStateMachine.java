@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine;
 
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -21,15 +22,46 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  * clear that this is helpful, but it's an additional layer of bullet-proofing
  * in case anything goes wrong.
  *
+ * The initial state machine can also be given a budget for initialization:
+ * a time limit and a share of the heap. It is then initialized on a thread
+ * of its own, and if it is not ready in time, the prover is used meanwhile
+ * while the initial machine carries on in the background; once it is ready,
+ * it replaces the prover at the next call to {@link #doPerMoveWork()}. If it
+ * runs past its share of the heap it is interrupted and abandoned, which
+ * keeps machines like propnets from running the player out of memory.
+ *
  * @author Sam Schreiber
  */
 public class FailsafeStateMachine extends StateMachine
 {
+    private static final long HEAP_CHECK_INTERVAL = 50;
+    /** The least time between garbage collections forced by the watchdog */
+    private static final long MIN_GC_INTERVAL = 1000;
+
     private StateMachine theBackingMachine = null;
     private List<Gdl> gameDescription;
 
+    /** The initialization time limit, or -1 to initialize on the calling thread */
+    private final long initializationTimeout;
+    private final double maxHeapFraction;
+    /** An initial machine that finished initializing in the background */
+    private volatile StateMachine theReadyMachine = null;
+
     public FailsafeStateMachine (StateMachine theInitialMachine) {
+        this(theInitialMachine, -1, 1.0);
+    }
+
+    /**
+     * @param initializationTimeout How long initialize() waits for the
+     * initial machine, in milliseconds, before using a prover instead.
+     * @param maxHeapFraction The share of the maximum heap size that may be
+     * in use after garbage collection while the initial machine initializes,
+     * such as 0.8.
+     */
+    public FailsafeStateMachine (StateMachine theInitialMachine, long initializationTimeout, double maxHeapFraction) {
         theBackingMachine = theInitialMachine;
+        this.initializationTimeout = initializationTimeout;
+        this.maxHeapFraction = maxHeapFraction;
     }
 
     @Override
@@ -44,10 +76,14 @@ public class FailsafeStateMachine extends StateMachine
     public synchronized void initialize(List<Gdl> description) {
         this.gameDescription = description;
 
-        if(attemptLoadingInitialMachine())
+        if(initializationTimeout >= 0) {
+            if(attemptLoadingInitialMachineWithBudget())
+                return;
+        } else if(attemptLoadingInitialMachine()) {
             return;
+        }
 
-        GamerLogger.logError("StateMachine", "Failsafe Machine: failed to load initial state machine. Falling back...");
+        GamerLogger.logError("StateMachine", "Failsafe Machine: initial state machine is not available. Falling back...");
         if(attemptLoadingProverMachine())
             return;
 
@@ -84,10 +120,130 @@ public class FailsafeStateMachine extends StateMachine
         return false;
     }
 
+    /**
+     * Initializes the initial machine on a thread of its own, and waits for
+     * it until the timeout. If it is still going then, it is left to finish
+     * in the background, with a watchdog that abandons it if the heap fills.
+     */
+    private boolean attemptLoadingInitialMachineWithBudget() {
+        final StateMachine theInitialMachine = theBackingMachine;
+        final List<Gdl> theDescription = gameDescription;
+        final Thread builder = new Thread("Failsafe Machine builder") {
+            @Override
+            public void run() {
+                try {
+                    theInitialMachine.initialize(theDescription);
+                    // A machine that was given up on is not used, even if it finished.
+                    if(!isInterrupted())
+                        theReadyMachine = theInitialMachine;
+                } catch(ThreadDeath d) {
+                    throw d;
+                } catch(Throwable t) {
+                    GamerLogger.logError("StateMachine", "Failsafe Machine: initial state machine failed to initialize: " + t);
+                }
+            }
+        };
+        builder.setDaemon(true);
+        builder.start();
+
+        long deadline = System.currentTimeMillis() + initializationTimeout;
+        if(!watchInitialization(builder, deadline))
+            return false;
+        if(!builder.isAlive()) {
+            StateMachine theMachine = theReadyMachine;
+            theReadyMachine = null;
+            if(theMachine == null)
+                return false;
+            GamerLogger.log("StateMachine", "Failsafe Machine: successfully activated initial state machine for use!");
+            return true;
+        }
+
+        GamerLogger.log("StateMachine", "Failsafe Machine: initial state machine is not ready after " + initializationTimeout + "ms; using a prover until it is.");
+        Thread watchdog = new Thread("Failsafe Machine watchdog") {
+            @Override
+            public void run() {
+                watchInitialization(builder, Long.MAX_VALUE);
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+        return false;
+    }
+
+    /**
+     * Waits for the builder thread to finish or the deadline to pass,
+     * whichever comes first, and interrupts it if the heap gets too full.
+     * Returns false if it had to be interrupted.
+     */
+    private boolean watchInitialization(Thread builder, long deadline) {
+        Runtime runtime = Runtime.getRuntime();
+        long lastGc = 0;
+        try {
+            while(builder.isAlive() && System.currentTimeMillis() < deadline) {
+                long limit = (long) (maxHeapFraction * runtime.maxMemory());
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if(used > limit && System.currentTimeMillis() - lastGc >= MIN_GC_INTERVAL) {
+                    // Garbage that has not been collected yet counts as used,
+                    // so only what is left after a collection is held against
+                    // the machine.
+                    System.gc();
+                    lastGc = System.currentTimeMillis();
+                    used = runtime.totalMemory() - runtime.freeMemory();
+                    if(used > limit) {
+                        GamerLogger.logError("StateMachine", "Failsafe Machine: initial state machine is using too much memory (" + (used >> 20) + "MB). Giving up on it.");
+                        builder.interrupt();
+                        return false;
+                    }
+                }
+                builder.join(Math.max(1, Math.min(HEAP_CHECK_INTERVAL, deadline - System.currentTimeMillis())));
+            }
+        } catch(InterruptedException e) {
+            builder.interrupt();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Switches over to the initial machine if it has finished initializing
+     * in the background since the prover was put in its place.
+     */
+    @Override
+    public synchronized void doPerMoveWork() {
+        StateMachine theMachine = theReadyMachine;
+        if(theMachine != null) {
+            theReadyMachine = null;
+            theMachine.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+            theMachine.setRandom(getRandom());
+            theBackingMachine = theMachine;
+            GamerLogger.log("StateMachine", "Failsafe Machine: switched to the initial state machine, which is now ready.");
+        }
+
+        if(theBackingMachine == null)
+            return;
+
+        try {
+            theBackingMachine.doPerMoveWork();
+            return;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        doPerMoveWork();
+    }
+
     private boolean attemptLoadingProverMachine() {
         try {
             StateMachine theStateMachine = new ProverStateMachine();
             theStateMachine.initialize(gameDescription);
+            theStateMachine.setRandom(getRandom());
             theBackingMachine = theStateMachine;
             GamerLogger.log("StateMachine", "Failsafe Machine: successfully loaded traditional prover.");
             return true;
@@ -331,6 +487,103 @@ public class FailsafeStateMachine extends StateMachine
         return isTerminal(state);
     }
 
+    @Override
+    public MachineStateInfo getStateInfo(MachineState state) {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getStateInfo(state);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getStateInfo(state);
+    }
+
+    @Override
+    public boolean isOutcomeFixed(MachineState state) {
+        if(theBackingMachine == null)
+            return false;
+
+        try {
+            return theBackingMachine.isOutcomeFixed(state);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return isOutcomeFixed(state);
+    }
+
+    @Override
+    public long getZobristHash(MachineState state) {
+        if(theBackingMachine == null)
+            return super.getZobristHash(state);
+
+        try {
+            return theBackingMachine.getZobristHash(state);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getZobristHash(state);
+    }
+
+    @Override
+    public MachineState canonicalize(MachineState state) {
+        if(theBackingMachine == null)
+            return state;
+
+        try {
+            return theBackingMachine.canonicalize(state);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return canonicalize(state);
+    }
+
+    /**
+     * Depth charges are run by the backing machine, so it is told too.
+     */
+    @Override
+    public synchronized void setStopAtFixedOutcome(boolean stopAtFixedOutcome) {
+        super.setStopAtFixedOutcome(stopAtFixedOutcome);
+        if(theBackingMachine != null)
+            theBackingMachine.setStopAtFixedOutcome(stopAtFixedOutcome);
+    }
+
+    @Override
+    public synchronized void setRandom(Random random) {
+        super.setRandom(random);
+        if(theBackingMachine != null)
+            theBackingMachine.setRandom(random);
+    }
+
     @Override
     public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
         if(theBackingMachine == null)
@@ -355,6 +608,52 @@ public class FailsafeStateMachine extends StateMachine
         return performDepthCharge(state, theDepth);
     }
 
+    @Override
+    public void performDepthCharges(MachineState state, int count, int[][] goals, int[] depths) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if(theBackingMachine == null)
+            return;
+
+        try {
+            theBackingMachine.performDepthCharges(state, count, goals, depths);
+            return;
+        } catch (TransitionDefinitionException te) {
+        	throw te;
+        } catch (MoveDefinitionException me) {
+        	throw me;
+        } catch (GoalDefinitionException ge) {
+        	throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        performDepthCharges(state, count, goals, depths);
+    }
+
+    @Override
+    public synchronized StateMachine copy() {
+        if(theBackingMachine == null)
+            throw new UnsupportedOperationException("Failsafe Machine: no backing machine to copy.");
+
+        FailsafeStateMachine theCopy = new FailsafeStateMachine(theBackingMachine.copy());
+        theCopy.gameDescription = gameDescription;
+        theCopy.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+        theCopy.setRandom(splitRandom());
+        return theCopy;
+    }
+
+    @Override
+    public int getDepthChargeBatchSize() {
+        if(theBackingMachine == null)
+            return 1;
+        return theBackingMachine.getDepthChargeBatchSize();
+    }
+
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         if(theBackingMachine == null)
@@ -406,4 +705,4 @@ public class FailsafeStateMachine extends StateMachine
     public StateMachine getBackingMachine() {
         return theBackingMachine;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
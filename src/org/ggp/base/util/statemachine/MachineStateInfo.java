@@ -0,0 +1,184 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * MachineStateInfo gathers what a state machine knows about a single state:
+ * whether it is terminal, each role's goal value, and each role's legal
+ * moves. Roles are referred to by their index in {@link StateMachine#getRoles()}.
+ *
+ * State machines that compute all of these at once (such as propnet-based
+ * ones, where a single propagation yields every value) create instances with
+ * every value filled in. Otherwise an instance asks its state machine for each
+ * value the first time it is needed, and remembers the answer.
+ */
+public final class MachineStateInfo
+{
+	private static final int UNDEFINED_GOAL = -1;
+
+	/** Returned by {@link #getMover(int)} when every role is inert. */
+	public static final int NO_MOVER = -1;
+	/** Returned by {@link #getMover(int)} when several roles have a choice. */
+	public static final int SEVERAL_MOVERS = -2;
+
+	private final StateMachine machine;
+	private final List<Role> roles;
+	private final MachineState state;
+	private Boolean terminal;
+	/** Goal values by role index, UNDEFINED_GOAL where there is none. */
+	private final Integer[] goals;
+	/** Legal moves by role index, empty where there are none. */
+	private final List<List<Move>> legalMoves;
+
+	/**
+	 * Creates an instance that asks the state machine for each value as
+	 * it is needed.
+	 */
+	public MachineStateInfo(StateMachine machine, MachineState state)
+	{
+		int numRoles = machine.getRoles().size();
+		this.machine = machine;
+		this.roles = machine.getRoles();
+		this.state = state;
+		this.terminal = null;
+		this.goals = new Integer[numRoles];
+		this.legalMoves = new ArrayList<List<Move>>(numRoles);
+		for (int i = 0; i < numRoles; i++) {
+			legalMoves.add(null);
+		}
+	}
+
+	/**
+	 * Creates an instance with every value filled in.
+	 *
+	 * @param goals The goal value of each role, or -1 for roles whose goal
+	 * is undefined in this state.
+	 * @param legalMoves The legal moves of each role, which should be empty
+	 * for roles with no legal moves in this state.
+	 */
+	public MachineStateInfo(List<Role> roles, MachineState state, boolean terminal, int[] goals, List<List<Move>> legalMoves)
+	{
+		this.machine = null;
+		this.roles = roles;
+		this.state = state;
+		this.terminal = terminal;
+		this.goals = new Integer[goals.length];
+		for (int i = 0; i < goals.length; i++) {
+			this.goals[i] = goals[i];
+		}
+		this.legalMoves = legalMoves;
+	}
+
+	public MachineState getState()
+	{
+		return state;
+	}
+
+	public boolean isTerminal()
+	{
+		if (terminal == null) {
+			terminal = machine.isTerminal(state);
+		}
+		return terminal;
+	}
+
+	/**
+	 * @throws GoalDefinitionException if the role does not have exactly
+	 * one goal value in this state.
+	 */
+	public int getGoal(int roleIndex) throws GoalDefinitionException
+	{
+		if (goals[roleIndex] == null) {
+			try {
+				goals[roleIndex] = machine.getGoal(state, roles.get(roleIndex));
+			} catch (GoalDefinitionException e) {
+				goals[roleIndex] = UNDEFINED_GOAL;
+			}
+		}
+		if (goals[roleIndex] == UNDEFINED_GOAL) {
+			throw new GoalDefinitionException(state, roles.get(roleIndex));
+		}
+		return goals[roleIndex];
+	}
+
+	/**
+	 * Returns the goal values of every role, in the same order as the roles.
+	 */
+	public List<Integer> getGoals() throws GoalDefinitionException
+	{
+		List<Integer> theGoals = new ArrayList<Integer>(goals.length);
+		for (int i = 0; i < goals.length; i++) {
+			theGoals.add(getGoal(i));
+		}
+		return theGoals;
+	}
+
+	/**
+	 * @throws MoveDefinitionException if the role has no legal moves in
+	 * this state.
+	 */
+	public List<Move> getLegalMoves(int roleIndex) throws MoveDefinitionException
+	{
+		List<Move> moves = legalMoves.get(roleIndex);
+		if (moves == null) {
+			try {
+				moves = machine.getLegalMoves(state, roles.get(roleIndex));
+			} catch (MoveDefinitionException e) {
+				moves = new ArrayList<Move>();
+			}
+			legalMoves.set(roleIndex, moves);
+		}
+		if (moves.isEmpty()) {
+			throw new MoveDefinitionException(state, roles.get(roleIndex));
+		}
+		return moves;
+	}
+
+	/**
+	 * Returns whether the role has exactly one legal move in this state, and
+	 * so no choice to make, like the player who is not on move in a game
+	 * where the players take turns.
+	 *
+	 * @throws MoveDefinitionException if the role has no legal moves in
+	 * this state.
+	 */
+	public boolean isInert(int roleIndex) throws MoveDefinitionException
+	{
+		return getLegalMoves(roleIndex).size() == 1;
+	}
+
+	/**
+	 * Returns the index of the only role that is not inert in this state,
+	 * leaving out the given role (or none, for -1). Returns {@link #NO_MOVER}
+	 * if every role is inert, and {@link #SEVERAL_MOVERS} if more than one
+	 * role has a choice to make.
+	 *
+	 * @throws MoveDefinitionException if a role has no legal moves in
+	 * this state.
+	 */
+	public int getMover(int ignoredRoleIndex) throws MoveDefinitionException
+	{
+		int mover = NO_MOVER;
+		for (int i = 0; i < legalMoves.size(); i++) {
+			if (i == ignoredRoleIndex || isInert(i)) {
+				continue;
+			}
+			if (mover != NO_MOVER) {
+				return SEVERAL_MOVERS;
+			}
+			mover = i;
+		}
+		return mover;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "MachineStateInfo(" + state + ", terminal=" + terminal + ", goals=" + Arrays.toString(goals) + ", legalMoves=" + legalMoves + ")";
+	}
+}
@@ -0,0 +1,133 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * ParallelDepthCharger runs depth charges on several threads at once. It
+ * makes a copy of the state machine for each thread (see
+ * {@link StateMachine#copy()}), splits the depth charges between them, runs
+ * them in a ForkJoinPool shared by every charger, and adds up the results.
+ *
+ * The copies are made when the charger is created, so a charger keeps using
+ * the machine that was backing a FailsafeStateMachine at that time. Create a
+ * new charger when the failsafe machine switches machines.
+ *
+ * If the machine cannot be copied, or only one thread is asked for, the
+ * depth charges are run by the machine itself on the calling thread.
+ */
+public final class ParallelDepthCharger
+{
+	private static ForkJoinPool sharedPool;
+
+	private final StateMachine machine;
+	/** One machine per thread; empty when running on the calling thread */
+	private final List<StateMachine> copies;
+
+	/**
+	 * Creates a charger with a thread for every available processor.
+	 */
+	public ParallelDepthCharger(StateMachine machine)
+	{
+		this(machine, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Must be called on the thread that owns the machine.
+	 */
+	public ParallelDepthCharger(StateMachine machine, int numThreads)
+	{
+		this.machine = machine;
+		this.copies = new ArrayList<StateMachine>();
+		if (numThreads > 1) {
+			try {
+				for (int i = 0; i < numThreads; i++) {
+					copies.add(machine.copy());
+				}
+			} catch (UnsupportedOperationException e) {
+				GamerLogger.log("StateMachine", "Parallel depth charger: " + machine.getName() + " cannot be copied, so depth charges run on one thread.");
+				copies.clear();
+			}
+		}
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (sharedPool == null) {
+			sharedPool = new ForkJoinPool();
+		}
+		return sharedPool;
+	}
+
+	/** @return The number of threads depth charges are split between. */
+	public int getNumThreads()
+	{
+		return Math.max(1, copies.size());
+	}
+
+	/**
+	 * Performs up to count depth charges from the given state, split between
+	 * the threads, and sums up their results. Each thread stops starting new
+	 * depth charges once the deadline has passed, as in
+	 * {@link StateMachine#performDepthCharges(MachineState, int, long)}.
+	 * No thread is given less than a full batch of depth charges (see
+	 * {@link StateMachine#getDepthChargeBatchSize()}) unless there are too
+	 * few to go round, and a single batch runs on the calling thread.
+	 *
+	 * @param deadline a time as given by System.currentTimeMillis().
+	 */
+	public DepthChargeResults performDepthCharges(final MachineState state, int count, final long deadline) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		int batchSize = Math.max(1, machine.getDepthChargeBatchSize());
+		int numTasks = (int) Math.min(copies.size(), ((long) count + batchSize - 1) / batchSize);
+		if (numTasks <= 1) {
+			return machine.performDepthCharges(state, count, deadline);
+		}
+
+		List<Callable<DepthChargeResults>> tasks = new ArrayList<Callable<DepthChargeResults>>();
+		for (int i = 0; i < numTasks; i++) {
+			final StateMachine copy = copies.get(i);
+			final int share = (int) ((long) count * (i + 1) / numTasks - (long) count * i / numTasks);
+			tasks.add(new Callable<DepthChargeResults>() {
+				@Override
+				public DepthChargeResults call() throws Exception {
+					return copy.performDepthCharges(state, share, deadline);
+				}
+			});
+		}
+
+		DepthChargeResults results = new DepthChargeResults(machine.getRoles().size());
+		for (Future<DepthChargeResults> future : getPool().invokeAll(tasks)) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof TransitionDefinitionException) {
+					throw (TransitionDefinitionException) cause;
+				} else if (cause instanceof MoveDefinitionException) {
+					throw (MoveDefinitionException) cause;
+				} else if (cause instanceof GoalDefinitionException) {
+					throw (GoalDefinitionException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new RuntimeException(cause);
+			}
+		}
+		return results;
+	}
+}
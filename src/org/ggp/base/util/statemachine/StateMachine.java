@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -135,6 +136,129 @@ public abstract class StateMachine
         ;
     }
 
+    /** Override this to compute everything about a state at once.
+     * Returns the terminal status, goal values and legal moves of the given
+     * state. The default implementation computes each of them with the
+     * corresponding method the first time it is asked for.
+     * <p>
+     * CONTRACT: The values must be the same as those returned by {@link #isTerminal},
+     *           {@link #getGoal} and {@link #getLegalMoves} for the state.
+     */
+    public MachineStateInfo getStateInfo(MachineState state) {
+        return new MachineStateInfo(this, state);
+    }
+
+    /** Override this to let depth charges stop before the end of the game.
+     * Returns true if the goal values of the given state are certain to be
+     * those of every terminal state reachable from it. The default
+     * implementation never knows that.
+     * <p>
+     * CONTRACT: If this returns true, {@link #getGoal} must return the same
+     *           value for the state as for any terminal state reachable from it.
+     */
+    public boolean isOutcomeFixed(MachineState state) {
+        return false;
+    }
+
+    /** Override this to let callers merge states that are the same up to symmetry.
+     * Returns a state that a symmetry of the game maps the given state to,
+     * and which is the same for every state that is symmetric to it, as far
+     * as the machine knows the game's symmetries. Symmetric states are equally
+     * terminal and have the same goal values, but their legal moves and next
+     * states are permuted by the symmetry. The default implementation knows
+     * of no symmetries, and returns the state itself.
+     * <p>
+     * CONTRACT: The returned state must have the same terminal status and goal
+     *           values as the given one.
+     */
+    public MachineState canonicalize(MachineState state) {
+        return state;
+    }
+
+    /** Override this to provide a faster hash of states.
+     * Returns the {@link ZobristHash} of the given state, a 64-bit hash for
+     * transposition tables. The default implementation computes it from the
+     * state's sentences.
+     * <p>
+     * CONTRACT: Every state machine returns the same hash for the same state.
+     */
+    public long getZobristHash(MachineState state) {
+        return ZobristHash.of(state);
+    }
+
+    /** Override this to provide moves as integers, without building Moves.
+     * Returns the ids of the legal moves of the given role in the given state.
+     * A move id identifies one of a role's moves for as long as this machine
+     * exists; {@link #getMoveFromId} and {@link #getMoveId} convert between
+     * ids and Moves, and {@link #getNextState(MachineState, int[])} plays a
+     * joint move given as ids. The default implementation numbers moves in
+     * the order in which it first sees them.
+     * <p>
+     * CONTRACT: The ids must match the moves returned by {@link #getLegalMoves}.
+     */
+    public int[] getLegalMoveIds(MachineState state, Role role) throws MoveDefinitionException {
+        List<Move> legals = getLegalMoves(state, role);
+        int[] moveIds = new int[legals.size()];
+        for (int i = 0; i < moveIds.length; i++) {
+            moveIds[i] = getMoveId(role, legals.get(i));
+        }
+        return moveIds;
+    }
+
+    /** Override this along with {@link #getLegalMoveIds}.
+     * Returns the move with the given id for the given role. Implementations
+     * should return the same Move object for every call with the same id.
+     */
+    public Move getMoveFromId(Role role, int moveId) {
+        return getMoveIdTable(getRoleIndices().get(role)).getMove(moveId);
+    }
+
+    /** Override this along with {@link #getLegalMoveIds}.
+     * Returns the id of the given move for the given role.
+     */
+    public int getMoveId(Role role, Move move) {
+        return getMoveIdTable(getRoleIndices().get(role)).getId(move);
+    }
+
+    /** Override this along with {@link #getLegalMoveIds}.
+     * Returns the next state of the game given the current state and a joint
+     * move given as one move id per role, in the same order as the roles are
+     * listed by {@link #getRoles()}.
+     */
+    public MachineState getNextState(MachineState state, int[] moveIds) throws TransitionDefinitionException {
+        List<Role> roles = getRoles();
+        List<Move> moves = new ArrayList<Move>(roles.size());
+        for (int i = 0; i < roles.size(); i++) {
+            moves.add(getMoveFromId(roles.get(i), moveIds[i]));
+        }
+        return getNextState(state, moves);
+    }
+
+    /** Override this to let several threads work on the same game at once.
+     * Returns a new, initialized state machine for the same game, which shares
+     * as much of this machine's immutable data as it can, and which can be used
+     * on another thread concurrently with this one. Machine states, roles and
+     * moves from either machine are accepted by the other.
+     * <p>
+     * CONTRACT: Should only be called after {@link #initialize(List)}, and on
+     *           the thread that owns this machine.
+     *
+     * @throws UnsupportedOperationException if the machine cannot be copied.
+     */
+    public StateMachine copy() {
+        throw new UnsupportedOperationException(getName() + " does not support copy().");
+    }
+
+    /** Override this to advertise that depth charges are cheaper when run together.
+     * This is the number of depth charges that {@link #performDepthCharges} can
+     * run for roughly the cost of one, and so a good number to ask for at a time.
+     * <p>
+     * CONTRACT: Should return a positive number.
+     */
+    public int getDepthChargeBatchSize() {
+        return 1;
+    }
+
     // ============================================
     //   Implementations of convenience methods
     // ============================================
@@ -157,9 +281,15 @@ public abstract class StateMachine
      */
     public List<List<Move>> getLegalJointMoves(MachineState state) throws MoveDefinitionException
     {
+        MachineStateInfo info = getStateInfo(state);
+        int mover = info.getMover(-1);
+        if (mover != MachineStateInfo.SEVERAL_MOVERS) {
+            return getJointMovesOfMover(info, mover, -1, null);
+        }
+
         List<List<Move>> legals = new ArrayList<List<Move>>();
-        for (Role role : getRoles()) {
-            legals.add(getLegalMoves(state, role));
+        for (int i = 0; i < getRoles().size(); i++) {
+            legals.add(info.getLegalMoves(i));
         }
 
         List<List<Move>> crossProduct = new ArrayList<List<Move>>();
@@ -175,14 +305,22 @@ public abstract class StateMachine
      */
     public List<List<Move>> getLegalJointMoves(MachineState state, Role role, Move move) throws MoveDefinitionException
     {
+        MachineStateInfo info = getStateInfo(state);
+        int roleIndex = getRoleIndices().get(role);
+        int mover = info.getMover(roleIndex);
+        if (mover != MachineStateInfo.SEVERAL_MOVERS) {
+            return getJointMovesOfMover(info, mover, roleIndex, move);
+        }
+
         List<List<Move>> legals = new ArrayList<List<Move>>();
-        for (Role r : getRoles()) {
-            if (r.equals(role)) {
+        List<Role> roles = getRoles();
+        for (int i = 0; i < roles.size(); i++) {
+            if (i == roleIndex) {
                 List<Move> m = new ArrayList<Move>();
                 m.add(move);
                 legals.add(m);
             } else {
-                legals.add(getLegalMoves(state, r));
+                legals.add(info.getLegalMoves(i));
             }
         }
 
@@ -192,6 +330,37 @@ public abstract class StateMachine
         return crossProduct;
     }
 
+    /**
+     * Lists the joint moves of a state where at most the mover has a choice,
+     * as in games where the players take turns, without building the cross
+     * product: every other role plays its only legal move, except the given
+     * role, if any, which plays the given move.
+     */
+    private List<List<Move>> getJointMovesOfMover(MachineStateInfo info, int mover, int fixedRoleIndex, Move fixedMove) throws MoveDefinitionException
+    {
+        Move[] jointMove = new Move[getRoles().size()];
+        for (int i = 0; i < jointMove.length; i++) {
+            if (i == fixedRoleIndex) {
+                jointMove[i] = fixedMove;
+            } else if (i != mover) {
+                jointMove[i] = info.getLegalMoves(i).get(0);
+            }
+        }
+        if (mover == MachineStateInfo.NO_MOVER) {
+            List<List<Move>> jointMoves = new ArrayList<List<Move>>(1);
+            jointMoves.add(Arrays.asList(jointMove));
+            return jointMoves;
+        }
+        List<Move> moverMoves = info.getLegalMoves(mover);
+        List<List<Move>> jointMoves = new ArrayList<List<Move>>(moverMoves.size());
+        for (Move move : moverMoves) {
+            Move[] copy = jointMove.clone();
+            copy[mover] = move;
+            jointMoves.add(Arrays.asList(copy));
+        }
+        return jointMoves;
+    }
+
     /**
      * Returns a list containing every possible next state of the game after
      * the given state. The list will contain one entry for every possible
@@ -264,6 +433,45 @@ public abstract class StateMachine
         return roleIndices;
     }
 
+    private List<MoveIdTable> moveIdTables = null;
+    private synchronized MoveIdTable getMoveIdTable(int roleIndex)
+    {
+        if(moveIdTables == null) {
+            moveIdTables = new ArrayList<MoveIdTable>();
+            for (int i = 0; i < getRoles().size(); i++) {
+                moveIdTables.add(new MoveIdTable());
+            }
+        }
+
+        return moveIdTables.get(roleIndex);
+    }
+
+    /**
+     * Numbers the moves of one role in the order they are first seen, and
+     * interns them, for the default implementation of the move id methods.
+     */
+    private static final class MoveIdTable
+    {
+        private final Map<Move, Integer> ids = new HashMap<Move, Integer>();
+        private final List<Move> moves = new ArrayList<Move>();
+
+        public synchronized int getId(Move move)
+        {
+            Integer id = ids.get(move);
+            if (id == null) {
+                id = moves.size();
+                ids.put(move, id);
+                moves.add(move);
+            }
+            return id;
+        }
+
+        public synchronized Move getMove(int id)
+        {
+            return moves.get(id);
+        }
+    }
+
     /**
      * Returns the goal values for each role in the given state. The goal values
      * are listed in the same order the roles are listed in the game rules, which
@@ -288,9 +496,18 @@ public abstract class StateMachine
      */
     public List<Move> getRandomJointMove(MachineState state) throws MoveDefinitionException
     {
-        List<Move> random = new ArrayList<Move>();
-        for (Role role : getRoles()) {
-            random.add(getRandomMove(state, role));
+        return getRandomJointMove(getStateInfo(state));
+    }
+
+    /**
+     * Returns a random joint move from among all the possible joint moves in
+     * the state described by the given info.
+     */
+    public List<Move> getRandomJointMove(MachineStateInfo info) throws MoveDefinitionException
+    {
+        List<Move> random = new ArrayList<Move>(getRoles().size());
+        for (int i = 0; i < getRoles().size(); i++) {
+            random.add(getRandomMove(info.getLegalMoves(i)));
         }
 
         return random;
@@ -302,12 +519,14 @@ public abstract class StateMachine
      */
     public List<Move> getRandomJointMove(MachineState state, Role role, Move move) throws MoveDefinitionException
     {
-        List<Move> random = new ArrayList<Move>();
-        for (Role r : getRoles()) {
-            if (r.equals(role)) {
+        MachineStateInfo info = getStateInfo(state);
+        int roleIndex = getRoleIndices().get(role);
+        List<Move> random = new ArrayList<Move>(getRoles().size());
+        for (int i = 0; i < getRoles().size(); i++) {
+            if (i == roleIndex) {
                 random.add(move);
             } else {
-                random.add(getRandomMove(state, r));
+                random.add(getRandomMove(info.getLegalMoves(i)));
             }
         }
 
@@ -320,8 +539,47 @@ public abstract class StateMachine
      */
     public Move getRandomMove(MachineState state, Role role) throws MoveDefinitionException
     {
-        List<Move> legals = getLegalMoves(state, role);
-        return legals.get(new Random().nextInt(legals.size()));
+        return getRandomMove(getLegalMoves(state, role));
+    }
+
+    /** Inert roles play their only move without drawing a random number. */
+    private Move getRandomMove(List<Move> legals)
+    {
+        if (legals.size() == 1) {
+            return legals.get(0);
+        }
+        return legals.get(random.nextInt(legals.size()));
+    }
+
+    private Random random = new XorShiftRandom();
+
+    /**
+     * Returns the source of the random choices this machine makes, such as
+     * the moves of depth charges. Like the machine, it belongs to one thread.
+     */
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Replaces the source of random choices, for example with a seeded
+     * {@link XorShiftRandom} to make a run reproducible. Machines that pass
+     * depth charges on to another machine pass this on too.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Returns a new source of random choices for a copy of this machine.
+     * If this machine's source is an {@link XorShiftRandom}, the new one is
+     * seeded from it, so a seeded machine has seeded copies.
+     */
+    protected Random splitRandom() {
+        if (random instanceof XorShiftRandom) {
+            return ((XorShiftRandom) random).split();
+        }
+        return new XorShiftRandom();
     }
 
     /**
@@ -355,37 +613,119 @@ public abstract class StateMachine
         return getNextState(state, random);
     }
 
+    private boolean stopAtFixedOutcome = false;
+
+    /**
+     * Makes depth charges stop as soon as they reach a state whose outcome is
+     * fixed (see {@link #isOutcomeFixed}), rather than a terminal state. The
+     * goal values they report are the same either way, but the depths are
+     * shorter. This is off by default.
+     */
+    public void setStopAtFixedOutcome(boolean stopAtFixedOutcome) {
+        this.stopAtFixedOutcome = stopAtFixedOutcome;
+    }
+
+    public boolean isStoppingAtFixedOutcome() {
+        return stopAtFixedOutcome;
+    }
+
     /**
      * Returns a terminal state derived from repeatedly making random joint moves
-     * until reaching the end of the game.
+     * until reaching the end of the game. If the machine stops at fixed outcomes,
+     * this may instead return an earlier state with the same goal values.
+     *
+     * <p>
+     * The same joint move list is refilled at every step, so machines that
+     * keep the joint moves given to getNextState must copy them.
      *
      * @param theDepth an integer array, the 0th element of which will be set to
      * the number of state changes that were made to reach a terminal state.
      */
     public MachineState performDepthCharge(MachineState state, final int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
         int nDepth = 0;
-        while(!isTerminal(state)) {
+        Move[] jointMove = new Move[getRoles().size()];
+        List<Move> jointMoveList = Arrays.asList(jointMove);
+        MachineStateInfo info;
+        while(!(info = getStateInfo(state)).isTerminal()) {
+            if(stopAtFixedOutcome && isOutcomeFixed(state))
+                break;
             nDepth++;
-            state = getNextStateDestructively(state, getRandomJointMove(state));
+            for (int i = 0; i < jointMove.length; i++) {
+                jointMove[i] = getRandomMove(info.getLegalMoves(i));
+            }
+            state = getNextStateDestructively(state, jointMoveList);
         }
         if(theDepth != null)
             theDepth[0] = nDepth;
         return state;
     }
 
+    /**
+     * Performs several independent depth charges from the given state, and
+     * records the goal values reached by each of them.
+     *
+     * @param goals an array with at least count elements, the ith element of
+     * which will be set to the goal values of the ith depth charge's terminal
+     * state, in the same order as the roles in {@link #getRoles()}.
+     * @param depths an optional array with at least count elements, the ith
+     * element of which will be set to the depth of the ith depth charge.
+     */
+    public void performDepthCharges(MachineState state, int count, int[][] goals, int[] depths) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        final int[] depth = new int[1];
+        List<Role> roles = getRoles();
+        for (int i = 0; i < count; i++) {
+            MachineState terminal = performDepthCharge(state.clone(), depth);
+            if (goals[i] == null || goals[i].length != roles.size()) {
+                goals[i] = new int[roles.size()];
+            }
+            for (int r = 0; r < roles.size(); r++) {
+                goals[i][r] = getGoal(terminal, roles.get(r));
+            }
+            if (depths != null) {
+                depths[i] = depth[0];
+            }
+        }
+    }
+
+    /**
+     * Performs up to count depth charges from the given state, in batches of
+     * {@link #getDepthChargeBatchSize()}, and sums up their results. Once the
+     * deadline has passed, no further batch is started, but the first one
+     * always is.
+     *
+     * @param deadline a time as given by System.currentTimeMillis().
+     * @see ParallelDepthCharger
+     */
+    public DepthChargeResults performDepthCharges(MachineState state, int count, long deadline) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        DepthChargeResults results = new DepthChargeResults(getRoles().size());
+        int batchSize = Math.max(1, getDepthChargeBatchSize());
+        int[][] goals = new int[batchSize][];
+        int[] depths = new int[batchSize];
+        for (int done = 0; done < count; done += batchSize) {
+            if (done > 0 && System.currentTimeMillis() >= deadline)
+                break;
+            int batch = Math.min(batchSize, count - done);
+            performDepthCharges(state, batch, goals, depths);
+            for (int i = 0; i < batch; i++) {
+                results.add(goals[i], depths[i]);
+            }
+        }
+        return results;
+    }
+
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(final MachineState state, final double[] avgScores, final double[] avgDepth, final double discountFactor, final int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
     	avgDepth[0] = 0;
     	for (int j = 0; j < avgScores.length; j++) {
     		avgScores[j] = 0;
     	}
-    	final int[] depth = new int[1];
+    	final int[][] goals = new int[repetitions][];
+    	final int[] depths = new int[repetitions];
+    	performDepthCharges(state, repetitions, goals, depths);
     	for (int i = 0; i < repetitions; i++) {
-    		MachineState stateForCharge = state.clone();
-    		stateForCharge = performDepthCharge(stateForCharge, depth);
-    		avgDepth[0] += depth[0];
-    		final double accumulatedDiscountFactor = Math.pow(discountFactor, depth[0]);
+    		avgDepth[0] += depths[i];
+    		final double accumulatedDiscountFactor = Math.pow(discountFactor, depths[i]);
     		for (int j = 0; j < avgScores.length; j++) {
-    			avgScores[j] += getGoal(stateForCharge, getRoles().get(j)) * accumulatedDiscountFactor;
+    			avgScores[j] += goals[i][j] * accumulatedDiscountFactor;
     		}
     	}
     	avgDepth[0] /= repetitions;
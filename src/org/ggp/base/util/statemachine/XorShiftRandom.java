@@ -0,0 +1,98 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * XorShiftRandom is a fast random number generator for depth charges, using
+ * the xorshift128+ algorithm. Unlike java.util.Random, it does no
+ * synchronization, so each instance must only be used by one thread at a
+ * time; {@link #split()} makes an independent generator for another thread.
+ *
+ * Generators created with the same seed produce the same numbers, which
+ * makes runs reproducible. Generators created without one get a seed that
+ * differs from every other such generator's.
+ */
+public final class XorShiftRandom extends Random
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final AtomicLong seedUniquifier = new AtomicLong(0x2545F4914F6CDD1DL);
+
+	private long s0;
+	private long s1;
+
+	public XorShiftRandom()
+	{
+		this(seedUniquifier.addAndGet(0x9E3779B97F4A7C15L) ^ System.nanoTime());
+	}
+
+	public XorShiftRandom(long seed)
+	{
+		// Random's constructor has already called setSeed with a seed of
+		// its own choosing, which this replaces.
+		setSeed(seed);
+	}
+
+	/**
+	 * Spreads the seed over the 128 bits of state with SplitMix64, so that
+	 * similar seeds give unrelated sequences and the state is never zero.
+	 */
+	@Override
+	public synchronized void setSeed(long seed)
+	{
+		s0 = splitMix(seed);
+		s1 = splitMix(seed + 0x9E3779B97F4A7C15L);
+		if (s0 == 0 && s1 == 0) {
+			s1 = 1;
+		}
+	}
+
+	private static long splitMix(long seed)
+	{
+		long z = seed + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public long nextLong()
+	{
+		long x = s0;
+		long y = s1;
+		s0 = y;
+		x ^= x << 23;
+		s1 = x ^ y ^ (x >>> 17) ^ (y >>> 26);
+		return s1 + y;
+	}
+
+	@Override
+	protected int next(int bits)
+	{
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	/**
+	 * Returns a number from 0 to bound - 1 with a single multiplication
+	 * rather than a division. The bias this leaves is below bound / 2^32,
+	 * far too small to matter for choosing moves.
+	 */
+	@Override
+	public int nextInt(int bound)
+	{
+		if (bound <= 0) {
+			throw new IllegalArgumentException("bound must be positive: " + bound);
+		}
+		return (int) (((nextLong() >>> 32) * bound) >>> 32);
+	}
+
+	/**
+	 * Returns a new generator seeded from this one, so that a copy of a
+	 * seeded state machine plays the same depth charges on every run.
+	 */
+	public XorShiftRandom split()
+	{
+		return new XorShiftRandom(nextLong());
+	}
+}
@@ -0,0 +1,52 @@
+package org.ggp.base.util.statemachine;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * ZobristHash computes 64-bit Zobrist hashes of states: the exclusive or of
+ * a random key for each true sentence. Unlike the hash code of a
+ * MachineState, this can be updated as a state changes by combining in the
+ * keys of the sentences that became true or false.
+ *
+ * A sentence's key is a seeded 64-bit hash of its whole text, so different
+ * sentences only share a key by the chance of 64 random bits, whatever their
+ * hash codes. Keys are computed afresh rather than remembered, so nothing
+ * builds up from one match to the next; machines that hash many states
+ * compute the keys of their bases once, when they are built. Every state
+ * machine computes the same hash for the same state, whichever way it
+ * represents states.
+ */
+public final class ZobristHash
+{
+	private static final long SEED = 0x5EED2B0B15L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	private ZobristHash()
+	{
+	}
+
+	/** @return The key of the given sentence. */
+	public static long getKey(GdlSentence sentence)
+	{
+		String text = sentence.toString();
+		long hash = SEED;
+		for (int i = 0; i < text.length(); i++) {
+			hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+		}
+		// FNV-1a leaves the high bits poorly mixed, which SplitMix64's
+		// finalizer spreads over the whole key.
+		hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+		return hash ^ (hash >>> 31);
+	}
+
+	/** @return The Zobrist hash of the state's sentences. */
+	public static long of(MachineState state)
+	{
+		long hash = 0;
+		for (GdlSentence sentence : state.getContents()) {
+			hash ^= getKey(sentence);
+		}
+		return hash;
+	}
+}
@@ -1,11 +1,19 @@
 package org.ggp.base.util.statemachine.cache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.MachineStateInfo;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
@@ -15,39 +23,110 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 public final class CachedStateMachine extends StateMachine
 {
+	/** Rough size of an entry with a few moves and next states cached in it */
+	private static final int ESTIMATED_ENTRY_BYTES = 2048;
+	/** Share of the maximum heap that the default cache size allows for */
+	private static final double DEFAULT_HEAP_FRACTION = 0.25;
+
 	private final StateMachine backingStateMachine;
-	private final TtlCache<MachineState, Entry> ttlCache;
+	private final ClockCache<MachineState, Entry> cache;
+	/** Whether terminal status and goals are cached under canonical states */
+	private boolean mergeSymmetricStates = false;
 
 	private final class Entry
 	{
 		public Map<Role, Integer> goals;
 		public Map<Role, List<Move>> moves;
+		public Map<Role, int[]> moveIds;
 		public Map<List<Move>, MachineState> nexts;
 		public Boolean terminal;
+		public MachineStateInfo info;
+		/** The canonical state, once it has been needed */
+		public MachineState canonical;
 
 		public Entry()
 		{
 			goals = new HashMap<Role, Integer>();
 			moves = new HashMap<Role, List<Move>>();
+			moveIds = new HashMap<Role, int[]>();
 			nexts = new HashMap<List<Move>, MachineState>();
 			terminal = null;
+			info = null;
+			canonical = null;
 		}
 	}
 
+	/**
+	 * Creates a cache sized to take up about a quarter of the maximum heap
+	 * when it is full.
+	 */
 	public CachedStateMachine(StateMachine backingStateMachine)
+	{
+		this(backingStateMachine, getDefaultMaxEntries());
+	}
+
+	/**
+	 * @param maxEntries The most states to cache at once. When more are
+	 * seen, ones that have not been looked up lately are dropped.
+	 */
+	public CachedStateMachine(StateMachine backingStateMachine, int maxEntries)
 	{
 		this.backingStateMachine = backingStateMachine;
-		ttlCache = new TtlCache<MachineState, Entry>(1);
+		cache = new ClockCache<MachineState, Entry>(maxEntries);
+	}
+
+	private static int getDefaultMaxEntries()
+	{
+		long entries = (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_FRACTION) / ESTIMATED_ENTRY_BYTES;
+		return (int) Math.max(1024, Math.min(entries, 1 << 22));
+	}
+
+	/**
+	 * Makes the terminal status and goal values of states that are the same
+	 * up to symmetry (see {@link StateMachine#canonicalize}) share one entry,
+	 * that of their canonical state. Legal moves and next states differ
+	 * between symmetric states, so they are still cached per state.
+	 * A state is only canonicalized the first time its terminal status or a
+	 * goal value is not found in its own entry, and the canonical state and
+	 * the answer are then kept in its own entry too.
+	 */
+	public void setMergeSymmetricStates(boolean mergeSymmetricStates)
+	{
+		this.mergeSymmetricStates = mergeSymmetricStates;
+	}
+
+	/**
+	 * Returns the entry of the state's canonical state, if symmetric states
+	 * are merged, or else the state's own entry.
+	 */
+	private Entry getSymmetricEntry(MachineState state, Entry entry)
+	{
+		if (!mergeSymmetricStates)
+		{
+			return entry;
+		}
+		MachineState canonical;
+		synchronized (entry)
+		{
+			if (entry.canonical == null)
+			{
+				entry.canonical = backingStateMachine.canonicalize(state);
+			}
+
+			canonical = entry.canonical;
+		}
+		return canonical.equals(state) ? entry : getEntry(canonical);
 	}
 
 	private Entry getEntry(MachineState state)
 	{
-		if (!ttlCache.containsKey(state))
+		Entry entry = cache.get(state);
+		if (entry == null)
 		{
-			ttlCache.put(state, new Entry());
+			entry = cache.putIfAbsent(state, new Entry());
 		}
 
-		return ttlCache.get(state);
+		return entry;
 	}
 
 	@Override
@@ -56,13 +135,32 @@ public final class CachedStateMachine extends StateMachine
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
-			if (!entry.goals.containsKey(role))
+			if (entry.goals.containsKey(role))
 			{
-				entry.goals.put(role, backingStateMachine.getGoal(state, role));
+				return entry.goals.get(role);
 			}
+		}
 
-			return entry.goals.get(role);
+		Entry symmetricEntry = getSymmetricEntry(state, entry);
+		int goal;
+		synchronized (symmetricEntry)
+		{
+			if (!symmetricEntry.goals.containsKey(role))
+			{
+				symmetricEntry.goals.put(role, backingStateMachine.getGoal(state, role));
+			}
+
+			goal = symmetricEntry.goals.get(role);
+		}
+		if (symmetricEntry != entry)
+		{
+			synchronized (entry)
+			{
+				entry.goals.put(role, goal);
+			}
 		}
+
+		return goal;
 	}
 
 	@Override
@@ -80,6 +178,59 @@ public final class CachedStateMachine extends StateMachine
 		}
 	}
 
+	@Override
+	public int[] getLegalMoveIds(MachineState state, Role role) throws MoveDefinitionException
+	{
+		Entry entry = getEntry(state);
+		synchronized (entry)
+		{
+			if (!entry.moveIds.containsKey(role))
+			{
+				entry.moveIds.put(role, backingStateMachine.getLegalMoveIds(state, role));
+			}
+
+			return entry.moveIds.get(role);
+		}
+	}
+
+	@Override
+	public Move getMoveFromId(Role role, int moveId)
+	{
+		return backingStateMachine.getMoveFromId(role, moveId);
+	}
+
+	@Override
+	public int getMoveId(Role role, Move move)
+	{
+		return backingStateMachine.getMoveId(role, move);
+	}
+
+	/**
+	 * Shares the cached next states with {@link #getNextState(MachineState, List)},
+	 * by looking them up under the Moves that the ids stand for.
+	 */
+	@Override
+	public MachineState getNextState(MachineState state, int[] moveIds) throws TransitionDefinitionException
+	{
+		List<Role> roles = getRoles();
+		List<Move> moves = new ArrayList<Move>(roles.size());
+		for (int i = 0; i < roles.size(); i++)
+		{
+			moves.add(backingStateMachine.getMoveFromId(roles.get(i), moveIds[i]));
+		}
+
+		Entry entry = getEntry(state);
+		synchronized (entry)
+		{
+			if (!entry.nexts.containsKey(moves))
+			{
+				entry.nexts.put(moves, backingStateMachine.getNextState(state, moveIds));
+			}
+
+			return entry.nexts.get(moves);
+		}
+	}
+
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
 	{
@@ -88,7 +239,8 @@ public final class CachedStateMachine extends StateMachine
 		{
 			if (!entry.nexts.containsKey(moves))
 			{
-				entry.nexts.put(moves, backingStateMachine.getNextState(state, moves));
+				// The caller may reuse the list, as depth charges do.
+				entry.nexts.put(new ArrayList<Move>(moves), backingStateMachine.getNextState(state, moves));
 			}
 
 			return entry.nexts.get(moves);
@@ -101,24 +253,160 @@ public final class CachedStateMachine extends StateMachine
 		Entry entry = getEntry(state);
 		synchronized (entry)
 		{
-			if (entry.terminal == null)
+			if (entry.terminal != null)
 			{
-				entry.terminal = backingStateMachine.isTerminal(state);
+				return entry.terminal;
 			}
+		}
 
-			return entry.terminal;
+		Entry symmetricEntry = getSymmetricEntry(state, entry);
+		boolean terminal;
+		synchronized (symmetricEntry)
+		{
+			if (symmetricEntry.terminal == null)
+			{
+				symmetricEntry.terminal = backingStateMachine.isTerminal(state);
+			}
+
+			terminal = symmetricEntry.terminal;
+		}
+		if (symmetricEntry != entry)
+		{
+			synchronized (entry)
+			{
+				entry.terminal = terminal;
+			}
+		}
+
+		return terminal;
+	}
+
+	@Override
+	public MachineStateInfo getStateInfo(MachineState state)
+	{
+		Entry entry = getEntry(state);
+		synchronized (entry)
+		{
+			if (entry.info == null)
+			{
+				entry.info = backingStateMachine.getStateInfo(state);
+			}
+
+			return entry.info;
 		}
 	}
 
 	@Override
 	public void doPerMoveWork()
 	{
+		GamerLogger.log("StateMachine", "Cache: " + cache);
 		prune();
 	}
 
+	/**
+	 * Drops every state that has not been looked up since the last prune.
+	 */
 	public void prune()
 	{
-		ttlCache.prune();
+		cache.prune();
+	}
+
+	/** @return The number of states currently cached. */
+	public int getCacheSize()
+	{
+		return cache.size();
+	}
+
+	/** @return The most states cached at once. */
+	public int getCacheCapacity()
+	{
+		return cache.getCapacity();
+	}
+
+	public long getCacheHits()
+	{
+		return cache.getHits();
+	}
+
+	public long getCacheMisses()
+	{
+		return cache.getMisses();
+	}
+
+	/** @return The number of states dropped to make room for new ones. */
+	public long getCacheEvictions()
+	{
+		return cache.getEvictions();
+	}
+
+	/**
+	 * The copy gets its own, empty cache of the same capacity, in front of
+	 * a copy of the backing machine. The cache only takes up memory as
+	 * states are added, so copies that only run depth charges, which
+	 * bypass it, cost little.
+	 */
+	@Override
+	public StateMachine copy()
+	{
+		CachedStateMachine copy = new CachedStateMachine(backingStateMachine.copy(), cache.getCapacity());
+		copy.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+		copy.setMergeSymmetricStates(mergeSymmetricStates);
+		copy.setRandom(splitRandom());
+		return copy;
+	}
+
+	@Override
+	public int getDepthChargeBatchSize()
+	{
+		return backingStateMachine.getDepthChargeBatchSize();
+	}
+
+	/**
+	 * Depth charges are passed straight to the backing machine, since the
+	 * states they visit are almost never seen again.
+	 */
+	@Override
+	public void performDepthCharges(MachineState state, int count, int[][] goals, int[] depths) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		backingStateMachine.performDepthCharges(state, count, goals, depths);
+	}
+
+	@Override
+	public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException
+	{
+		return backingStateMachine.performDepthCharge(state, theDepth);
+	}
+
+	@Override
+	public long getZobristHash(MachineState state)
+	{
+		return backingStateMachine.getZobristHash(state);
+	}
+
+	@Override
+	public MachineState canonicalize(MachineState state)
+	{
+		return backingStateMachine.canonicalize(state);
+	}
+
+	@Override
+	public boolean isOutcomeFixed(MachineState state)
+	{
+		return backingStateMachine.isOutcomeFixed(state);
+	}
+
+	@Override
+	public void setStopAtFixedOutcome(boolean stopAtFixedOutcome)
+	{
+		super.setStopAtFixedOutcome(stopAtFixedOutcome);
+		backingStateMachine.setStopAtFixedOutcome(stopAtFixedOutcome);
+	}
+
+	@Override
+	public void setRandom(Random random)
+	{
+		super.setRandom(random);
+		backingStateMachine.setRandom(random);
 	}
 
 	@Override
@@ -132,6 +420,21 @@ public final class CachedStateMachine extends StateMachine
 		return backingStateMachine.getRoles();
 	}
 
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		return backingStateMachine.getMachineStateFromSentenceList(sentenceList);
+	}
+
+	@Override
+	public Role getRoleFromConstant(GdlConstant constant) {
+		return backingStateMachine.getRoleFromConstant(constant);
+	}
+
+	@Override
+	public Move getMoveFromTerm(GdlTerm term) {
+		return backingStateMachine.getMoveFromTerm(term);
+	}
+
 	@Override
 	public MachineState getInitialState() {
 		// TODO(schreib): Should this be cached as well?
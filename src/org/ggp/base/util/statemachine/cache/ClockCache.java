@@ -0,0 +1,304 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClockCache is a thread-safe cache holding at most a fixed number of
+ * entries. When it is full, an entry is evicted using the CLOCK policy:
+ * each entry has a reference bit that is set whenever it is read, and a
+ * hand sweeps the entries, clearing set bits, until it finds one that has
+ * not been read since the hand last passed it.
+ *
+ * The keys are split across segments by hash, each with its own lock, so
+ * threads working on different keys rarely wait for each other. Each
+ * segment holds an equal share of the entries. A segment's arrays start
+ * small and grow as entries are added, so a large cache that is hardly used
+ * takes up little memory.
+ *
+ * The cache counts its hits, misses and evictions, so that its size can be
+ * tuned to the game being played.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class ClockCache<K, V>
+{
+	private static final int DEFAULT_NUM_SEGMENTS = 16;
+	private static final int INITIAL_SEGMENT_SLOTS = 16;
+
+	private static final class Segment<K, V>
+	{
+		/** Slot of each key in the arrays below */
+		private final Map<K, Integer> slots;
+		/** The most entries the segment holds; its arrays grow up to this */
+		private final int capacity;
+		private Object[] keys;
+		private Object[] values;
+		private boolean[] referenced;
+		/** Slots that hold no entry, as a stack */
+		private int[] freeSlots;
+		private int numFree;
+		private int hand;
+
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		public Segment(int capacity)
+		{
+			slots = new HashMap<K, Integer>();
+			this.capacity = capacity;
+			keys = new Object[0];
+			values = new Object[0];
+			referenced = new boolean[0];
+			freeSlots = new int[0];
+			numFree = 0;
+			hand = 0;
+		}
+
+		/** Makes the arrays twice as long, up to the capacity, with the new slots free. */
+		private void grow()
+		{
+			int oldLength = keys.length;
+			int newLength = (int) Math.min(capacity, Math.max(INITIAL_SEGMENT_SLOTS, 2L * oldLength));
+			keys = Arrays.copyOf(keys, newLength);
+			values = Arrays.copyOf(values, newLength);
+			referenced = Arrays.copyOf(referenced, newLength);
+			freeSlots = Arrays.copyOf(freeSlots, newLength);
+			for (int i = newLength - 1; i >= oldLength; i--) {
+				freeSlots[numFree++] = i;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V get(K key)
+		{
+			Integer slot = slots.get(key);
+			if (slot == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			referenced[slot] = true;
+			return (V) values[slot];
+		}
+
+		@SuppressWarnings("unchecked")
+		public synchronized V putIfAbsent(K key, V value)
+		{
+			Integer slot = slots.get(key);
+			if (slot != null) {
+				referenced[slot] = true;
+				return (V) values[slot];
+			}
+			if (numFree == 0 && keys.length < capacity) {
+				grow();
+			}
+			int newSlot = (numFree > 0) ? freeSlots[--numFree] : evict();
+			keys[newSlot] = key;
+			values[newSlot] = value;
+			referenced[newSlot] = true;
+			slots.put(key, newSlot);
+			return value;
+		}
+
+		/** Empties the slot of the first entry the hand finds unreferenced. */
+		private int evict()
+		{
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				hand = (hand + 1) % keys.length;
+			}
+			int slot = hand;
+			hand = (hand + 1) % keys.length;
+			slots.remove(keys[slot]);
+			evictions++;
+			return slot;
+		}
+
+		public synchronized void prune()
+		{
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == null) {
+					continue;
+				}
+				if (referenced[i]) {
+					referenced[i] = false;
+				} else {
+					remove(i);
+				}
+			}
+		}
+
+		public synchronized void clear()
+		{
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != null) {
+					remove(i);
+				}
+			}
+		}
+
+		private void remove(int slot)
+		{
+			slots.remove(keys[slot]);
+			keys[slot] = null;
+			values[slot] = null;
+			referenced[slot] = false;
+			freeSlots[numFree++] = slot;
+		}
+
+		public synchronized int size()
+		{
+			return slots.size();
+		}
+
+		public synchronized long getHits()
+		{
+			return hits;
+		}
+
+		public synchronized long getMisses()
+		{
+			return misses;
+		}
+
+		public synchronized long getEvictions()
+		{
+			return evictions;
+		}
+	}
+
+	private final List<Segment<K, V>> segments;
+	private final int capacity;
+
+	public ClockCache(int maxEntries)
+	{
+		this(maxEntries, DEFAULT_NUM_SEGMENTS);
+	}
+
+	/**
+	 * @param maxEntries The most entries the cache holds at once.
+	 * @param numSegments The number of separately locked parts of the cache,
+	 * which is rounded up to a power of two, but no more than
+	 * maxEntries. The entries are shared equally between the parts.
+	 */
+	public ClockCache(int maxEntries, int numSegments)
+	{
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("A cache must hold at least one entry, not " + maxEntries);
+		}
+		int n = 1;
+		while (n < numSegments && n * 2 <= maxEntries) {
+			n *= 2;
+		}
+		this.segments = new ArrayList<Segment<K, V>>(n);
+		for (int i = 0; i < n; i++) {
+			segments.add(new Segment<K, V>(maxEntries / n));
+		}
+		this.capacity = (maxEntries / n) * n;
+	}
+
+	private Segment<K, V> segmentFor(Object key)
+	{
+		// Mix the high bits in, since the low bits of some hash codes are poor.
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return segments.get(h & (segments.size() - 1));
+	}
+
+	/**
+	 * @return The value cached for the key, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key)
+	{
+		return segmentFor(key).get((K) key);
+	}
+
+	/**
+	 * Caches the value for the key, unless a value is already cached for it,
+	 * evicting another entry if the cache is full.
+	 *
+	 * @return The value now cached for the key, which is the given value
+	 * unless there already was one.
+	 */
+	public V putIfAbsent(K key, V value)
+	{
+		return segmentFor(key).putIfAbsent(key, value);
+	}
+
+	/**
+	 * Removes every entry that has not been read or added since the last
+	 * call to prune().
+	 */
+	public void prune()
+	{
+		for (Segment<K, V> segment : segments) {
+			segment.prune();
+		}
+	}
+
+	public void clear()
+	{
+		for (Segment<K, V> segment : segments) {
+			segment.clear();
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/** @return The most entries the cache holds at once. */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	public long getHits()
+	{
+		long hits = 0;
+		for (Segment<K, V> segment : segments) {
+			hits += segment.getHits();
+		}
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		long misses = 0;
+		for (Segment<K, V> segment : segments) {
+			misses += segment.getMisses();
+		}
+		return misses;
+	}
+
+	/** @return The number of entries removed to make room for new ones. */
+	public long getEvictions()
+	{
+		long evictions = 0;
+		for (Segment<K, V> segment : segments) {
+			evictions += segment.getEvictions();
+		}
+		return evictions;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ClockCache(" + size() + "/" + capacity + " entries, " + getHits() + " hits, "
+				+ getMisses() + " misses, " + getEvictions() + " evictions)";
+	}
+}
@@ -0,0 +1,273 @@
+package org.ggp.base.util.statemachine.cache;
+
+/**
+ * TranspositionTable stores search results for states, keyed by their 64-bit
+ * Zobrist hash (see {@link org.ggp.base.util.statemachine.StateMachine#getZobristHash}).
+ * It holds a fixed number of entries in parallel primitive arrays, with open
+ * addressing: a key may go in any of the few slots that follow its home slot.
+ * When those are all taken, the replacement policy picks which entry makes
+ * way, or whether the new one is dropped instead.
+ *
+ * Each entry holds a value, a count, a bound type and a best move id, which
+ * searches use as they see fit: alpha-beta search stores a value with its
+ * bound type, and Monte Carlo tree search a total score with a visit count.
+ * Entries also hold a depth, which the depth-preferred policy uses to keep
+ * the results of larger searches.
+ *
+ * Entries are handled through slot numbers, returned by {@link #probe} and
+ * {@link #store}. A slot number is only valid until the next call to store,
+ * which may give the slot to another key.
+ *
+ * Only the keys are compared, so two states with the same Zobrist hash share
+ * an entry. This class is not thread-safe.
+ */
+public final class TranspositionTable
+{
+	public enum ReplacementPolicy
+	{
+		/** New entries always take the place of old ones. */
+		ALWAYS_REPLACE,
+		/**
+		 * New entries take the place of the shallowest old one, unless that
+		 * is deeper than the new entry, in which case it is not stored.
+		 * Entries from before the last call to {@link TranspositionTable#newSearch()}
+		 * are always replaced first.
+		 */
+		DEPTH_PREFERRED
+	}
+
+	/** The value is exact. */
+	public static final byte EXACT = 0;
+	/** The real value is at least the stored one. */
+	public static final byte LOWER_BOUND = 1;
+	/** The real value is at most the stored one. */
+	public static final byte UPPER_BOUND = 2;
+
+	/** The number of slots a key may be stored in */
+	private static final int PROBE_LENGTH = 4;
+
+	private final ReplacementPolicy policy;
+	private final int mask;
+	private final long[] keys;
+	private final int[] values;
+	private final int[] counts;
+	private final int[] bestMoves;
+	private final short[] depths;
+	private final byte[] bounds;
+	/** The search that last stored each entry; 0 for empty slots */
+	private final byte[] generations;
+	private byte generation = 1;
+
+	private int size;
+	private long hits;
+	private long misses;
+	private long replacements;
+
+	/**
+	 * @param maxEntries The number of entries to allow for, which is rounded
+	 * up to a power of two.
+	 */
+	public TranspositionTable(int maxEntries, ReplacementPolicy policy)
+	{
+		int capacity = Math.max(Integer.highestOneBit(Math.max(maxEntries, 1) - 1) << 1, PROBE_LENGTH);
+		this.policy = policy;
+		this.mask = capacity - 1;
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.counts = new int[capacity];
+		this.bestMoves = new int[capacity];
+		this.depths = new short[capacity];
+		this.bounds = new byte[capacity];
+		this.generations = new byte[capacity];
+	}
+
+	private int home(long key)
+	{
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * @return The slot of the key's entry, or -1 if it has none.
+	 */
+	public int probe(long key)
+	{
+		int home = home(key);
+		for (int i = 0; i < PROBE_LENGTH; i++) {
+			int slot = (home + i) & mask;
+			if (generations[slot] != 0 && keys[slot] == key) {
+				hits++;
+				return slot;
+			}
+		}
+		misses++;
+		return -1;
+	}
+
+	/**
+	 * Finds the key's entry, or makes one for it. A new entry starts with
+	 * a value and count of 0, a best move of -1 and an EXACT bound. The
+	 * entry's depth is set to the given one.
+	 *
+	 * @return The slot of the key's entry, or -1 if the replacement policy
+	 * chose to keep the existing entries.
+	 */
+	public int store(long key, int depth)
+	{
+		int home = home(key);
+		int victim = -1;
+		for (int i = 0; i < PROBE_LENGTH; i++) {
+			int slot = (home + i) & mask;
+			if (generations[slot] == 0 || keys[slot] == key) {
+				victim = slot;
+				break;
+			}
+			if (victim == -1 || isReplacedBefore(slot, victim)) {
+				victim = slot;
+			}
+		}
+
+		if (generations[victim] != 0 && keys[victim] == key) {
+			depths[victim] = (short) depth;
+			generations[victim] = generation;
+			return victim;
+		}
+		if (generations[victim] == 0) {
+			size++;
+		} else {
+			if (policy == ReplacementPolicy.DEPTH_PREFERRED && generations[victim] == generation && depths[victim] > depth) {
+				return -1;
+			}
+			replacements++;
+		}
+		keys[victim] = key;
+		values[victim] = 0;
+		counts[victim] = 0;
+		bestMoves[victim] = -1;
+		depths[victim] = (short) depth;
+		bounds[victim] = EXACT;
+		generations[victim] = generation;
+		return victim;
+	}
+
+	/**
+	 * Whether the entry in slot a should make way before the one in slot b.
+	 * Always replacing still prefers the older of the two.
+	 */
+	private boolean isReplacedBefore(int a, int b)
+	{
+		boolean aIsOld = generations[a] != generation;
+		boolean bIsOld = generations[b] != generation;
+		if (aIsOld != bIsOld) {
+			return aIsOld;
+		}
+		return policy == ReplacementPolicy.DEPTH_PREFERRED && depths[a] < depths[b];
+	}
+
+	/**
+	 * Starts a new search, whose entries are preferred over those stored so
+	 * far. Older entries can still be found until they are replaced.
+	 */
+	public void newSearch()
+	{
+		generation++;
+		if (generation == 0) {
+			// Keep 0 for empty slots, and age every entry still around.
+			generation = 1;
+			for (int i = 0; i < generations.length; i++) {
+				if (generations[i] != 0) {
+					generations[i] = -1;
+				}
+			}
+		}
+	}
+
+	public void clear()
+	{
+		for (int i = 0; i < generations.length; i++) {
+			generations[i] = 0;
+		}
+		size = 0;
+	}
+
+	public int getValue(int slot)
+	{
+		return values[slot];
+	}
+
+	public void setValue(int slot, int value)
+	{
+		values[slot] = value;
+	}
+
+	public int getCount(int slot)
+	{
+		return counts[slot];
+	}
+
+	public void setCount(int slot, int count)
+	{
+		counts[slot] = count;
+	}
+
+	/** @return The id of the best move stored, or -1 if there is none. */
+	public int getBestMove(int slot)
+	{
+		return bestMoves[slot];
+	}
+
+	public void setBestMove(int slot, int bestMove)
+	{
+		bestMoves[slot] = bestMove;
+	}
+
+	/** @return One of EXACT, LOWER_BOUND and UPPER_BOUND. */
+	public byte getBound(int slot)
+	{
+		return bounds[slot];
+	}
+
+	public void setBound(int slot, byte bound)
+	{
+		bounds[slot] = bound;
+	}
+
+	public int getDepth(int slot)
+	{
+		return depths[slot];
+	}
+
+	/** @return The number of entries stored. */
+	public int size()
+	{
+		return size;
+	}
+
+	/** @return The most entries the table holds at once. */
+	public int getCapacity()
+	{
+		return keys.length;
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/** @return The number of entries that made way for new ones. */
+	public long getReplacements()
+	{
+		return replacements;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TranspositionTable(" + size + "/" + keys.length + " entries, " + hits + " hits, "
+				+ misses + " misses, " + replacements + " replacements)";
+	}
+}
@@ -0,0 +1,295 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.PropNetLatchAnalyzer;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * The BitParallelDepthCharger runs up to 64 random depth charges over a
+ * CompiledPropNet at once. Every component's value is stored as a long whose
+ * bit i is the component's value in lane i, so a single pass of bitwise
+ * AND/OR/NOT over the network's topological ordering advances all 64 playouts
+ * by one step.
+ *
+ * Each step propagates the whole network once to find the legal moves and the
+ * terminal lanes, picks a random legal move per lane and role, and then only
+ * re-propagates the components that depend on the input propositions to find
+ * the next states. Lanes that reach a terminal state record their goals and
+ * depth, and are ignored from then on.
+ *
+ * Instances are not thread-safe.
+ */
+public final class BitParallelDepthCharger
+{
+	public static final int MAX_LANES = 64;
+
+	private final CompiledPropNet net;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	private final int[] ordering;
+	/** The part of the ordering that depends on the input propositions. */
+	private final int[] inputOrdering;
+
+	/** The value of every component, one bit per lane. */
+	private final long[] lanes;
+	/** Scratch space for the legal moves of one role. */
+	private final long[] legalLanes;
+	/** Scratch space for the base values of one lane. */
+	private final long[] laneBaseBits;
+
+	public BitParallelDepthCharger(CompiledPropNet net)
+	{
+		this.net = net;
+		int n = net.getNumComponents();
+		this.types = new byte[n];
+		for (int id = 0; id < n; id++) {
+			types[id] = net.getType(id);
+		}
+		this.inputOffsets = net.getInputOffsets();
+		this.inputs = net.getInputs();
+		this.ordering = net.getOrdering();
+		this.inputOrdering = computeInputOrdering();
+		this.lanes = new long[n];
+		for (int id = 0; id < n; id++) {
+			if (types[id] == CompiledPropNet.TYPE_TRUE) {
+				lanes[id] = -1L;
+			}
+		}
+		int maxLegals = 0;
+		for (int[] legals : net.getLegalPropositions()) {
+			maxLegals = Math.max(maxLegals, legals.length);
+		}
+		this.legalLanes = new long[maxLegals];
+		this.laneBaseBits = new long[(net.getBasePropositions().length + 63) >>> 6];
+	}
+
+	/**
+	 * Marks every component reachable from an input proposition without going
+	 * through a source, and keeps those in topological order.
+	 */
+	private int[] computeInputOrdering()
+	{
+		int n = types.length;
+		int[] outputOffsets = net.getOutputOffsets();
+		int[] outputs = net.getOutputs();
+		boolean[] affected = new boolean[n];
+		int[] stack = new int[n];
+		int size = 0;
+		for (int input : net.getInputPropositions()) {
+			stack[size++] = input;
+		}
+		while (size > 0) {
+			int id = stack[--size];
+			for (int j = outputOffsets[id]; j < outputOffsets[id + 1]; j++) {
+				int output = outputs[j];
+				if (!affected[output] && !CompiledPropNet.isSource(types[output])) {
+					affected[output] = true;
+					stack[size++] = output;
+				}
+			}
+		}
+		int count = 0;
+		for (int id : ordering) {
+			if (affected[id]) count++;
+		}
+		int[] result = new int[count];
+		int i = 0;
+		for (int id : ordering) {
+			if (affected[id]) result[i++] = id;
+		}
+		return result;
+	}
+
+	/**
+	 * Runs numLanes random depth charges from the given state.
+	 *
+	 * @param state the state to start from, used for error reporting.
+	 * @param baseBits the value of every base proposition in the starting
+	 * state, one bit per base index.
+	 * @param cutoff if not null, lanes also stop at states whose goals these
+	 * latches fix.
+	 * @param goals the goal values reached by each lane, per role.
+	 * @param depths optionally, the depth reached by each lane.
+	 */
+	public void run(MachineState state, long[] baseBits, int numLanes, Random random, PropNetLatchAnalyzer cutoff, int[][] goals, int[] depths)
+	throws MoveDefinitionException, GoalDefinitionException
+	{
+		if (numLanes <= 0 || numLanes > MAX_LANES) {
+			throw new IllegalArgumentException("Number of lanes must be between 1 and " + MAX_LANES + ": " + numLanes);
+		}
+		int[] bases = net.getBasePropositions();
+		int[] transitions = net.getBaseTransitions();
+		int[] inputProps = net.getInputPropositions();
+		int terminal = net.getTerminalProposition();
+		List<Role> roles = net.getRoles();
+
+		for (int i = 0; i < bases.length; i++) {
+			lanes[bases[i]] = (baseBits[i >>> 6] & (1L << i)) != 0 ? -1L : 0L;
+		}
+		long active = numLanes == MAX_LANES ? -1L : (1L << numLanes) - 1;
+		int depth = 0;
+		while (true) {
+			for (int input : inputProps) {
+				lanes[input] = 0L;
+			}
+			propagate(ordering);
+
+			long done = terminal == -1 ? 0L : lanes[terminal] & active;
+			if (cutoff != null) {
+				done |= findFixedLanes(cutoff, active & ~done);
+			}
+			if (done != 0) {
+				recordGoals(state, done, depth, goals, depths);
+				active &= ~done;
+			}
+			if (active == 0) {
+				return;
+			}
+
+			for (int r = 0; r < roles.size(); r++) {
+				selectMoves(state, roles.get(r), r, active, random);
+			}
+			propagate(inputOrdering);
+			for (int i = 0; i < bases.length; i++) {
+				lanes[bases[i]] = lanes[transitions[i]];
+			}
+			depth++;
+		}
+	}
+
+	/**
+	 * Returns the given lanes whose goals are fixed by their latches. Only
+	 * the goal latches are copied out of the lanes, since nothing else is
+	 * looked at.
+	 */
+	private long findFixedLanes(PropNetLatchAnalyzer cutoff, long candidates)
+	{
+		int[] goalLatches = cutoff.getGoalLatches();
+		if (goalLatches.length == 0) {
+			return 0L;
+		}
+		int[] bases = net.getBasePropositions();
+		long fixed = 0L;
+		for (long remaining = candidates; remaining != 0; remaining &= remaining - 1) {
+			int lane = Long.numberOfTrailingZeros(remaining);
+			long bit = 1L << lane;
+			for (int base : goalLatches) {
+				if ((lanes[bases[base]] & bit) != 0) {
+					laneBaseBits[base >>> 6] |= (1L << base);
+				} else {
+					laneBaseBits[base >>> 6] &= ~(1L << base);
+				}
+			}
+			if (cutoff.getFixedGoals(laneBaseBits) != null) {
+				fixed |= bit;
+			}
+		}
+		return fixed;
+	}
+
+	private void propagate(int[] order)
+	{
+		final long[] lanes = this.lanes;
+		final byte[] types = this.types;
+		final int[] inputOffsets = this.inputOffsets;
+		final int[] inputs = this.inputs;
+		for (int i = 0; i < order.length; i++) {
+			int id = order[i];
+			int start = inputOffsets[id];
+			int end = inputOffsets[id + 1];
+			long value;
+			switch (types[id]) {
+			case CompiledPropNet.TYPE_AND:
+				value = -1L;
+				for (int j = start; j < end; j++) {
+					value &= lanes[inputs[j]];
+				}
+				break;
+			case CompiledPropNet.TYPE_NOT:
+				value = ~lanes[inputs[start]];
+				break;
+			default:
+				value = 0L;
+				for (int j = start; j < end; j++) {
+					value |= lanes[inputs[j]];
+				}
+				break;
+			}
+			lanes[id] = value;
+		}
+	}
+
+	/**
+	 * Picks a uniformly random legal move for the given role in every active
+	 * lane, and sets the matching input propositions.
+	 */
+	private void selectMoves(MachineState state, Role role, int r, long active, Random random)
+	throws MoveDefinitionException
+	{
+		int[] legals = net.getLegalPropositions()[r];
+		int[] legalInputs = net.getLegalInputs()[r];
+		for (int i = 0; i < legals.length; i++) {
+			legalLanes[i] = lanes[legals[i]];
+		}
+		for (long remaining = active; remaining != 0; remaining &= remaining - 1) {
+			int lane = Long.numberOfTrailingZeros(remaining);
+			long bit = 1L << lane;
+			int count = 0;
+			for (int i = 0; i < legals.length; i++) {
+				if ((legalLanes[i] & bit) != 0) count++;
+			}
+			if (count == 0) {
+				throw new MoveDefinitionException(state, role);
+			}
+			int choice = random.nextInt(count);
+			for (int i = 0; i < legals.length; i++) {
+				if ((legalLanes[i] & bit) != 0 && choice-- == 0) {
+					if (legalInputs[i] != -1) {
+						lanes[legalInputs[i]] |= bit;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	private void recordGoals(MachineState state, long done, int depth, int[][] goals, int[] depths)
+	throws GoalDefinitionException
+	{
+		List<Role> roles = net.getRoles();
+		int[][] goalProps = net.getGoalPropositions();
+		int[][] goalValues = net.getGoalValues();
+		for (long remaining = done; remaining != 0; remaining &= remaining - 1) {
+			int lane = Long.numberOfTrailingZeros(remaining);
+			long bit = 1L << lane;
+			if (goals[lane] == null || goals[lane].length != roles.size()) {
+				goals[lane] = new int[roles.size()];
+			}
+			for (int r = 0; r < roles.size(); r++) {
+				int goalValue = -1;
+				for (int i = 0; i < goalProps[r].length; i++) {
+					if ((lanes[goalProps[r][i]] & bit) != 0) {
+						if (goalValue != -1) {
+							throw new GoalDefinitionException(state, roles.get(r));
+						}
+						goalValue = goalValues[r][i];
+					}
+				}
+				if (goalValue == -1) {
+					throw new GoalDefinitionException(state, roles.get(r));
+				}
+				goals[lane][r] = goalValue;
+			}
+			if (depths != null) {
+				depths[lane] = depth;
+			}
+		}
+	}
+}
@@ -0,0 +1,761 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.DifferentialPropagator;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.PropNetCodeGenerator;
+import org.ggp.base.util.propnet.architecture.PropNetEvaluator;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.propnet.factory.PropNetFactorizer;
+import org.ggp.base.util.propnet.factory.PropNetLatchAnalyzer;
+import org.ggp.base.util.propnet.factory.PropNetSymmetryDetector;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.propnet.factory.exceptions.PropNetTooLargeException;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.MachineStateInfo;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.ZobristHash;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The CompiledPropNetStateMachine is a propnet-based state machine that
+ * compiles the PropNet once, at initialization, into a {@link CompiledPropNet}.
+ * Component values are kept in a single long[] bitset owned by this machine,
+ * and every query is answered by setting the source bits and propagating.
+ *
+ * Three propagation modes are supported. FULL re-evaluates the compiled
+ * network's entire topological ordering on every query. DIFFERENTIAL keeps
+ * per-component true-input counters and only pushes changes forward from the
+ * base and input propositions whose values actually flipped, which makes
+ * consecutive queries on similar states (as in depth charges) proportional
+ * to the size of the state delta rather than the size of the network.
+ * In FULL mode each query only evaluates its cone of influence: the part of
+ * the network that the propositions it reads depend on. Cones evaluated for
+ * a state are remembered until a different state is queried, so asking for
+ * the terminal status, goals and legal moves of one state evaluates each
+ * component at most once.
+ * In every mode, queries about the state that was queried last do not reload
+ * or re-propagate it, and {@link #getStateInfo(MachineState)} answers all of
+ * them with a single propagation.
+ * GENERATED is like FULL, but evaluates the network with straight-line Java
+ * code generated for it by {@link PropNetCodeGenerator}; if the network is too
+ * large or the code takes too long to compile, DIFFERENTIAL is used instead.
+ *
+ * States are produced as {@link PropNetMachineState}s, which carry the base
+ * values as bits and are loaded back without looking at their sentences.
+ * Move ids are indices into each role's legal propositions, so playing a joint
+ * move given as ids sets the matching input propositions directly.
+ *
+ * Instances are not thread-safe. Use {@link #copy()} to get another instance
+ * for another thread: copies share the compiled propnet (and any generated
+ * evaluator), and only allocate their own component values.
+ */
+public class CompiledPropNetStateMachine extends StateMachine {
+	public static enum PropagationMode {
+		FULL,
+		DIFFERENTIAL,
+		GENERATED
+	}
+
+	private static final int TERMINAL_CONE = 0;
+
+	private final PropagationMode mode;
+	private final PropNetCodeGenerator codeGenerator;
+	/** Where compiled propnets are loaded from and stored; null for none */
+	private PropNetCache cache;
+	/** Building a propnet with more components than this is given up */
+	private int maxComponents = Integer.MAX_VALUE;
+
+	/** The compiled proposition network */
+	private CompiledPropNet net;
+	/** The value of every component, one bit per component id */
+	private long[] values;
+	/** Keeps the values up to date in DIFFERENTIAL mode; null otherwise */
+	private DifferentialPropagator propagator;
+	/** Evaluates the whole network in the other modes */
+	private PropNetEvaluator evaluator;
+	/**
+	 * In FULL mode, the cone of influence of every query: the terminal
+	 * proposition, then each role's goals, then each role's legals, then the
+	 * transitions. Null in the other modes.
+	 */
+	private int[][] cones;
+	/** Which cones have already been evaluated for loadedState */
+	private boolean[] conesEvaluated;
+	/**
+	 * The state whose bases are set, with no moves, and whose values are up
+	 * to date (in FULL mode, only in the evaluated cones); null if unknown.
+	 */
+	private MachineState loadedState;
+	/** The result of the last call to getStateInfo */
+	private MachineStateInfo lastInfo;
+	/** The hash code of the sentence of every base proposition */
+	private int[] baseHashes;
+	/** The Zobrist key of the sentence of every base proposition */
+	private long[] baseZobristKeys;
+	/** The player roles */
+	private List<Role> roles;
+	/** The input proposition currently set for each role, or -1 */
+	private int[] activeInputs;
+	/** Runs depth charges 64 at a time; created on first use */
+	private BitParallelDepthCharger depthCharger;
+	private int[][] laneGoals;
+	private int[] laneDepths;
+	/** The independent subgames of the game; found on first use */
+	private List<PropNetFactorizer.Factor> factors;
+	/** The latches of the game; found on first use */
+	private PropNetLatchAnalyzer latches;
+	/** The symmetries of the game; found on first use */
+	private PropNetSymmetryDetector symmetries;
+
+	private MachineState initial;
+
+	public CompiledPropNetStateMachine() {
+		this(PropagationMode.DIFFERENTIAL);
+	}
+
+	public CompiledPropNetStateMachine(PropagationMode mode) {
+		this(mode, new PropNetCodeGenerator());
+	}
+
+	/**
+	 * Creates a machine in GENERATED mode, with the budget given by the
+	 * code generator.
+	 */
+	public CompiledPropNetStateMachine(PropNetCodeGenerator codeGenerator) {
+		this(PropagationMode.GENERATED, codeGenerator);
+	}
+
+	private CompiledPropNetStateMachine(PropagationMode mode, PropNetCodeGenerator codeGenerator) {
+		this.mode = mode;
+		this.codeGenerator = codeGenerator;
+	}
+
+	/**
+	 * Makes {@link #initialize(List)} load the compiled propnet from the
+	 * given cache when the game is in it, and store it there otherwise.
+	 */
+	public void setPropNetCache(PropNetCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Makes {@link #initialize(List)} give up building propnets that grow
+	 * past the given number of components, by throwing a
+	 * {@link PropNetTooLargeException}. Propnets loaded from the cache are
+	 * used whatever their size.
+	 */
+	public void setMaxComponents(int maxComponents) {
+		this.maxComponents = maxComponents;
+	}
+
+	@Override
+	public void initialize(List<Gdl> description) {
+		long start = System.currentTimeMillis();
+		net = (cache == null) ? null : cache.load(description);
+		if (net == null) {
+			net = buildPropNet(description, maxComponents);
+			if (cache != null) {
+				cache.store(description, net);
+			}
+		}
+		values = net.newValues();
+		baseHashes = new int[net.getBasePropositions().length];
+		for (int i = 0; i < baseHashes.length; i++) {
+			baseHashes[i] = net.getBaseNames()[i].hashCode();
+		}
+		baseZobristKeys = new long[baseHashes.length];
+		for (int i = 0; i < baseZobristKeys.length; i++) {
+			baseZobristKeys[i] = ZobristHash.getKey(net.getBaseNames()[i]);
+		}
+		roles = net.getRoles();
+		activeInputs = newActiveInputs();
+		depthCharger = null;
+		factors = null;
+		latches = null;
+		symmetries = null;
+		initial = computeInitialState();
+		net.propagate(values);
+		propagator = null;
+		evaluator = net;
+		if (mode == PropagationMode.GENERATED) {
+			evaluator = codeGenerator.generate(net);
+		}
+		if (mode == PropagationMode.DIFFERENTIAL || evaluator == null) {
+			propagator = new DifferentialPropagator(net, values);
+		}
+		cones = null;
+		conesEvaluated = null;
+		loadedState = null;
+		lastInfo = null;
+		if (mode == PropagationMode.FULL) {
+			cones = computeCones();
+			conesEvaluated = new boolean[cones.length];
+		}
+		GamerLogger.log("StateMachine", "Compiled propnet with " + net.getNumComponents() + " components in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	private static CompiledPropNet buildPropNet(List<Gdl> description, int maxComponents) {
+		PropNet propNet;
+		try {
+			propNet = OptimizingPropNetFactory.create(description, false, maxComponents);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		new PropNetOptimizer().optimize(propNet);
+		return propNet.freeze().renumbered();
+	}
+
+	/**
+	 * Computes the initial state from the (init ...) propositions, which
+	 * are constants. Reading the transitions after setting INIT instead would
+	 * also apply the game's next rules to an empty state (see test_case_3d),
+	 * so that is only used for propnets whose init propositions were removed.
+	 */
+	private MachineState computeInitialState() {
+		clearSources();
+		net.propagate(values);
+		int[] inits = net.getBaseInits();
+		boolean hasInits = false;
+		long[] bits = newBits();
+		for (int i = 0; i < inits.length; i++) {
+			if (inits[i] != -1) {
+				hasInits = true;
+				if (CompiledPropNet.get(values, inits[i])) {
+					bits[i >>> 6] |= (1L << i);
+				}
+			}
+		}
+		if (hasInits || net.getInitProposition() == -1) {
+			return newState(bits, null);
+		}
+		CompiledPropNet.set(values, net.getInitProposition(), true);
+		net.propagate(values);
+		MachineState state = getStateFromTransitions(null);
+		clearSources();
+		return state;
+	}
+
+	private int[][] computeCones() {
+		int numRoles = roles.size();
+		int[][] cones = new int[2 * numRoles + 2][];
+		cones[0] = net.getCone(net.getTerminalProposition());
+		for (int r = 0; r < numRoles; r++) {
+			cones[goalCone(r)] = net.getCone(net.getGoalPropositions()[r]);
+			cones[legalCone(r)] = net.getCone(net.getLegalPropositions()[r]);
+		}
+		cones[nextCone()] = net.getCone(net.getBaseTransitions());
+		return cones;
+	}
+
+	private int goalCone(int roleIndex) {
+		return 1 + roleIndex;
+	}
+
+	private int legalCone(int roleIndex) {
+		return 1 + roles.size() + roleIndex;
+	}
+
+	private int nextCone() {
+		return 1 + 2 * roles.size();
+	}
+
+	/** Clears the values of every base and input proposition, and INIT. */
+	private void clearSources() {
+		for (int base : net.getBasePropositions()) {
+			CompiledPropNet.set(values, base, false);
+		}
+		for (int input : net.getInputPropositions()) {
+			CompiledPropNet.set(values, input, false);
+		}
+		if (net.getInitProposition() != -1) {
+			CompiledPropNet.set(values, net.getInitProposition(), false);
+		}
+	}
+
+	private void setSource(int id, boolean value) {
+		if (propagator != null) {
+			propagator.set(id, value);
+		} else {
+			CompiledPropNet.set(values, id, value);
+		}
+	}
+
+	private void propagate() {
+		if (propagator != null) {
+			propagator.propagate();
+		} else {
+			evaluator.propagate(values);
+		}
+	}
+
+	/**
+	 * Sets the base propositions to the values they have in the state.
+	 *
+	 * @return The state, if it was already in this propnet's base bits, so
+	 * that its hashes can be built on; otherwise null.
+	 */
+	private PropNetMachineState markBases(MachineState state) {
+		int[] bases = net.getBasePropositions();
+		PropNetMachineState bitState = toPropNetMachineState(state);
+		for (int i = 0; i < bases.length; i++) {
+			setSource(bases[i], bitState.isTrue(i));
+		}
+		// A converted state's hashes may count sentences that are not bases.
+		return (bitState == state) ? bitState : null;
+	}
+
+	private int[] newActiveInputs() {
+		int[] inputs = new int[roles.size()];
+		Arrays.fill(inputs, -1);
+		return inputs;
+	}
+
+	/**
+	 * Clears the input propositions set for the previous moves, and sets the
+	 * ones for the given moves.
+	 */
+	private void markActions(List<Move> moves) {
+		clearActions();
+		for (int r = 0; r < roles.size(); r++) {
+			Integer input = net.getInputProposition(r, moves.get(r));
+			if (input != null) {
+				setAction(r, input);
+			}
+		}
+	}
+
+	private void markActions(int[] moveIds) {
+		clearActions();
+		int[][] legalInputs = net.getLegalInputs();
+		for (int r = 0; r < roles.size(); r++) {
+			int input = legalInputs[r][moveIds[r]];
+			if (input != -1) {
+				setAction(r, input);
+			}
+		}
+	}
+
+	private void clearActions() {
+		for (int r = 0; r < activeInputs.length; r++) {
+			if (activeInputs[r] != -1) {
+				setSource(activeInputs[r], false);
+				activeInputs[r] = -1;
+			}
+		}
+	}
+
+	private void setAction(int roleIndex, int input) {
+		setSource(input, true);
+		activeInputs[roleIndex] = input;
+	}
+
+	/**
+	 * Brings the values read by the given query up to date for the state,
+	 * unless they already are. In FULL mode that is only the query's cone;
+	 * otherwise it is the whole network.
+	 */
+	private void update(MachineState state, int cone) {
+		if (loadedState == null || !loadedState.equals(state)) {
+			markBases(state);
+			clearActions();
+			loadedState = state;
+			if (cones == null) {
+				propagate();
+			} else {
+				Arrays.fill(conesEvaluated, false);
+			}
+		}
+		if (cones != null && !conesEvaluated[cone]) {
+			net.propagate(values, cones[cone]);
+			conesEvaluated[cone] = true;
+		}
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state) {
+		update(state, TERMINAL_CONE);
+		return net.getTerminalProposition() != -1 && CompiledPropNet.get(values, net.getTerminalProposition());
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role)
+	throws GoalDefinitionException {
+		int r = getRoleIndices().get(role);
+		update(state, goalCone(r));
+		int goalValue = readGoal(r);
+		if (goalValue == -1) {
+			throw new GoalDefinitionException(state, role);
+		}
+		return goalValue;
+	}
+
+	/**
+	 * Returns the goal value of the role in the current values, or -1 if it
+	 * does not have exactly one.
+	 */
+	private int readGoal(int r) {
+		int[] goals = net.getGoalPropositions()[r];
+		int goalValue = -1;
+		for (int i = 0; i < goals.length; i++) {
+			if (CompiledPropNet.get(values, goals[i])) {
+				if (goalValue != -1) {
+					return -1;
+				}
+				goalValue = net.getGoalValues()[r][i];
+			}
+		}
+		return goalValue;
+	}
+
+	@Override
+	public MachineState getInitialState() {
+		return initial;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role)
+	throws MoveDefinitionException {
+		int r = getRoleIndices().get(role);
+		update(state, legalCone(r));
+		List<Move> legalMoves = readLegalMoves(r);
+		if (legalMoves.isEmpty()) {
+			throw new MoveDefinitionException(state, role);
+		}
+		return legalMoves;
+	}
+
+	/**
+	 * Returns the indices of the legal propositions of the role that are true.
+	 */
+	@Override
+	public int[] getLegalMoveIds(MachineState state, Role role)
+	throws MoveDefinitionException {
+		int r = getRoleIndices().get(role);
+		update(state, legalCone(r));
+		int[] legals = net.getLegalPropositions()[r];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (CompiledPropNet.get(values, legals[i])) {
+				count++;
+			}
+		}
+		if (count == 0) {
+			throw new MoveDefinitionException(state, role);
+		}
+		int[] moveIds = new int[count];
+		count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (CompiledPropNet.get(values, legals[i])) {
+				moveIds[count++] = i;
+			}
+		}
+		return moveIds;
+	}
+
+	@Override
+	public Move getMoveFromId(Role role, int moveId) {
+		return net.getLegalMoves()[getRoleIndices().get(role)][moveId];
+	}
+
+	/**
+	 * Returns -1 for moves without a legal proposition, which can never
+	 * be legal.
+	 */
+	@Override
+	public int getMoveId(Role role, Move move) {
+		return net.getLegalIndex(getRoleIndices().get(role), move);
+	}
+
+	private List<Move> readLegalMoves(int r) {
+		int[] legals = net.getLegalPropositions()[r];
+		List<Move> legalMoves = new ArrayList<Move>();
+		for (int i = 0; i < legals.length; i++) {
+			if (CompiledPropNet.get(values, legals[i])) {
+				legalMoves.add(net.getLegalMoves()[r][i]);
+			}
+		}
+		return legalMoves;
+	}
+
+	/**
+	 * Reads the terminal status, every goal and every legal move off a
+	 * single update of the values.
+	 */
+	@Override
+	public MachineStateInfo getStateInfo(MachineState state) {
+		if (lastInfo != null && lastInfo.getState().equals(state)) {
+			return lastInfo;
+		}
+		for (int cone = TERMINAL_CONE; cone < nextCone(); cone++) {
+			update(state, cone);
+		}
+		boolean terminal = net.getTerminalProposition() != -1 && CompiledPropNet.get(values, net.getTerminalProposition());
+		int[] goals = new int[roles.size()];
+		List<List<Move>> legalMoves = new ArrayList<List<Move>>(roles.size());
+		for (int r = 0; r < roles.size(); r++) {
+			goals[r] = readGoal(r);
+			legalMoves.add(readLegalMoves(r));
+		}
+		lastInfo = new MachineStateInfo(roles, state, terminal, goals, legalMoves);
+		return lastInfo;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves)
+	throws TransitionDefinitionException {
+		PropNetMachineState previous = markBases(state);
+		markActions(moves);
+		return propagateNextState(previous);
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, int[] moveIds)
+	throws TransitionDefinitionException {
+		PropNetMachineState previous = markBases(state);
+		markActions(moveIds);
+		return propagateNextState(previous);
+	}
+
+	private MachineState propagateNextState(PropNetMachineState previous) {
+		loadedState = null;
+		if (cones != null) {
+			net.propagate(values, cones[nextCone()]);
+		} else {
+			propagate();
+		}
+		return getStateFromTransitions(previous);
+	}
+
+	/**
+	 * Builds the next state from the values of the transitions feeding
+	 * each base proposition, updating the hashes of the previous state
+	 * if there is one.
+	 */
+	private MachineState getStateFromTransitions(PropNetMachineState previous) {
+		long[] bits = newBits();
+		int[] transitions = net.getBaseTransitions();
+		for (int i = 0; i < transitions.length; i++) {
+			if (CompiledPropNet.get(values, transitions[i])) {
+				bits[i >>> 6] |= (1L << i);
+			}
+		}
+		return newState(bits, previous);
+	}
+
+	/**
+	 * Creates a state from its base bits, computing its hash code and
+	 * Zobrist hash. Given a previous state, only the bases that differ from
+	 * it are visited, which are usually few.
+	 */
+	private PropNetMachineState newState(long[] bits, PropNetMachineState previous) {
+		long[] previousBits = (previous == null) ? null : previous.getBits();
+		int hash = (previous == null) ? 0 : previous.hashCode();
+		long zobristHash = (previous == null) ? 0 : previous.getZobristHash();
+		for (int w = 0; w < bits.length; w++) {
+			long changed = (previousBits == null) ? bits[w] : bits[w] ^ previousBits[w];
+			while (changed != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(changed);
+				changed &= changed - 1;
+				hash += ((bits[w] & (1L << i)) != 0) ? baseHashes[i] : -baseHashes[i];
+				zobristHash ^= baseZobristKeys[i];
+			}
+		}
+		return new PropNetMachineState(net.getBaseNames(), bits, hash, zobristHash);
+	}
+
+	private long[] newBits() {
+		return new long[(baseHashes.length + 63) >>> 6];
+	}
+
+	/**
+	 * Converts the sentences into a PropNetMachineState, unless some of them
+	 * are not base propositions of this propnet, in which case the state
+	 * could not be represented by base bits alone.
+	 */
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		long[] bits = newBits();
+		for (GdlSentence sentence : sentenceList) {
+			Integer index = net.getBaseIndex(sentence);
+			if (index == null) {
+				return super.getMachineStateFromSentenceList(sentenceList);
+			}
+			bits[index >>> 6] |= (1L << index);
+		}
+		return newState(bits, null);
+	}
+
+	@Override
+	public StateMachine copy() {
+		CompiledPropNetStateMachine copy = new CompiledPropNetStateMachine(mode, codeGenerator);
+		copy.cache = cache;
+		copy.maxComponents = maxComponents;
+		copy.net = net;
+		copy.baseHashes = baseHashes;
+		copy.baseZobristKeys = baseZobristKeys;
+		copy.roles = roles;
+		copy.activeInputs = copy.newActiveInputs();
+		copy.initial = initial;
+		copy.factors = factors;
+		copy.latches = latches;
+		copy.symmetries = symmetries;
+		copy.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+		copy.setRandom(splitRandom());
+		copy.values = net.newValues();
+		net.propagate(copy.values);
+		copy.evaluator = evaluator;
+		copy.cones = cones;
+		if (cones != null) {
+			copy.conesEvaluated = new boolean[cones.length];
+		}
+		if (propagator != null) {
+			copy.propagator = new DifferentialPropagator(net, copy.values);
+		}
+		return copy;
+	}
+
+	/** Returns the compiled propnet, which is shared with any copies. */
+	public CompiledPropNet getPropNet() {
+		return net;
+	}
+
+	/**
+	 * Returns the independent subgames of the game, as found by the
+	 * {@link PropNetFactorizer}. Games that don't decompose have one factor.
+	 * Each factor can be searched on its own with a {@link FactorStateMachine}.
+	 */
+	public List<PropNetFactorizer.Factor> getFactors() {
+		if (factors == null) {
+			factors = PropNetFactorizer.factor(net);
+		}
+		return factors;
+	}
+
+	/**
+	 * Returns the latches of the game, as found by the {@link PropNetLatchAnalyzer}.
+	 */
+	public PropNetLatchAnalyzer getLatches() {
+		if (latches == null) {
+			latches = PropNetLatchAnalyzer.analyze(net);
+		}
+		return latches;
+	}
+
+	/**
+	 * Returns the symmetries of the game, as found by the {@link PropNetSymmetryDetector}.
+	 */
+	public PropNetSymmetryDetector getSymmetries() {
+		if (symmetries == null) {
+			symmetries = PropNetSymmetryDetector.analyze(net);
+		}
+		return symmetries;
+	}
+
+	/**
+	 * Returns the smallest image of the state's bases under the symmetries
+	 * of the game, or the state itself if that is the smallest.
+	 */
+	@Override
+	public MachineState canonicalize(MachineState state) {
+		long[] bits = toPropNetMachineState(state).getBits();
+		long[] canonicalBits = getSymmetries().canonicalize(bits);
+		if (canonicalBits == bits) {
+			return state;
+		}
+		return newState(canonicalBits, null);
+	}
+
+	/**
+	 * The outcome is fixed when the latches that are engaged in the state
+	 * determine every role's goal.
+	 */
+	@Override
+	public boolean isOutcomeFixed(MachineState state) {
+		return getLatches().getFixedGoals(toPropNetMachineState(state).getBits()) != null;
+	}
+
+	@Override
+	public int getDepthChargeBatchSize() {
+		return BitParallelDepthCharger.MAX_LANES;
+	}
+
+	/**
+	 * Runs the depth charges in batches of 64 bit-parallel lanes. When
+	 * stopping at fixed outcomes, lanes stop as soon as their goals are
+	 * fixed by the latches.
+	 */
+	@Override
+	public void performDepthCharges(MachineState state, int count, int[][] goals, int[] depths)
+	throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+		if (depthCharger == null) {
+			depthCharger = new BitParallelDepthCharger(net);
+			laneGoals = new int[BitParallelDepthCharger.MAX_LANES][];
+			laneDepths = new int[BitParallelDepthCharger.MAX_LANES];
+		}
+		PropNetLatchAnalyzer cutoff = isStoppingAtFixedOutcome() ? getLatches() : null;
+		long[] baseBits = toPropNetMachineState(state).getBits();
+		for (int offset = 0; offset < count; offset += BitParallelDepthCharger.MAX_LANES) {
+			int numLanes = Math.min(BitParallelDepthCharger.MAX_LANES, count - offset);
+			depthCharger.run(state, baseBits, numLanes, getRandom(), cutoff, laneGoals, laneDepths);
+			for (int lane = 0; lane < numLanes; lane++) {
+				int i = offset + lane;
+				if (goals[i] == null || goals[i].length != roles.size()) {
+					goals[i] = new int[roles.size()];
+				}
+				System.arraycopy(laneGoals[lane], 0, goals[i], 0, roles.size());
+				if (depths != null) {
+					depths[i] = laneDepths[lane];
+				}
+			}
+		}
+	}
+
+	@Override
+	public long getZobristHash(MachineState state) {
+		if (state instanceof PropNetMachineState) {
+			return ((PropNetMachineState) state).getZobristHash();
+		}
+		return super.getZobristHash(state);
+	}
+
+	/**
+	 * Returns the given state as base bits of this propnet, converting it
+	 * from its sentences if it was not produced by this machine.
+	 */
+	private PropNetMachineState toPropNetMachineState(MachineState state) {
+		if (state instanceof PropNetMachineState && ((PropNetMachineState) state).getBaseNames() == net.getBaseNames()) {
+			return (PropNetMachineState) state;
+		}
+		long[] bits = newBits();
+		long zobristHash = 0;
+		for (GdlSentence sentence : state.getContents()) {
+			Integer index = net.getBaseIndex(sentence);
+			if (index != null) {
+				bits[index >>> 6] |= (1L << index);
+				zobristHash ^= baseZobristKeys[index];
+			} else {
+				zobristHash ^= ZobristHash.getKey(sentence);
+			}
+		}
+		return new PropNetMachineState(net.getBaseNames(), bits, state.hashCode(), zobristHash);
+	}
+
+	@Override
+	public List<Role> getRoles() {
+		return roles;
+	}
+}
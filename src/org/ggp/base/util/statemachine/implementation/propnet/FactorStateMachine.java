@@ -0,0 +1,185 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.factory.PropNetFactorizer;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The FactorStateMachine restricts a state machine to one factor of its game,
+ * as found by the {@link PropNetFactorizer}: each role may only play the
+ * moves of that factor, and the moves that belong to no factor. A role with
+ * no such move in a state may play any of its legal moves there.
+ *
+ * States, goals and terminality are those of the whole game, but since the
+ * moves of a factor leave the bases of the other factors alone, searching
+ * with this machine only explores the factor's own subgame, whose branching
+ * factor is a fraction of the whole game's.
+ */
+public final class FactorStateMachine extends StateMachine
+{
+	private final StateMachine backingStateMachine;
+	private final PropNetFactorizer.Factor factor;
+
+	/**
+	 * @param backingStateMachine An initialized machine for the game that
+	 * the factor was found in.
+	 */
+	public FactorStateMachine(StateMachine backingStateMachine, PropNetFactorizer.Factor factor)
+	{
+		this.backingStateMachine = backingStateMachine;
+		this.factor = factor;
+	}
+
+	public PropNetFactorizer.Factor getFactor()
+	{
+		return factor;
+	}
+
+	private boolean isInFactor(int roleIndex, Move move)
+	{
+		return factor.getMoves(roleIndex).contains(move) || factor.getFreeMoves(roleIndex).contains(move);
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		int roleIndex = getRoleIndices().get(role);
+		List<Move> legalMoves = backingStateMachine.getLegalMoves(state, role);
+		List<Move> factorMoves = new ArrayList<Move>(legalMoves.size());
+		for (Move move : legalMoves) {
+			if (isInFactor(roleIndex, move)) {
+				factorMoves.add(move);
+			}
+		}
+		return factorMoves.isEmpty() ? legalMoves : factorMoves;
+	}
+
+	@Override
+	public int[] getLegalMoveIds(MachineState state, Role role) throws MoveDefinitionException
+	{
+		int roleIndex = getRoleIndices().get(role);
+		int[] legalIds = backingStateMachine.getLegalMoveIds(state, role);
+		int[] factorIds = new int[legalIds.length];
+		int count = 0;
+		for (int id : legalIds) {
+			if (isInFactor(roleIndex, backingStateMachine.getMoveFromId(role, id))) {
+				factorIds[count++] = id;
+			}
+		}
+		if (count == 0) {
+			return legalIds;
+		}
+		int[] result = new int[count];
+		System.arraycopy(factorIds, 0, result, 0, count);
+		return result;
+	}
+
+	@Override
+	public Move getMoveFromId(Role role, int moveId)
+	{
+		return backingStateMachine.getMoveFromId(role, moveId);
+	}
+
+	@Override
+	public int getMoveId(Role role, Move move)
+	{
+		return backingStateMachine.getMoveId(role, move);
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		return backingStateMachine.getNextState(state, moves);
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, int[] moveIds) throws TransitionDefinitionException
+	{
+		return backingStateMachine.getNextState(state, moveIds);
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		return backingStateMachine.getGoal(state, role);
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		return backingStateMachine.isTerminal(state);
+	}
+
+	@Override
+	public boolean isOutcomeFixed(MachineState state)
+	{
+		return backingStateMachine.isOutcomeFixed(state);
+	}
+
+	/**
+	 * The copy restricts a copy of the backing machine to the same factor.
+	 */
+	@Override
+	public StateMachine copy()
+	{
+		FactorStateMachine copy = new FactorStateMachine(backingStateMachine.copy(), factor);
+		copy.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+		copy.setRandom(splitRandom());
+		return copy;
+	}
+
+	@Override
+	public void initialize(List<Gdl> description)
+	{
+		backingStateMachine.initialize(description);
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return backingStateMachine.getRoles();
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return backingStateMachine.getInitialState();
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+	{
+		return backingStateMachine.getMachineStateFromSentenceList(sentenceList);
+	}
+
+	@Override
+	public Role getRoleFromConstant(GdlConstant constant)
+	{
+		return backingStateMachine.getRoleFromConstant(constant);
+	}
+
+	@Override
+	public Move getMoveFromTerm(GdlTerm term)
+	{
+		return backingStateMachine.getMoveFromTerm(term);
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Factor(" + backingStateMachine.getName() + ")";
+	}
+}
@@ -1,11 +1,17 @@
 package org.ggp.base.util.statemachine.implementation.propnet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Stack;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
@@ -14,7 +20,10 @@ import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
-import org.ggp.base.util.propnet.factory.PropNetFactory;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer;
+import org.ggp.base.util.propnet.factory.PropNetOptimizer.Pass;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -22,7 +31,6 @@ import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
 
 
 @SuppressWarnings("unused")
@@ -31,8 +39,26 @@ public class PimpNetStateMachine extends StateMachine {
     private PropNet propNet;
     /** The topological ordering of the propositions */
     private List<Proposition> ordering;
+    /** The parts of the ordering that each kind of query depends on */
+    private List<Proposition> terminalOrdering;
+    private Map<Role, List<Proposition>> goalOrderings;
+    private Map<Role, List<Proposition>> legalOrderings;
+    private List<Proposition> nextOrdering;
+    /** The state whose bases are currently set, and the orderings propagated for it */
+    private MachineState lastState;
+    private Set<List<Proposition>> propagatedOrderings;
     /** The player roles */
     private List<Role> roles;
+    /** The legal propositions of each role, and the moves and input propositions they stand for */
+    private Proposition[][] legalPropositions;
+    private Move[][] legalMoves;
+    private Proposition[][] legalInputs;
+    /** The index of each move among its role's legal propositions */
+    private List<Map<Move, Integer>> legalIndices;
+    /** The input proposition of each move, by role */
+    private List<Map<Move, Proposition>> inputsByMove;
+    /** The input proposition currently set for each role, or null */
+    private Proposition[] activeInputs;
 
     private MachineState initial;
 
@@ -43,21 +69,127 @@ public class PimpNetStateMachine extends StateMachine {
      */
     @Override
     public void initialize(List<Gdl> description) {
-        propNet = PropNetFactory.create(description);
+        try {
+            propNet = OptimizingPropNetFactory.create(description);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        // Propositions are where this machine stores its values, so keep them.
+        new PropNetOptimizer(Pass.SINGLE_INPUT_GATES, Pass.DE_MORGAN, Pass.GATE_CHAINS, Pass.COMMON_SUBEXPRESSIONS).optimize(propNet);
         roles = propNet.getRoles();
-        System.out.println("Getting ordering!");
+        indexMoves();
         ordering = getOrdering();
-        System.out.println("Got ordered!");
+        computeConeOrderings();
         initial = computeInitialState();
     }
 
+    /**
+     * Numbers each role's legal propositions, and works out which Move and
+     * input proposition each one stands for, so that moves can be played and
+     * listed without building any sentences.
+     */
+    private void indexMoves() {
+        int numRoles = roles.size();
+        legalPropositions = new Proposition[numRoles][];
+        legalMoves = new Move[numRoles][];
+        legalInputs = new Proposition[numRoles][];
+        legalIndices = new ArrayList<Map<Move, Integer>>(numRoles);
+        inputsByMove = new ArrayList<Map<Move, Proposition>>(numRoles);
+        activeInputs = new Proposition[numRoles];
+        for (int r = 0; r < numRoles; r++) {
+            Set<Proposition> legals = propNet.getLegalPropositions().get(roles.get(r));
+            legalPropositions[r] = legals.toArray(new Proposition[legals.size()]);
+            legalMoves[r] = new Move[legals.size()];
+            legalInputs[r] = new Proposition[legals.size()];
+            legalIndices.add(new HashMap<Move, Integer>());
+            inputsByMove.add(new HashMap<Move, Proposition>());
+            for (int i = 0; i < legalPropositions[r].length; i++) {
+                legalMoves[r][i] = getMoveFromProposition(legalPropositions[r][i]);
+                legalInputs[r][i] = propNet.getLegalInputMap().get(legalPropositions[r][i]);
+                legalIndices.get(r).put(legalMoves[r][i], i);
+            }
+        }
+        Map<Role, Integer> roleIndices = getRoleIndices();
+        for (Proposition input : propNet.getInputPropositions().values()) {
+            Integer r = roleIndices.get(new Role((GdlConstant) input.getName().get(0)));
+            if (r != null) {
+                inputsByMove.get(r).put(getMoveFromProposition(input), input);
+            }
+        }
+    }
+
+    /**
+     * Restricts the ordering to the cone of influence of each query, so that
+     * e.g. checking whether a state is terminal only propagates the
+     * propositions that the terminal proposition depends on.
+     */
+    private void computeConeOrderings() {
+        terminalOrdering = getConeOrdering(Collections.singleton(propNet.getTerminalProposition()));
+        goalOrderings = new HashMap<Role, List<Proposition>>();
+        legalOrderings = new HashMap<Role, List<Proposition>>();
+        for (Role role : roles) {
+            goalOrderings.put(role, getConeOrdering(propNet.getGoalPropositions().get(role)));
+            legalOrderings.put(role, getConeOrdering(propNet.getLegalPropositions().get(role)));
+        }
+        List<Component> transitions = new ArrayList<Component>();
+        for (Proposition baseProp : propNet.getBasePropositions().values()) {
+            transitions.add(baseProp.getSingleInput());
+        }
+        nextOrdering = getConeOrdering(transitions);
+        lastState = null;
+        propagatedOrderings = Collections.newSetFromMap(new IdentityHashMap<List<Proposition>, Boolean>());
+    }
+
+    /**
+     * Returns the propositions in the ordering that the given components
+     * depend on, searching backwards from them without passing through
+     * transitions.
+     */
+    private List<Proposition> getConeOrdering(Collection<? extends Component> targets) {
+        Set<Component> cone = new HashSet<Component>();
+        Stack<Component> toVisit = new Stack<Component>();
+        toVisit.addAll(targets);
+        while (!toVisit.isEmpty()) {
+            Component component = toVisit.pop();
+            if (component == null || !cone.add(component))
+                continue;
+            for (Component input : component.getInputs()) {
+                if (!(input instanceof Transition))
+                    toVisit.push(input);
+            }
+        }
+        List<Proposition> coneOrdering = new ArrayList<Proposition>();
+        for (Proposition prop : ordering) {
+            if (cone.contains(prop)) {
+                coneOrdering.add(prop);
+            }
+        }
+        return coneOrdering;
+    }
+
+    /**
+     * Sets the bases from the state, unless they are already set from it,
+     * and propagates the given part of the ordering if it has not been
+     * propagated for that state yet.
+     */
+    private void update(MachineState state, List<Proposition> coneOrdering) {
+        if (lastState == null || !lastState.equals(state)) {
+            markBases(state);
+            lastState = state;
+            propagatedOrderings.clear();
+        }
+        if (propagatedOrderings.add(coneOrdering)) {
+            propagate(coneOrdering);
+        }
+    }
+
     private MachineState computeInitialState() {
 		// TODO Auto-generated method stub
     	for (Proposition baseProp : propNet.getBasePropositions().values()){
     		baseProp.setValue(false);
     	}
     	propNet.getInitProposition().setValue(true);
-    	propagate();
+    	propagate(ordering);
     	MachineState initialState = getStateFromBase();
     	propNet.getInitProposition().setValue(false);
 		return initialState;
@@ -70,27 +202,38 @@ public class PimpNetStateMachine extends StateMachine {
     		baseProp.setValue(false);
     	}
     	for (GdlSentence sentence: currSentences){
-    		Proposition prop = baseProps.get(sentence.toTerm());
+    		Proposition prop = baseProps.get(sentence);
     		if (prop != null) prop.setValue(true);
     	}
     	return true;
     }
 
+    /**
+     * Clears the input propositions set for the previous moves, and sets
+     * the ones for the given moves.
+     */
     private boolean markActions(List<Move> moves){
-    	Map<GdlSentence, Proposition> inputProps = propNet.getInputPropositions();
-    	for (Proposition inputProp : inputProps.values()){
-    		inputProp.setValue(false);
+    	for (int r = 0; r < roles.size(); r++){
+    		setAction(r, inputsByMove.get(r).get(moves.get(r)));
     	}
-    	List<GdlSentence> moveTerms = toDoes(moves);
-    	for (GdlSentence sentence: moveTerms){
-    		Proposition prop = inputProps.get(sentence.toTerm());
-    		if (prop != null) prop.setValue(true);;
+    	return true;
+    }
+
+    private boolean markActions(int[] moveIds){
+    	for (int r = 0; r < roles.size(); r++){
+    		setAction(r, legalInputs[r][moveIds[r]]);
     	}
     	return true;
     }
 
-    private void propagate(){
-    	for (Proposition prop : ordering) prop.setValue(prop.getSingleInput().getValue());
+    private void setAction(int roleIndex, Proposition input){
+    	if (activeInputs[roleIndex] != null) activeInputs[roleIndex].setValue(false);
+    	if (input != null) input.setValue(true);
+    	activeInputs[roleIndex] = input;
+    }
+
+    private void propagate(List<Proposition> order){
+    	for (Proposition prop : order) prop.setValue(prop.getSingleInput().getValue());
     }
 
 	/**
@@ -99,9 +242,7 @@ public class PimpNetStateMachine extends StateMachine {
 	 */
 	@Override
 	public boolean isTerminal(MachineState state) {
-		// TODO: Compute whether the MachineState is terminal.
-		markBases(state);
-		propagate();
+		update(state, terminalOrdering);
 		return propNet.getTerminalProposition().getValue();
 	}
 
@@ -115,9 +256,7 @@ public class PimpNetStateMachine extends StateMachine {
 	@Override
 	public int getGoal(MachineState state, Role role)
 	throws GoalDefinitionException {
-		// TODO: Compute the goal for role in state.
-		markBases(state);
-		propagate();
+		update(state, goalOrderings.get(role));
 		Set<Proposition> props = propNet.getGoalPropositions().get(role);
 		Proposition goalProp = null;
 		int numTrueProps = 0;
@@ -151,30 +290,71 @@ public class PimpNetStateMachine extends StateMachine {
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role)
 	throws MoveDefinitionException {
-		// TODO: Compute legal moves.
-		markBases(state);
-		propagate();
-		Set<Proposition> legalProps = propNet.getLegalPropositions().get(role);
+		update(state, legalOrderings.get(role));
+		int r = getRoleIndices().get(role);
 		List<Move> legalMoveList = new ArrayList<Move>();
-		for (Proposition legalProp : legalProps){
-			if (legalProp.getValue()){
-				Move legalMove = getMoveFromProposition(legalProp);
-				legalMoveList.add(legalMove);
+		for (int i = 0; i < legalPropositions[r].length; i++){
+			if (legalPropositions[r][i].getValue()){
+				legalMoveList.add(legalMoves[r][i]);
 			}
 		}
 		return legalMoveList;
 	}
 
+	/**
+	 * Move ids are indices into the role's legal propositions.
+	 */
+	@Override
+	public int[] getLegalMoveIds(MachineState state, Role role)
+	throws MoveDefinitionException {
+		update(state, legalOrderings.get(role));
+		int r = getRoleIndices().get(role);
+		int[] ids = new int[legalPropositions[r].length];
+		int count = 0;
+		for (int i = 0; i < legalPropositions[r].length; i++){
+			if (legalPropositions[r][i].getValue()){
+				ids[count++] = i;
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	@Override
+	public Move getMoveFromId(Role role, int moveId) {
+		return legalMoves[getRoleIndices().get(role)][moveId];
+	}
+
+	/**
+	 * Returns -1 for moves without a legal proposition.
+	 */
+	@Override
+	public int getMoveId(Role role, Move move) {
+		Integer index = legalIndices.get(getRoleIndices().get(role)).get(move);
+		return (index == null) ? -1 : index;
+	}
+
 	/**
 	 * Computes the next state given state and the list of moves.
 	 */
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves)
 	throws TransitionDefinitionException {
-		// TODO: Compute the next state.
 		markBases(state);
 		markActions(moves);
-		propagate();
+		return propagateNextState();
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, int[] moveIds)
+	throws TransitionDefinitionException {
+		markBases(state);
+		markActions(moveIds);
+		return propagateNextState();
+	}
+
+	private MachineState propagateNextState() {
+		lastState = null;
+		propagate(nextOrdering);
 		Set<GdlSentence> nextStateSentences = new HashSet<GdlSentence>();
 		for (GdlSentence sentence : propNet.getBasePropositions().keySet()){
 			Proposition prop = propNet.getBasePropositions().get(sentence);
@@ -202,81 +382,24 @@ public class PimpNetStateMachine extends StateMachine {
 	public List<Proposition> getOrdering()
 	{
 	    // List to contain the topological ordering.
-	    List<Proposition> order = new LinkedList<Proposition>();
-	    List<Component> compOrder = new LinkedList<Component>();
-
-		// All of the components in the PropNet
-		List<Component> components = new ArrayList<Component>(propNet.getComponents());
-
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
+	    List<Proposition> order = new ArrayList<Proposition>();
 
-		List<Proposition> basePropositions = new ArrayList<Proposition>(propNet.getBasePropositions().values());
-		List<Proposition> inputPropositions = new ArrayList<Proposition>(propNet.getInputPropositions().values());
-		List<Proposition> independentPropositions = new ArrayList<Proposition>();
+		Set<Proposition> independentPropositions = new HashSet<Proposition>();
+		independentPropositions.addAll(propNet.getBasePropositions().values());
+		independentPropositions.addAll(propNet.getInputPropositions().values());
 		independentPropositions.add(propNet.getInitProposition());
-		independentPropositions.addAll(inputPropositions);
-		independentPropositions.addAll(basePropositions);
-		//int count = 0;
-		System.out.println("Propositions' Size: " + (propositions.size() - independentPropositions.size()));
-		List<Proposition> depPropositions = new ArrayList<Proposition>(propositions);
-		depPropositions.removeAll(independentPropositions);
-		while(true) {
-			System.out.println("Ordering size: " + compOrder.size());
-			List<Component> toBeAdded = new ArrayList<Component>();
-			for(Proposition prop : depPropositions) {
-				Set<Component> inputs = prop.getSingleInput().getInputs();
-				Set<Component> curOrder = new HashSet<Component>(compOrder);
-				curOrder.addAll(independentPropositions);
-				if (compOrder.contains(prop)) {
-					continue;
-				} else if (curOrder.containsAll(inputs)) {
-					//count++;
-					compOrder.add(prop);
-				} else {
-					toBeAdded.add(prop);
-				}
-			}
-			if (toBeAdded.isEmpty()) break;
-			components = toBeAdded;
 
+		// Keep the propositions that are computed from other components, in
+		// the order given by the PropNet's linear-time topological sort.
+		for (Component component : propNet.getTopologicalOrdering()) {
+			if (!(component instanceof Proposition))
+				continue;
+			if (independentPropositions.contains(component))
+				continue;
+			if (component.getInputs().size() != 1)
+				continue;
+			order.add((Proposition)component);
 		}
-		System.out.println("Ordering size: " + compOrder.size());
-
-
-		for (Component comp : compOrder) {
-			if (comp instanceof Proposition ) {
-				order.add((Proposition)comp);
-			}
-		}
-		//System.out.println()
-//		while (!propositions.isEmpty()){
-//			Proposition curr = propositions.remove(0);
-//			if(curr.getInputs().size()==0) continue;
-//			if(basePropositions.contains(curr)) continue;
-//			if(inputPropositions.contains(curr)) continue;
-//			if(propNet.getInitProposition().equals(curr)) continue;
-//
-//			Set<Component> inputs = curr.getSingleInput().getInputs();
-//			boolean allInputsAdded = true;
-//
-//			for (Component currComp : inputs){
-//				if (!order.contains(currComp)){
-//					allInputsAdded = false;
-//					break;
-//				}
-//				if(((Proposition)currComp).getInputs().size()==0 ||
-//						basePropositions.contains((Proposition)currComp) ||
-//						inputPropositions.contains((Proposition)currComp) ||
-//						propNet.getInitProposition().equals(currComp)){
-//					allInputsAdded = false;
-//					break;
-//				}
-//			}
-//
-//			if (allInputsAdded) order.add(curr);
-//			else propositions.add(curr);
-//		}
 
 		return order;
 	}
@@ -290,31 +413,7 @@ public class PimpNetStateMachine extends StateMachine {
 	/* Helper methods */
 
 	/**
-	 * The Input propositions are indexed by (does ?player ?action).
-	 *
-	 * This translates a list of Moves (backed by a sentence that is simply ?action)
-	 * into GdlSentences that can be used to get Propositions from inputPropositions.
-	 * and accordingly set their values etc.  This is a naive implementation when coupled with
-	 * setting input values, feel free to change this for a more efficient implementation.
-	 *
-	 * @param moves
-	 * @return
-	 */
-	private List<GdlSentence> toDoes(List<Move> moves)
-	{
-		List<GdlSentence> doeses = new ArrayList<GdlSentence>(moves.size());
-		Map<Role, Integer> roleIndices = getRoleIndices();
-
-		for (int i = 0; i < roles.size(); i++)
-		{
-			int index = roleIndices.get(roles.get(i));
-			doeses.add(ProverQueryBuilder.toDoes(roles.get(i), moves.get(index)));
-		}
-		return doeses;
-	}
-
-	/**
-	 * Takes in a Legal Proposition and returns the appropriate corresponding Move
+	 * Takes in a Legal or Input Proposition and returns the appropriate corresponding Move
 	 * @param p
 	 * @return a PropNetMove
 	 */
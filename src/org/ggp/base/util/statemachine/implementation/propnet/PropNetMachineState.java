@@ -0,0 +1,120 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.ZobristHash;
+
+/**
+ * PropNetMachineState is a MachineState produced by propnet-based state
+ * machines. Rather than a set of sentences, it stores one bit per base
+ * proposition of the propnet, along with a hash code computed once when the
+ * state is created.
+ *
+ * The hash code is the sum of the hash codes of the true base sentences, which
+ * is exactly the hash code of the equivalent set of sentences, so these states
+ * can be mixed freely with ordinary MachineStates in hash-based collections.
+ * Comparing two states from the same propnet only compares their bits; the
+ * set of sentences is only built if someone calls {@link #getContents()}.
+ * The state's {@link ZobristHash} is kept alongside its hash code.
+ */
+public final class PropNetMachineState extends MachineState
+{
+	/** The sentence of every base proposition, indexed by base index. */
+	private final GdlSentence[] baseNames;
+	/** The value of every base proposition, one bit per base index. */
+	private final long[] bits;
+	private final int hashCode;
+	private final long zobristHash;
+
+	private Set<GdlSentence> contents;
+
+	/**
+	 * Creates a state from the given base bits, which must not be modified
+	 * afterwards. The hash code must be the sum of the hash codes of the
+	 * sentences of the true bases, and the Zobrist hash the exclusive or of
+	 * their Zobrist keys.
+	 */
+	public PropNetMachineState(GdlSentence[] baseNames, long[] bits, int hashCode, long zobristHash)
+	{
+		this.baseNames = baseNames;
+		this.bits = bits;
+		this.hashCode = hashCode;
+		this.zobristHash = zobristHash;
+	}
+
+	/**
+	 * Returns the sentences of the base propositions, shared by every state
+	 * created over the same propnet.
+	 */
+	public GdlSentence[] getBaseNames()
+	{
+		return baseNames;
+	}
+
+	/**
+	 * Returns the value of every base proposition, one bit per base index.
+	 * The returned array must not be modified.
+	 */
+	public long[] getBits()
+	{
+		return bits;
+	}
+
+	public long getZobristHash()
+	{
+		return zobristHash;
+	}
+
+	public boolean isTrue(int baseIndex)
+	{
+		return (bits[baseIndex >>> 6] & (1L << baseIndex)) != 0;
+	}
+
+	/**
+	 * Builds the set of true base sentences the first time it is needed.
+	 */
+	@Override
+	public Set<GdlSentence> getContents()
+	{
+		if (contents == null) {
+			Set<GdlSentence> trueSentences = new HashSet<GdlSentence>();
+			for (int i = 0; i < baseNames.length; i++) {
+				if (isTrue(i)) {
+					trueSentences.add(baseNames[i]);
+				}
+			}
+			contents = trueSentences;
+		}
+		return contents;
+	}
+
+	@Override
+	public MachineState clone()
+	{
+		return new PropNetMachineState(baseNames, bits.clone(), hashCode, zobristHash);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (o instanceof PropNetMachineState) {
+			PropNetMachineState state = (PropNetMachineState) o;
+			if (state.baseNames == baseNames) {
+				return state.hashCode == hashCode && Arrays.equals(state.bits, bits);
+			}
+		}
+		return super.equals(o);
+	}
+}
@@ -118,15 +118,24 @@ public class SamplePropNetStateMachine extends StateMachine {
 	public List<Proposition> getOrdering()
 	{
 	    // List to contain the topological ordering.
-	    List<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		List<Component> components = new ArrayList<Component>(propNet.getComponents());
-
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
-
-	    // TODO: Compute the topological ordering.
+	    List<Proposition> order = new ArrayList<Proposition>();
+
+		Set<Proposition> independentPropositions = new HashSet<Proposition>();
+		independentPropositions.addAll(propNet.getBasePropositions().values());
+		independentPropositions.addAll(propNet.getInputPropositions().values());
+		independentPropositions.add(propNet.getInitProposition());
+
+		// Keep the propositions that are computed from other components, in
+		// the order given by the PropNet's linear-time topological sort.
+		for (Component component : propNet.getTopologicalOrdering()) {
+			if (!(component instanceof Proposition))
+				continue;
+			if (independentPropositions.contains(component))
+				continue;
+			if (component.getInputs().size() != 1)
+				continue;
+			order.add((Proposition)component);
+		}
 
 		return order;
 	}
@@ -46,6 +46,19 @@ public class ProverStateMachine extends StateMachine
 		initialState = computeInitialState();
 	}
 
+	/**
+	 * The copy builds its own prover from the same description.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public StateMachine copy()
+	{
+		ProverStateMachine theCopy = new ProverStateMachine();
+		theCopy.initialize(gdlDescription);
+		theCopy.setRandom(splitRandom());
+		return theCopy;
+	}
+
 	private MachineState computeInitialState()
 	{
 		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
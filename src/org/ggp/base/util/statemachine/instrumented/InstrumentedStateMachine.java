@@ -0,0 +1,345 @@
+package org.ggp.base.util.statemachine.instrumented;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.MachineStateInfo;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * InstrumentedStateMachine passes every call on to a backing machine, and
+ * counts how many calls of each operation there were and how long they took,
+ * in a {@link LatencyHistogram} per operation. Once per move, in
+ * {@link #doPerMoveWork()}, it logs a summary of the histograms and starts
+ * them afresh.
+ *
+ * Depth charges are passed on whole, so that machines which run them without
+ * going through their public methods keep doing so; they are timed as a
+ * batch, and each depth charge is counted with its share of the time.
+ * Copies share their histograms with the machine they were copied from, so
+ * the summary covers the calls made on every thread.
+ */
+public final class InstrumentedStateMachine extends StateMachine
+{
+	public enum Operation
+	{
+		GET_GOAL("getGoal"),
+		IS_TERMINAL("isTerminal"),
+		GET_LEGAL_MOVES("getLegalMoves"),
+		GET_NEXT_STATE("getNextState"),
+		GET_STATE_INFO("getStateInfo"),
+		CANONICALIZE("canonicalize"),
+		DEPTH_CHARGE("depthCharge");
+
+		private final String name;
+
+		private Operation(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private final StateMachine backingStateMachine;
+	private final LatencyHistogram[] histograms;
+
+	public InstrumentedStateMachine(StateMachine backingStateMachine)
+	{
+		this(backingStateMachine, newHistograms());
+	}
+
+	private InstrumentedStateMachine(StateMachine backingStateMachine, LatencyHistogram[] histograms)
+	{
+		this.backingStateMachine = backingStateMachine;
+		this.histograms = histograms;
+	}
+
+	private static LatencyHistogram[] newHistograms()
+	{
+		LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		return histograms;
+	}
+
+	public StateMachine getBackingMachine()
+	{
+		return backingStateMachine;
+	}
+
+	/** @return The histogram of the operation's calls since the last move. */
+	public LatencyHistogram getHistogram(Operation operation)
+	{
+		return histograms[operation.ordinal()];
+	}
+
+	private void record(Operation operation, long start)
+	{
+		histograms[operation.ordinal()].record(System.nanoTime() - start);
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getGoal(state, role);
+		} finally {
+			record(Operation.GET_GOAL, start);
+		}
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.isTerminal(state);
+		} finally {
+			record(Operation.IS_TERMINAL, start);
+		}
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getLegalMoves(state, role);
+		} finally {
+			record(Operation.GET_LEGAL_MOVES, start);
+		}
+	}
+
+	@Override
+	public int[] getLegalMoveIds(MachineState state, Role role) throws MoveDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getLegalMoveIds(state, role);
+		} finally {
+			record(Operation.GET_LEGAL_MOVES, start);
+		}
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getNextState(state, moves);
+		} finally {
+			record(Operation.GET_NEXT_STATE, start);
+		}
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, int[] moveIds) throws TransitionDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getNextState(state, moveIds);
+		} finally {
+			record(Operation.GET_NEXT_STATE, start);
+		}
+	}
+
+	@Override
+	public MachineState getNextStateDestructively(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getNextStateDestructively(state, moves);
+		} finally {
+			record(Operation.GET_NEXT_STATE, start);
+		}
+	}
+
+	@Override
+	public MachineStateInfo getStateInfo(MachineState state)
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.getStateInfo(state);
+		} finally {
+			record(Operation.GET_STATE_INFO, start);
+		}
+	}
+
+	@Override
+	public MachineState canonicalize(MachineState state)
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.canonicalize(state);
+		} finally {
+			record(Operation.CANONICALIZE, start);
+		}
+	}
+
+	@Override
+	public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			return backingStateMachine.performDepthCharge(state, theDepth);
+		} finally {
+			record(Operation.DEPTH_CHARGE, start);
+		}
+	}
+
+	@Override
+	public void performDepthCharges(MachineState state, int count, int[][] goals, int[] depths) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		long start = System.nanoTime();
+		try {
+			backingStateMachine.performDepthCharges(state, count, goals, depths);
+		} finally {
+			if (count > 0) {
+				histograms[Operation.DEPTH_CHARGE.ordinal()].record((System.nanoTime() - start) / count, count);
+			}
+		}
+	}
+
+	/**
+	 * Logs the calls made since the last move, one line per operation that
+	 * was called, and starts counting afresh.
+	 */
+	@Override
+	public void doPerMoveWork()
+	{
+		backingStateMachine.doPerMoveWork();
+		StringBuilder summary = new StringBuilder("Latencies of " + backingStateMachine.getName() + " this move:");
+		for (Operation operation : Operation.values()) {
+			LatencyHistogram histogram = getHistogram(operation);
+			if (histogram.getCount() > 0) {
+				summary.append("\n  ").append(operation).append(": ").append(histogram);
+			}
+			histogram.reset();
+		}
+		GamerLogger.log("StateMachine", summary.toString());
+	}
+
+	/**
+	 * The copy wraps a copy of the backing machine, and records its calls in
+	 * the same histograms as this machine.
+	 */
+	@Override
+	public StateMachine copy()
+	{
+		InstrumentedStateMachine copy = new InstrumentedStateMachine(backingStateMachine.copy(), histograms);
+		copy.setStopAtFixedOutcome(isStoppingAtFixedOutcome());
+		copy.setRandom(splitRandom());
+		return copy;
+	}
+
+	@Override
+	public String getName()
+	{
+		return "Instrumented(" + backingStateMachine.getName() + ")";
+	}
+
+	@Override
+	public Move getMoveFromId(Role role, int moveId)
+	{
+		return backingStateMachine.getMoveFromId(role, moveId);
+	}
+
+	@Override
+	public int getMoveId(Role role, Move move)
+	{
+		return backingStateMachine.getMoveId(role, move);
+	}
+
+	@Override
+	public int getDepthChargeBatchSize()
+	{
+		return backingStateMachine.getDepthChargeBatchSize();
+	}
+
+	@Override
+	public long getZobristHash(MachineState state)
+	{
+		return backingStateMachine.getZobristHash(state);
+	}
+
+	@Override
+	public boolean isOutcomeFixed(MachineState state)
+	{
+		return backingStateMachine.isOutcomeFixed(state);
+	}
+
+	@Override
+	public void updateRoot(MachineState theState)
+	{
+		backingStateMachine.updateRoot(theState);
+	}
+
+	@Override
+	public void setStopAtFixedOutcome(boolean stopAtFixedOutcome)
+	{
+		super.setStopAtFixedOutcome(stopAtFixedOutcome);
+		backingStateMachine.setStopAtFixedOutcome(stopAtFixedOutcome);
+	}
+
+	@Override
+	public void setRandom(Random random)
+	{
+		super.setRandom(random);
+		backingStateMachine.setRandom(random);
+	}
+
+	@Override
+	public void initialize(List<Gdl> description)
+	{
+		backingStateMachine.initialize(description);
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return backingStateMachine.getRoles();
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+	{
+		return backingStateMachine.getMachineStateFromSentenceList(sentenceList);
+	}
+
+	@Override
+	public Role getRoleFromConstant(GdlConstant constant)
+	{
+		return backingStateMachine.getRoleFromConstant(constant);
+	}
+
+	@Override
+	public Move getMoveFromTerm(GdlTerm term)
+	{
+		return backingStateMachine.getMoveFromTerm(term);
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return backingStateMachine.getInitialState();
+	}
+}
@@ -0,0 +1,174 @@
+package org.ggp.base.util.statemachine.instrumented;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in nanoseconds, in buckets whose width
+ * grows with the duration, as HDR histograms do: each power of two is split
+ * into 32 buckets, so a percentile is off by at most about 3%, and the whole
+ * range from a nanosecond to a quarter of an hour fits in about a thousand
+ * buckets. Longer durations are counted in the last bucket.
+ *
+ * Recording is lock-free and safe from any number of threads. Reading while
+ * other threads record gives numbers that may be slightly out of step with
+ * each other, which is fine for logging.
+ */
+public final class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Durations from 2^MAX_MAGNITUDE ns on share the last bucket */
+	private static final int MAX_MAGNITUDE = 40;
+	private static final int NUM_BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** Counts a call that took the given time. */
+	public void record(long nanos)
+	{
+		record(nanos, 1);
+	}
+
+	/**
+	 * Counts the given number of calls, each of which took the given time;
+	 * used for batches of calls that are timed together.
+	 */
+	public void record(long nanos, long calls)
+	{
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.addAndGet(getBucket(nanos), calls);
+		count.addAndGet(calls);
+		total.addAndGet(nanos * calls);
+		long oldMax = max.get();
+		while (nanos > oldMax && !max.compareAndSet(oldMax, nanos)) {
+			oldMax = max.get();
+		}
+	}
+
+	static int getBucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+		if (magnitude >= MAX_MAGNITUDE) {
+			return NUM_BUCKETS - 1;
+		}
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+	}
+
+	/** @return The smallest duration counted in the given bucket. */
+	static long getBucketStart(int bucket)
+	{
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+	}
+
+	/** @return The number of durations in the bucket starting at the given one. */
+	static long getBucketWidth(int bucket)
+	{
+		return (bucket < SUB_BUCKETS) ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/** @return The sum of all durations counted, in nanoseconds. */
+	public long getTotalNanos()
+	{
+		return total.get();
+	}
+
+	public long getMaxNanos()
+	{
+		return max.get();
+	}
+
+	/** @return The mean duration in nanoseconds, or 0 if nothing was counted. */
+	public double getMeanNanos()
+	{
+		long n = count.get();
+		return (n == 0) ? 0 : total.get() / (double) n;
+	}
+
+	/**
+	 * Returns the duration that the given share of calls took no longer
+	 * than, to within the bucket width, or 0 if nothing was counted.
+	 *
+	 * @param percentile A number from 0 to 100.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				// The middle of the bucket, but never beyond the largest seen.
+				return Math.min(getBucketStart(i) + getBucketWidth(i) / 2, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/** Adds the counts of the other histogram to this one. */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long calls = other.buckets.get(i);
+			if (calls != 0) {
+				buckets.addAndGet(i, calls);
+			}
+		}
+		count.addAndGet(other.count.get());
+		total.addAndGet(other.total.get());
+		long otherMax = other.max.get();
+		long oldMax = max.get();
+		while (otherMax > oldMax && !max.compareAndSet(oldMax, otherMax)) {
+			oldMax = max.get();
+		}
+	}
+
+	/**
+	 * Forgets everything counted. Calls recorded at the same time may be
+	 * partly forgotten.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	private static String formatMicros(double nanos)
+	{
+		return String.format("%.1fus", nanos / 1000);
+	}
+
+	@Override
+	public String toString()
+	{
+		return count.get() + " calls, " + formatMicros(total.get()) + " total, mean " + formatMicros(getMeanNanos())
+				+ ", p50 " + formatMicros(getValueAtPercentile(50)) + ", p90 " + formatMicros(getValueAtPercentile(90))
+				+ ", p99 " + formatMicros(getValueAtPercentile(99)) + ", max " + formatMicros(max.get());
+	}
+}